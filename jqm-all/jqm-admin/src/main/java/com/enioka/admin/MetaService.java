@@ -1088,8 +1088,13 @@ public class MetaService
             tmp.setPollingInterval(rs.getInt(5 + colShift));
             tmp.setNodeId(rs.getInt(6 + colShift));
             tmp.setQueueId(rs.getInt(7 + colShift));
-            tmp.setNodeName(rs.getString(8 + colShift));
-            tmp.setQueueName(rs.getString(9 + colShift));
+            tmp.setPollingIntervalMax(rs.getInt(8 + colShift));
+            if (rs.wasNull())
+            {
+                tmp.setPollingIntervalMax(null);
+            }
+            tmp.setNodeName(rs.getString(9 + colShift));
+            tmp.setQueueName(rs.getString(10 + colShift));
 
             return tmp;
         }
@@ -1164,10 +1169,16 @@ public class MetaService
             cnx.runUpdate("dp_update_changed_by_id", dto.getEnabled(), dto.getNbThread(), dto.getPollingInterval(), dto.getNodeId(),
                     dto.getQueueId(), dto.getId(), dto.getEnabled(), dto.getNbThread(), dto.getPollingInterval(), dto.getNodeId(),
                     dto.getQueueId());
+            cnx.runUpdate("dp_update_interval_max_by_id", dto.getPollingIntervalMax(), dto.getId());
         }
         else
         {
-            DeploymentParameter.create(cnx, dto.getNodeId(), dto.getNbThread(), dto.getPollingInterval(), dto.getQueueId());
+            DeploymentParameter dp = DeploymentParameter.create(cnx, dto.getNodeId(), dto.getNbThread(), dto.getPollingInterval(),
+                    dto.getQueueId());
+            if (dto.getPollingIntervalMax() != null)
+            {
+                cnx.runUpdate("dp_update_interval_max_by_id", dto.getPollingIntervalMax(), dp.getId());
+            }
         }
     }
 
@@ -31,6 +31,7 @@ public class QueueMappingDto implements Serializable
     private Integer nodeId;
     private Integer nbThread;
     private Integer pollingInterval;
+    private Integer pollingIntervalMax;
     private Integer queueId;
     private String nodeName, queueName;
     private Boolean enabled = true;
@@ -75,6 +76,16 @@ public class QueueMappingDto implements Serializable
         this.pollingInterval = pollingInterval;
     }
 
+    public Integer getPollingIntervalMax()
+    {
+        return pollingIntervalMax;
+    }
+
+    public void setPollingIntervalMax(Integer pollingIntervalMax)
+    {
+        this.pollingIntervalMax = pollingIntervalMax;
+    }
+
     public Integer getQueueId()
     {
         return queueId;
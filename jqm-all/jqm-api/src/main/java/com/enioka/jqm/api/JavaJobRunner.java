@@ -9,7 +9,8 @@ import java.util.Map;
  * This interface is implemented by the different job runners specialized in running Java payloads, i.e. the agents which actually launch
  * the job instances. The java job runners must be placed in the plugins directory of the engine.<br>
  * <br>
- * Implementors should always specify a no-args constructor for runners.
+ * Implementors should always specify a no-args constructor for runners. A runner instance may be kept by the engine and used for many
+ * (possibly concurrent) job instances, so runners should not hold state between calls.
  */
 public interface JavaJobRunner
 {
@@ -0,0 +1,278 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.enioka.jqm.jdbc.DbConn;
+import com.enioka.jqm.model.JobInstance;
+import com.enioka.jqm.model.ResourceManager;
+
+/**
+ * A Resource Manager which handles a set quantity of a given resource shared by all the nodes of the cluster. Blocks once the resource is
+ * exhausted.<br>
+ * Units are leased by each node inside the database (table RM_LEASE). A node leases a few units more than it currently needs (the
+ * allowance), so most bookings are done in memory without any database access. The allowance is kept while the node is idle, and is
+ * only given back once the node has not used the resource for the lease timeout. Leases of nodes which have not been seen alive recently
+ * (crashed nodes) are not counted anymore, and a node resets its own lease on startup.<br>
+ * By default it has 10 units and JI do NOT use any of them - only job instances with the right parameter will take units.
+ */
+class ClusterQuantityResourceManager extends ResourceManagerBase
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(ClusterQuantityResourceManager.class);
+
+    private static String PRM_ROOT = "com.enioka.jqm.rm.cluster.";
+    private static String PRM_QUANTITY = "quantity";
+    private static String PRM_CONSUMPTION = "consumption";
+    private static String PRM_ALLOWANCE = "allowance";
+    private static String PRM_LEASE_TIMEOUT = "leasetimeout";
+
+    /**
+     * Time during which the database is not asked again for more units after a refusal (unless units are released locally).
+     */
+    private static final long RETRY_DELAY_MS = 1000;
+
+    private int nodeId;
+    private boolean leaseReset = false;
+
+    private int quantity;
+    private int defaultConsumption;
+    private int allowance;
+    private int leaseTimeoutS;
+
+    /**
+     * Units leased by this node inside the database. Some of them may be unused (the allowance).
+     */
+    private volatile int leasedUnits = 0;
+
+    /**
+     * Units booked by job instances of this node. Always lower or equal to {@link #leasedUnits}.
+     */
+    private int usedUnits = 0;
+
+    private long noLeaseBefore = 0;
+    private long idleSince = 0;
+    private final Object leaseWriteLock = new Object();
+    private Map<Integer, Integer> runningJobs = new HashMap<Integer, Integer>(10);
+
+    ClusterQuantityResourceManager(ResourceManager rm)
+    {
+        super(rm);
+        this.nodeId = rm.getNodeId();
+    }
+
+    @Override
+    protected void setDefaultProperties()
+    {
+        this.currentProperties.put(PRM_ROOT + PRM_QUANTITY, "10");
+        this.currentProperties.put(PRM_ROOT + PRM_CONSUMPTION, "0");
+        this.currentProperties.put(PRM_ROOT + PRM_ALLOWANCE, "1");
+        this.currentProperties.put(PRM_ROOT + PRM_LEASE_TIMEOUT, "120");
+    }
+
+    @Override
+    String getParameterRoot()
+    {
+        return PRM_ROOT;
+    }
+
+    @Override
+    synchronized void refreshConfiguration(ResourceManager configuration)
+    {
+        // Read configuration
+        super.refreshConfiguration(configuration);
+        this.quantity = getIntegerParameter(PRM_QUANTITY);
+        this.defaultConsumption = getIntegerParameter(PRM_CONSUMPTION);
+        this.allowance = getIntegerParameter(PRM_ALLOWANCE);
+        this.leaseTimeoutS = getIntegerParameter(PRM_LEASE_TIMEOUT);
+
+        // On startup, nothing runs on this node - units leased by a previous run are given back.
+        if (!leaseReset)
+        {
+            DbConn cnx = Helpers.getNewDbSession();
+            try
+            {
+                if (cnx.runSelectSingle("rmlease_select_count_for_node", Integer.class, this.key, this.nodeId) == 0)
+                {
+                    cnx.runUpdate("rmlease_insert", this.key, this.nodeId);
+                }
+                cnx.runUpdate("rmlease_update_units", 0, this.key, this.nodeId);
+                cnx.commit();
+                leaseReset = true;
+            }
+            finally
+            {
+                Helpers.closeQuietly(cnx);
+            }
+        }
+
+        // Log
+        jqmlogger.info(
+                "\tConfigured cluster quantity resource manager [{}] with max count {} for the whole cluster - "
+                        + "taking {} per JI by default, leasing {} more units than needed",
+                this.key, this.quantity, this.defaultConsumption, this.allowance);
+    }
+
+    @Override
+    BookingStatus bookResource(JobInstance ji, DbConn cnx)
+    {
+        int slots = this.getIntegerParameter(PRM_CONSUMPTION, ji, true);
+        if (slots <= 0)
+        {
+            return BookingStatus.BOOKED;
+        }
+
+        synchronized (this)
+        {
+            // Common case: enough units were already leased by this node.
+            if (usedUnits + slots > leasedUnits && System.currentTimeMillis() >= noLeaseBefore)
+            {
+                extendLease(usedUnits + slots, usedUnits + slots + allowance);
+            }
+
+            if (usedUnits + slots > leasedUnits)
+            {
+                noLeaseBefore = System.currentTimeMillis() + RETRY_DELAY_MS;
+                return this.defaultConsumption > 0 && slots <= this.defaultConsumption ? BookingStatus.EXHAUSTED : BookingStatus.FAILED;
+            }
+
+            // If here, booking has succeeded.
+            usedUnits += slots;
+            runningJobs.put(ji.getId(), slots);
+            return BookingStatus.BOOKED;
+        }
+    }
+
+    @Override
+    void releaseResource(JobInstance ji)
+    {
+        synchronized (this)
+        {
+            Integer slots = runningJobs.remove(ji.getId());
+            if (slots == null)
+            {
+                return;
+            }
+            jqmlogger.trace("Releasing {} slots for RM {}", slots, this.key);
+            usedUnits -= slots;
+            noLeaseBefore = 0;
+            if (usedUnits == 0)
+            {
+                idleSince = System.currentTimeMillis();
+            }
+
+            // Keep at most the allowance (also when idle - it is only given back after the lease timeout).
+            int target = Math.min(leasedUnits, usedUnits + allowance);
+            if (target >= leasedUnits)
+            {
+                return;
+            }
+            // Shrinking the local lease first is safe: the database still holds more units, which only hinders other nodes.
+            leasedUnits = target;
+        }
+
+        // This runs on the payload thread: the database write is done outside the monitor so as not to block bookings.
+        persistLease();
+    }
+
+    @Override
+    void onInternalPoll()
+    {
+        synchronized (this)
+        {
+            if (usedUnits > 0 || leasedUnits == 0 || System.currentTimeMillis() - idleSince < leaseTimeoutS * 1000L)
+            {
+                return;
+            }
+            jqmlogger.debug("Cluster RM {} has been idle for more than {}s - giving back its {} leased units", this.key, leaseTimeoutS,
+                    leasedUnits);
+            leasedUnits = 0;
+        }
+        persistLease();
+    }
+
+    /**
+     * Writes the current local lease size inside the database, in a dedicated transaction. Writes are serialized on
+     * {@link #leaseWriteLock} (and not on the RM monitor) and always write the latest value, so the last write always wins.
+     */
+    private void persistLease()
+    {
+        synchronized (leaseWriteLock)
+        {
+            DbConn cnx = null;
+            try
+            {
+                cnx = Helpers.getNewDbSession();
+                cnx.runUpdate("rmlease_update_units", leasedUnits, this.key, this.nodeId);
+                cnx.commit();
+            }
+            catch (RuntimeException e)
+            {
+                // Not an issue - the lease will be given back on a later release, or will expire if the node is dead.
+                jqmlogger.warn("Could not give back units of cluster resource manager " + this.key, e);
+            }
+            finally
+            {
+                Helpers.closeQuietly(cnx);
+            }
+        }
+    }
+
+    /**
+     * Tries to lease more units inside the database, in a dedicated transaction so as not to interfere with the poller transaction.
+     *
+     * @param min
+     *                  the lease is not changed if less than this can be leased.
+     * @param wanted
+     *                  the lease size to try to reach.
+     */
+    private void extendLease(int min, int wanted)
+    {
+        synchronized (leaseWriteLock)
+        {
+            DbConn cnx = Helpers.getNewDbSession();
+            try
+            {
+                // Lock all leases of this RM, so that nodes do not lease the same free units at the same time.
+                cnx.runUpdate("rmlease_lock_by_key", this.key);
+                int usedByOthers = cnx.runSelectSingle("rmlease_select_units_others", Integer.class, this.key, this.nodeId,
+                        this.leaseTimeoutS);
+
+                int newLease = Math.min(wanted, this.quantity - usedByOthers);
+                if (newLease >= min && newLease > leasedUnits)
+                {
+                    cnx.runUpdate("rmlease_update_units", newLease, this.key, this.nodeId);
+                    cnx.commit();
+                    jqmlogger.debug("Cluster RM {} has leased {} units (previously {}) - {} units are used by other nodes", this.key,
+                            newLease, leasedUnits, usedByOthers);
+                    leasedUnits = newLease;
+                }
+                else
+                {
+                    cnx.rollback();
+                }
+            }
+            finally
+            {
+                Helpers.closeQuietly(cnx);
+            }
+        }
+    }
+}
@@ -1,18 +1,18 @@
 package com.enioka.jqm.tools;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.enioka.jqm.api.JqmInvalidRequestException;
 import com.enioka.jqm.jdbc.DbConn;
 import com.enioka.jqm.model.JobInstance;
 import com.enioka.jqm.model.ResourceManager;
 
-import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,6 +20,8 @@ import org.slf4j.LoggerFactory;
  * A Resource Manager in which the resource is a list of items without order. Each JI may take 0 to n items. Items are attributed nominaly -
  * they are named. An environment variable of all attributed items is made available to the JI for when it runs. <br>
  * <br>
+ * Free items are kept inside a lock-free queue, and booked items are indexed by the JI which owns them, so booking and releasing only cost
+ * the number of items concerned, whatever the size of the list.<br>
  * Blocks once the resource is exhausted.<br>
  * This RM has no persistence - resources are counted in memory, and considered free on startup.<br>
  * By default it has 10 items named item01 to item10, and JI do NOT use any of them.
@@ -33,14 +35,34 @@ class DiscreteResourceManager extends ResourceManagerBase
     private static String PRM_CONSUMPTION = "consumption";
 
     /**
-     * The tokens, indexed by name. Boolean is true if available, false if booked.
+     * All the tokens, indexed by name.
      */
     private Map<String, Token> tokenRepository = new ConcurrentHashMap<String, Token>(10);
 
-    private class Token
+    /**
+     * The tokens which are not booked. {@link #freeCount} is its size (the queue does not have a fast size method).
+     */
+    private Queue<Token> freeTokens = new ConcurrentLinkedQueue<Token>();
+    private AtomicInteger freeCount = new AtomicInteger(0);
+
+    /**
+     * The booked tokens, indexed by the ID of the JI which owns them.
+     */
+    private Map<Integer, List<Token>> bookedTokens = new ConcurrentHashMap<Integer, List<Token>>();
+
+    private static class Token
     {
-        private AtomicBoolean free = new AtomicBoolean(true);
-        private int jiId = 0;
+        private final String name;
+
+        /**
+         * True once the item has been removed from configuration - it is then never made free again.
+         */
+        private volatile boolean removed = false;
+
+        private Token(String name)
+        {
+            this.name = name;
+        }
     }
 
     private int defaultConsumption;
@@ -64,7 +86,7 @@ class DiscreteResourceManager extends ResourceManagerBase
     }
 
     @Override
-    void refreshConfiguration(ResourceManager configuration)
+    synchronized void refreshConfiguration(ResourceManager configuration)
     {
         // Read configuration
         super.refreshConfiguration(configuration);
@@ -91,7 +113,12 @@ class DiscreteResourceManager extends ResourceManagerBase
         }
         for (String key : toRemove)
         {
-            this.tokenRepository.remove(key);
+            Token t = this.tokenRepository.remove(key);
+            t.removed = true; // Before removing it from the free list, so a concurrent release does not put it back.
+            if (this.freeTokens.remove(t))
+            {
+                this.freeCount.decrementAndGet();
+            }
         }
 
         // Add new items
@@ -99,7 +126,10 @@ class DiscreteResourceManager extends ResourceManagerBase
         {
             if (!tokenRepository.containsKey(newItem))
             {
-                this.tokenRepository.put(newItem, new Token());
+                Token t = new Token(newItem);
+                this.tokenRepository.put(newItem, t);
+                this.freeTokens.offer(t);
+                this.freeCount.incrementAndGet();
             }
         }
 
@@ -120,17 +150,18 @@ class DiscreteResourceManager extends ResourceManagerBase
             return BookingStatus.BOOKED; // Perf optim.
         }
 
-        Map<String, Token> booked = new HashMap<String, Token>();
-        for (Map.Entry<String, Token> e : this.tokenRepository.entrySet())
+        List<Token> booked = new ArrayList<Token>(slots);
+        while (booked.size() < slots)
         {
-            if (e.getValue().free.compareAndSet(true, false))
+            Token t = this.freeTokens.poll();
+            if (t == null)
             {
-                booked.put(e.getKey(), e.getValue());
-                e.getValue().jiId = ji.getId();
+                break;
             }
-            if (booked.size() == slots)
+            this.freeCount.decrementAndGet();
+            if (!t.removed)
             {
-                break;
+                booked.add(t);
             }
         }
 
@@ -139,15 +170,23 @@ class DiscreteResourceManager extends ResourceManagerBase
             // Failure.
             if (booked.size() > 0)
             {
-                for (Token e : booked.values())
-                {
-                    e.free.set(true);
-                }
+                free(booked);
                 return BookingStatus.FAILED; // If here there are items available, just not enough.
             }
             return BookingStatus.EXHAUSTED;
         }
-        ji.addEnvVar(String.format("JQM_RM_DISCRETE_%s_ITEMS", this.key.toUpperCase()), StringUtils.join(booked.keySet(), ","));
+
+        this.bookedTokens.put(ji.getId(), booked);
+        StringBuilder items = new StringBuilder(slots * 8);
+        for (Token t : booked)
+        {
+            if (items.length() > 0)
+            {
+                items.append(',');
+            }
+            items.append(t.name);
+        }
+        ji.addEnvVar(String.format("JQM_RM_DISCRETE_%s_ITEMS", this.key.toUpperCase()), items.toString());
         jqmlogger.debug("Booking {} items for RM {}", booked.size(), this.key);
         return BookingStatus.BOOKED;
     }
@@ -155,30 +194,30 @@ class DiscreteResourceManager extends ResourceManagerBase
     @Override
     void releaseResource(JobInstance ji)
     {
-        int released = 0;
-        for (Token e : this.tokenRepository.values())
+        List<Token> booked = this.bookedTokens.remove(ji.getId());
+        if (booked == null)
         {
-            if (!e.free.get() && e.jiId == ji.getId())
-            {
-                e.free.set(true);
-                released++;
-            }
+            return;
         }
-
-        jqmlogger.debug("Releasing {} items for RM {}", released, this.key);
+        free(booked);
+        jqmlogger.debug("Releasing {} items for RM {}", booked.size(), this.key);
     }
 
-    @Override
-    int getSlotsAvailable()
+    private void free(List<Token> tokens)
     {
-        int availableItems = 0;
-        for (Map.Entry<String, Token> e : this.tokenRepository.entrySet())
+        for (Token t : tokens)
         {
-            if (e.getValue().free.get())
+            if (!t.removed)
             {
-                availableItems++;
+                this.freeTokens.offer(t);
+                this.freeCount.incrementAndGet();
             }
         }
-        return availableItems / (this.defaultConsumption > 0 ? this.defaultConsumption : 1);
+    }
+
+    @Override
+    int getSlotsAvailable()
+    {
+        return Math.max(0, this.freeCount.get()) / (this.defaultConsumption > 0 ? this.defaultConsumption : 1);
     }
 }
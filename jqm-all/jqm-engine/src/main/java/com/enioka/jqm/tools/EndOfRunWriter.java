@@ -0,0 +1,200 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.enioka.jqm.jdbc.DbConn;
+
+/**
+ * Writes the results of ended job instances (history creation and job instance deletion) for the whole node, inside a single thread which
+ * groups them in JDBC batches with a single commit per batch. This saves a transaction per job instance when many job instances end at the
+ * same time.<br>
+ * A batch is written as soon as it is full, or when its first element has waited for the given time. The slots of the job instances are
+ * only released once their results are committed.<br>
+ * When the database is not available, results go to the usual engine delayed finalization mechanism.
+ */
+class EndOfRunWriter implements Runnable
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(EndOfRunWriter.class);
+
+    private final JqmEngine engine;
+    private final int batchSize;
+    private final int maxWaitMs;
+    private final LinkedBlockingQueue<RunningJobInstance> queue = new LinkedBlockingQueue<RunningJobInstance>();
+    private final Thread thread;
+    private boolean stopped = false;
+
+    EndOfRunWriter(JqmEngine engine, int batchSize, int maxWaitMs)
+    {
+        this.engine = engine;
+        this.batchSize = batchSize;
+        this.maxWaitMs = maxWaitMs;
+
+        this.thread = new Thread(this, "JQM end of run writer;;" + engine.getNode().getName());
+        this.thread.start();
+        jqmlogger.info("Job instance results will be written by batches of at most {} elements, waiting at most {}ms", batchSize,
+                maxWaitMs);
+    }
+
+    /**
+     * Queues the result of a job instance. If the writer is stopped, the result is written at once inside the calling thread.
+     */
+    void add(RunningJobInstance rji)
+    {
+        synchronized (this)
+        {
+            if (!stopped)
+            {
+                queue.add(rji);
+                return;
+            }
+        }
+        rji.endOfRunDb();
+    }
+
+    /**
+     * Writes all queued results then stops the writer thread.
+     */
+    void stop()
+    {
+        synchronized (this)
+        {
+            stopped = true;
+        }
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        List<RunningJobInstance> batch = new ArrayList<RunningJobInstance>(batchSize);
+        while (true)
+        {
+            boolean stopping;
+            synchronized (this)
+            {
+                stopping = stopped;
+            }
+
+            try
+            {
+                RunningJobInstance first = stopping ? queue.poll() : queue.poll(1, TimeUnit.SECONDS);
+                if (first == null)
+                {
+                    if (stopping)
+                    {
+                        break;
+                    }
+                    continue;
+                }
+
+                // Fill the batch with what is already there, then wait for more until the batch is full or too old.
+                batch.add(first);
+                long deadline = System.currentTimeMillis() + maxWaitMs;
+                queue.drainTo(batch, batchSize - batch.size());
+                while (batch.size() < batchSize && !stopping)
+                {
+                    long wait = deadline - System.currentTimeMillis();
+                    RunningJobInstance next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : null;
+                    if (next == null)
+                    {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // Only write what was already taken.
+            }
+
+            if (!batch.isEmpty())
+            {
+                flush(batch);
+                batch.clear();
+            }
+        }
+        jqmlogger.debug("End of run writer has stopped");
+    }
+
+    private void flush(List<RunningJobInstance> batch)
+    {
+        DbConn cnx = null;
+        try
+        {
+            cnx = Helpers.getNewDbSession();
+            RunningJobInstance.endOfRunDb(cnx, batch);
+            jqmlogger.debug("Results of {} job instances were written", batch.size());
+        }
+        catch (RuntimeException e)
+        {
+            Helpers.closeQuietly(cnx);
+            cnx = null;
+
+            if (Helpers.testDbFailure(e))
+            {
+                jqmlogger.error("connection to database lost - " + batch.size() + " job instances will need delayed finalization");
+                jqmlogger.trace("connection error was:", e);
+                for (RunningJobInstance rji : batch)
+                {
+                    this.engine.loaderFinalizationNeeded(rji);
+                }
+            }
+            else
+            {
+                // Find the culprit(s) by writing job instances one by one.
+                jqmlogger.warn("Could not write the results of a batch of job instances - trying one by one", e);
+                for (RunningJobInstance rji : batch)
+                {
+                    try
+                    {
+                        rji.endOfRunDb();
+                    }
+                    catch (RuntimeException e2)
+                    {
+                        jqmlogger.error("Result of job instance " + rji.getId() + " could not be written", e2);
+                        rji.releaseDeferredSlot();
+                    }
+                }
+            }
+            return;
+        }
+        finally
+        {
+            Helpers.closeQuietly(cnx);
+        }
+
+        for (RunningJobInstance rji : batch)
+        {
+            rji.endOfRunPersisted();
+        }
+    }
+}
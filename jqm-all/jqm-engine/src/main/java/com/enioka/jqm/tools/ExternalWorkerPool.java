@@ -0,0 +1,295 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of pre-started JVMs running {@link JqmSingleRunner#runWorker()}, used to run external job instances without paying for a JVM
+ * start and a JQM bootstrap each time. There is one pool per set of JVM options, as options cannot change once a JVM is started.<br>
+ * Workers receive job instance IDs on their standard input, and signal the end of each job instance with a marker line on their standard
+ * output. A worker runs only one job instance at a time, and is discarded after a given number of runs, when it dies (which is what
+ * happens on kill orders) or when it has been idle for too long.<br>
+ * Note that successive job instances run by the same worker share the same JVM: static variables of classes loaded outside of the payload
+ * class loader, system properties, and anything else set at JVM level are seen by the next job instances.<br>
+ * JVMs are always started outside of the pool lock, as this takes time.
+ */
+class ExternalWorkerPool
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(ExternalWorkerPool.class);
+
+    private final int idleSize;
+    private final int maxRuns;
+    private final long idleTimeoutMs;
+    private final Map<String, LinkedList<Worker>> idleWorkers = new HashMap<String, LinkedList<Worker>>();
+    private final Map<String, Integer> startingWorkers = new HashMap<String, Integer>();
+    private boolean stopped = false;
+    private final AtomicInteger workerCount = new AtomicInteger(0);
+
+    /**
+     * @param idleSize
+     *                          how many started workers are kept waiting for a job instance, per option set.
+     * @param maxRuns
+     *                          a worker is not reused after this many job instances.
+     * @param idleTimeoutMs
+     *                          idle workers are stopped after waiting this long for a job instance.
+     */
+    ExternalWorkerPool(int idleSize, int maxRuns, long idleTimeoutMs)
+    {
+        this.idleSize = idleSize;
+        this.maxRuns = maxRuns;
+        this.idleTimeoutMs = idleTimeoutMs;
+        jqmlogger.info("External job instances will run inside pooled JVMs - {} idle JVMs kept per option set for at most {}ms, "
+                + "each reused {} times", idleSize, idleTimeoutMs, maxRuns);
+    }
+
+    /**
+     * Takes a started worker for the given JVM options, or starts one if none is idle.
+     */
+    Worker acquire(String opts) throws IOException
+    {
+        synchronized (this)
+        {
+            LinkedList<Worker> idle = getIdle(opts);
+            while (!idle.isEmpty())
+            {
+                Worker res = idle.poll();
+                if (res.isAlive())
+                {
+                    return res;
+                }
+                jqmlogger.warn("Idle external worker {} has died and is discarded", res.name);
+                res.close();
+            }
+        }
+        return new Worker(opts);
+    }
+
+    /**
+     * Gives back a worker after a run. It is put back inside the pool only if it is healthy, and new workers are started if needed so that
+     * the next job instances with the same options do not wait.
+     */
+    void release(Worker w, boolean healthy)
+    {
+        int toStart;
+        synchronized (this)
+        {
+            LinkedList<Worker> idle = getIdle(w.opts);
+            if (healthy && !stopped && w.runs < maxRuns && idle.size() < idleSize && w.isAlive())
+            {
+                w.idleSince = System.currentTimeMillis();
+                idle.add(w);
+            }
+            else
+            {
+                jqmlogger.debug("External worker {} is recycled after {} runs", w.name, w.runs);
+                w.close();
+            }
+
+            Integer starting = startingWorkers.get(w.opts);
+            toStart = stopped ? 0 : idleSize - idle.size() - (starting == null ? 0 : starting);
+            if (toStart <= 0)
+            {
+                return;
+            }
+            startingWorkers.put(w.opts, (starting == null ? 0 : starting) + toStart);
+        }
+
+        // Starting a JVM is slow: done outside the lock.
+        for (int i = 0; i < toStart; i++)
+        {
+            Worker nw = null;
+            try
+            {
+                nw = new Worker(w.opts);
+            }
+            catch (IOException e)
+            {
+                jqmlogger.warn("Could not pre-start an external worker", e);
+            }
+
+            synchronized (this)
+            {
+                startingWorkers.put(w.opts, startingWorkers.get(w.opts) - 1);
+                if (nw == null)
+                {
+                    continue;
+                }
+                LinkedList<Worker> idle = getIdle(w.opts);
+                if (stopped || idle.size() >= idleSize)
+                {
+                    nw.close();
+                }
+                else
+                {
+                    nw.idleSince = System.currentTimeMillis();
+                    idle.add(nw);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the workers which have been idle for longer than the idle timeout. Called regularly by the engine.
+     */
+    synchronized void evictIdle()
+    {
+        long limit = System.currentTimeMillis() - idleTimeoutMs;
+        for (LinkedList<Worker> idle : idleWorkers.values())
+        {
+            for (Iterator<Worker> it = idle.iterator(); it.hasNext();)
+            {
+                Worker w = it.next();
+                if (w.idleSince < limit)
+                {
+                    jqmlogger.debug("External worker {} has been idle for too long and is stopped", w.name);
+                    it.remove();
+                    w.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops all idle workers. Busy workers are stopped when released.
+     */
+    synchronized void stop()
+    {
+        stopped = true;
+        for (LinkedList<Worker> idle : idleWorkers.values())
+        {
+            for (Worker w : idle)
+            {
+                w.close();
+            }
+            idle.clear();
+        }
+    }
+
+    /**
+     * Must be called while holding the pool lock.
+     */
+    private LinkedList<Worker> getIdle(String opts)
+    {
+        LinkedList<Worker> idle = idleWorkers.get(opts);
+        if (idle == null)
+        {
+            idle = new LinkedList<Worker>();
+            idleWorkers.put(opts, idle);
+        }
+        return idle;
+    }
+
+    /**
+     * A started JVM waiting for job instances.
+     */
+    class Worker
+    {
+        private final String opts;
+        private final String name;
+        private final Process process;
+        private final Writer stdin;
+        private final BufferedReader stdout;
+        private int runs = 0;
+        private long idleSince = 0;
+
+        private Worker(String opts) throws IOException
+        {
+            this.opts = opts;
+            this.name = "worker" + workerCount.incrementAndGet();
+            jqmlogger.debug("Starting external worker {} with options {}", name, opts);
+            this.process = RunningExternalJobInstance.getProcessBuilder(opts, "-worker").start();
+            this.stdin = new OutputStreamWriter(process.getOutputStream(), "UTF8");
+            this.stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF8"));
+        }
+
+        /**
+         * Runs a job instance inside the worker, and blocks until it ends. All the output of the worker during the run is written to the
+         * given log.
+         *
+         * @return true if the worker has signaled the end of the job instance, false if it has died before.
+         */
+        boolean run(int jobId, Writer log) throws IOException
+        {
+            runs++;
+            stdin.write(jobId + "\n");
+            stdin.flush();
+
+            String endLine = JqmSingleRunner.WORKER_END_MARKER + jobId;
+            String linesep = System.getProperty("line.separator");
+            String buf;
+            while ((buf = stdout.readLine()) != null)
+            {
+                if (buf.endsWith(endLine))
+                {
+                    if (buf.length() > endLine.length())
+                    {
+                        // Payload output without a final new line.
+                        log.write(buf.substring(0, buf.length() - endLine.length()) + linesep);
+                    }
+                    return true;
+                }
+                log.write(buf + linesep);
+                jqmlogger.debug(buf);
+            }
+
+            // End of stream: the JVM is gone.
+            try
+            {
+                jqmlogger.debug("External worker {} has exited with RC {} during job instance {}", name, process.waitFor(), jobId);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        private boolean isAlive()
+        {
+            try
+            {
+                process.exitValue();
+                return false;
+            }
+            catch (IllegalThreadStateException e)
+            {
+                return true;
+            }
+        }
+
+        private void close()
+        {
+            // Closing the input is the normal stop order for a worker.
+            IOUtils.closeQuietly(stdin);
+            IOUtils.closeQuietly(stdout);
+            process.destroy();
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package com.enioka.jqm.tools;
 
-import java.sql.ResultSet;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -15,15 +14,27 @@ import org.slf4j.LoggerFactory;
  * Highlander is when only a single instance of the same job definition can run at the same time on all queues.<br>
  * The resource is therefore defined here as "a single slot per job definition".<br>
  * <br>
- * This RM does not actually change anything in database - it simply holds a lock during job analysis. To hold this lock it must open a
- * connection of its own - that way locks can be granular. If it used the poller connection instead, locks would only be released when it is
- * committed as it is the only way to release them, and that could cause deadlocks.
+ * This RM is shared by all the pollers of a node. It keeps in memory the highlander job definitions booked or running on the node, so most
+ * refusals do not need the database at all. Other nodes are dealt with through a lease on the job definition row (column HIGHLANDER_JI),
+ * taken with a single conditional update which is committed at once - so no lock is held during the rest of the polling loop. A lease is
+ * free again as soon as its job instance has left the JOB_INSTANCE table (end of run, including crashes cleaned on node restart), so
+ * there is nothing to do at the end of a run. The update also checks there is no attributed or running instance.<br>
+ * The lease is committed before the poller marks the JI as ATTRIBUTED, so all the nodes of a cluster must use the lease: engines which do
+ * not know it are refused by the schema compatibility check (schema version 6 and later).<br>
+ * A slot taken on this node is forgotten as soon as the booking is rolled back, including when the poller fails to claim the JI.<br>
+ * All the database work is done on a single connection owned by the RM, not on the poller connection (which is only committed at the end
+ * of the loop).
  */
 class HighlanderResourceManager extends ResourceManagerBase
 {
     private static Logger jqmlogger = LoggerFactory.getLogger(HighlanderResourceManager.class);
 
-    private Map<JobInstance, DbConn> openLocks = new HashMap<JobInstance, DbConn>();
+    /**
+     * Highlander JD ID -> ID of the JI booked or running on this node.
+     */
+    private Map<Integer, Integer> localSlots = new HashMap<Integer, Integer>();
+
+    private DbConn leaseCnx = null;
 
     HighlanderResourceManager(ResourceManager rm)
     {
@@ -38,59 +49,104 @@ class HighlanderResourceManager extends ResourceManagerBase
     }
 
     @Override
-    BookingStatus bookResource(JobInstance ji, DbConn cnx)
+    synchronized BookingStatus bookResource(JobInstance ji, DbConn cnx)
     {
         if (!ji.getJD().isHighlander())
         {
             // Non-highlander JI do not need anything from this RM.
             return BookingStatus.BOOKED;
         }
-        cnx = Helpers.getNewDbSession();
+        int jdId = ji.getJD().getId();
 
-        // Lock the definition in the DB - this is a convention for highlander JI between clients and engine.
-        jqmlogger.trace("Locking JI ID {} of rank {} - {}", ji.getId(), ji.getInternalPosition(), ji.getJD().getApplicationName());
-        ResultSet rs = cnx.runSelect(true, "jd_select_by_id_lock", ji.getJD().getId());
+        // Already taken on this node - no need to ask the database.
+        Integer holder = localSlots.get(jdId);
+        if (holder != null && holder != ji.getId())
+        {
+            jqmlogger.trace("Resource reservation KO for JI {} - {} - one instance is already running on this node", ji.getId(),
+                    ji.getJD().getApplicationName());
+            return BookingStatus.FAILED;
+        }
+
+        // Take the cluster-wide slot.
+        jqmlogger.trace("Taking highlander slot for JI ID {} of rank {} - {}", ji.getId(), ji.getInternalPosition(),
+                ji.getJD().getApplicationName());
+        int taken;
+        try
+        {
+            DbConn c = getLeaseConnection();
+            taken = c.runUpdate("jd_update_highlander_take", ji.getId(), jdId, ji.getId(), jdId, jdId, ji.getId()).nbUpdated;
+            c.commit();
+        }
+        catch (RuntimeException e)
+        {
+            closeLeaseConnection();
+            throw e;
+        }
 
-        // We have the lock. Check if there are already running instances.
-        Integer runningCount = cnx.runSelectSingle("ji_select_existing_highlander_2", Integer.class, ji.getJD().getId());
-        if (runningCount != 0)
+        if (taken == 0)
         {
-            // Already running, so skip this JI.
-            cnx.closeQuietly(rs); // release the lock.
-            cnx.rollback();
-            cnx.close();
             jqmlogger.trace("Resource reservation KO for JI {} - {} - one instance is already running", ji.getId(),
                     ji.getJD().getApplicationName());
             return BookingStatus.FAILED;
         }
 
-        // If here, no running instance and lock is held. It will only be released when commit or rollback is called on the connection.
         jqmlogger.trace("Resourced reserved for JI {} - {}", ji.getId(), ji.getJD().getApplicationName());
-        openLocks.put(ji, cnx);
+        localSlots.put(jdId, ji.getId());
         return BookingStatus.BOOKED;
     }
 
     @Override
-    void rollbackResourceBooking(JobInstance ji, DbConn cnx)
+    synchronized void rollbackResourceBooking(JobInstance ji, DbConn cnx)
     {
-        cnx = openLocks.remove(ji);
-        if (cnx != null)
+        if (!ji.getJD().isHighlander() || !Integer.valueOf(ji.getId()).equals(localSlots.get(ji.getJD().getId())))
         {
-            jqmlogger.trace("Rollbacking resource reservation for JI {} on app {}", ji.getId(), ji.getJD().getApplicationName());
-            cnx.rollback();
-            cnx.close();
+            return;
+        }
+        jqmlogger.trace("Rollbacking resource reservation for JI {} on app {}", ji.getId(), ji.getJD().getApplicationName());
+        localSlots.remove(ji.getJD().getId());
+
+        try
+        {
+            DbConn c = getLeaseConnection();
+            c.runUpdate("jd_update_highlander_release", ji.getJD().getId(), ji.getId());
+            c.commit();
+        }
+        catch (RuntimeException e)
+        {
+            // Not an issue: the slot is still usable by this JI, and becomes free for the others once it has run.
+            closeLeaseConnection();
+            jqmlogger.warn("Could not release highlander slot of JI " + ji.getId(), e);
         }
     }
 
     @Override
-    void commitResourceBooking(JobInstance ji, DbConn cnx)
+    synchronized void releaseResource(JobInstance ji)
     {
-        cnx = openLocks.remove(ji);
-        if (cnx != null)
+        // The DB lease ends with the JI itself.
+        if (ji.getJD().isHighlander() && Integer.valueOf(ji.getId()).equals(localSlots.get(ji.getJD().getId())))
         {
-            jqmlogger.trace("Committing resource reservation for JI {} on app {}", ji.getId(), ji.getJD().getApplicationName());
-            cnx.commit();
-            cnx.close();
+            localSlots.remove(ji.getJD().getId());
         }
     }
+
+    @Override
+    synchronized void stop()
+    {
+        closeLeaseConnection();
+    }
+
+    private DbConn getLeaseConnection()
+    {
+        if (leaseCnx == null)
+        {
+            leaseCnx = Helpers.getNewDbSession();
+        }
+        return leaseCnx;
+    }
+
+    private void closeLeaseConnection()
+    {
+        Helpers.closeQuietly(leaseCnx);
+        leaseCnx = null;
+    }
 }
@@ -0,0 +1,363 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.enioka.jqm.jdbc.DbConn;
+import com.enioka.jqm.model.JobInstance;
+import com.enioka.jqm.model.ResourceManager;
+
+/**
+ * A Resource Manager which books the memory and CPU of the host itself. Each JI declares (usually through its JD parameters) how much
+ * memory (MB) and CPU (thousandths of a core) it expects to use, and is only launched if the booked total stays within the capacity of the
+ * host. Blocks once the resource is exhausted.<br>
+ * Capacity is read on startup from the Linux cgroup limits of the engine (v1 or v2) when there are some, from /proc/meminfo and the
+ * processor count otherwise. It can also be set by parameters. Memory is also checked against the live free memory of the host (or
+ * cgroup), so memory used by anything else than the booked JIs is taken into account. JIs running inside the engine process share its
+ * heap, so for them memory is also checked against the free heap of the engine.<br>
+ * This RM has no persistence - resources are counted in memory, and considered free on startup.<br>
+ * By default, JI do NOT use any resource - only job instances with the right parameters are concerned.
+ */
+class HostCapacityResourceManager extends ResourceManagerBase
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(HostCapacityResourceManager.class);
+
+    private static String PRM_ROOT = "com.enioka.jqm.rm.host.";
+    private static String PRM_MEMORY = "memory";
+    private static String PRM_CPU = "cpu";
+    private static String PRM_MEMORY_CONSUMPTION = "memoryconsumption";
+    private static String PRM_CPU_CONSUMPTION = "cpuconsumption";
+
+    /**
+     * Live free memory is not read more often than this.
+     */
+    private static final long LIVE_READ_PERIOD_MS = 1000;
+
+    private static final long MB = 1024 * 1024;
+
+    private long memoryCapacityMb;
+    private long cpuCapacity;
+    private int defaultMemoryConsumption;
+    private int defaultCpuConsumption;
+
+    private long bookedMemoryMb = 0;
+    private long bookedCpu = 0;
+    private Map<Integer, int[]> runningJobs = new HashMap<Integer, int[]>(10);
+
+    private long liveFreeMemoryMb = Long.MAX_VALUE;
+    private long liveReadTime = 0;
+
+    /**
+     * Memory booked since the last read of the live free memory - not yet visible in that value.
+     */
+    private long bookedSinceLiveReadMb = 0;
+
+    /**
+     * Memory booked by in-process JIs since the last read of the live free memory - not yet visible in the heap usage.
+     */
+    private long heapBookedSinceLiveReadMb = 0;
+
+    HostCapacityResourceManager(ResourceManager rm)
+    {
+        super(rm);
+    }
+
+    @Override
+    protected void setDefaultProperties()
+    {
+        this.currentProperties.put(PRM_ROOT + PRM_MEMORY, "auto");
+        this.currentProperties.put(PRM_ROOT + PRM_CPU, "auto");
+        this.currentProperties.put(PRM_ROOT + PRM_MEMORY_CONSUMPTION, "0");
+        this.currentProperties.put(PRM_ROOT + PRM_CPU_CONSUMPTION, "0");
+    }
+
+    @Override
+    String getParameterRoot()
+    {
+        return PRM_ROOT;
+    }
+
+    @Override
+    synchronized void refreshConfiguration(ResourceManager configuration)
+    {
+        // Read configuration
+        super.refreshConfiguration(configuration);
+        String memory = getStringParameter(PRM_MEMORY);
+        String cpu = getStringParameter(PRM_CPU);
+        this.memoryCapacityMb = "auto".equals(memory) ? detectMemoryCapacityMb() : Long.parseLong(memory);
+        this.cpuCapacity = "auto".equals(cpu) ? detectCpuCapacity() : Long.parseLong(cpu);
+        this.defaultMemoryConsumption = getIntegerParameter(PRM_MEMORY_CONSUMPTION);
+        this.defaultCpuConsumption = getIntegerParameter(PRM_CPU_CONSUMPTION);
+
+        // Log
+        jqmlogger.info(
+                "\tConfigured host resource manager [{}] with {} MB of memory and {} thousandths of CPU - currently booked {} MB and {}",
+                this.key, this.memoryCapacityMb, this.cpuCapacity, this.bookedMemoryMb, this.bookedCpu);
+    }
+
+    @Override
+    BookingStatus bookResource(JobInstance ji, DbConn cnx)
+    {
+        int memory = this.getIntegerParameter(PRM_MEMORY_CONSUMPTION, ji, true);
+        int cpu = this.getIntegerParameter(PRM_CPU_CONSUMPTION, ji, true);
+        if (memory <= 0 && cpu <= 0)
+        {
+            return BookingStatus.BOOKED;
+        }
+
+        boolean inProcess = !ji.getJD().isExternal();
+        synchronized (this)
+        {
+            if (bookedMemoryMb + memory > memoryCapacityMb || bookedCpu + cpu > cpuCapacity
+                    || (memory > 0 && memory > getLiveFreeMemoryMb()) || (inProcess && memory > 0 && memory > getFreeHeapMb()))
+            {
+                jqmlogger.trace("Host RM {} refuses JI {} asking for {} MB and {} CPU", this.key, ji.getId(), memory, cpu);
+                return getSlotsAvailable() > 0 ? BookingStatus.FAILED : BookingStatus.EXHAUSTED;
+            }
+
+            // If here, booking has succeeded.
+            bookedMemoryMb += memory;
+            bookedCpu += cpu;
+            bookedSinceLiveReadMb += Math.max(0, memory);
+            if (inProcess)
+            {
+                heapBookedSinceLiveReadMb += Math.max(0, memory);
+            }
+            runningJobs.put(ji.getId(), new int[] { memory, cpu });
+            return BookingStatus.BOOKED;
+        }
+    }
+
+    @Override
+    synchronized void releaseResource(JobInstance ji)
+    {
+        int[] booked = runningJobs.remove(ji.getId());
+        if (booked == null)
+        {
+            return;
+        }
+        jqmlogger.trace("Releasing {} MB and {} CPU for RM {}", booked[0], booked[1], this.key);
+        bookedMemoryMb -= booked[0];
+        bookedCpu -= booked[1];
+        liveReadTime = 0; // memory is likely freed now.
+    }
+
+    /**
+     * How many JI with the default consumption could start, given both the booked resources and the live free memory.
+     */
+    @Override
+    synchronized int getSlotsAvailable()
+    {
+        long res = Integer.MAX_VALUE;
+        if (defaultMemoryConsumption > 0)
+        {
+            long freeMb = Math.min(memoryCapacityMb - bookedMemoryMb, getLiveFreeMemoryMb());
+            res = Math.min(res, Math.max(0, freeMb) / defaultMemoryConsumption);
+        }
+        if (defaultCpuConsumption > 0)
+        {
+            res = Math.min(res, Math.max(0, cpuCapacity - bookedCpu) / defaultCpuConsumption);
+        }
+        return (int) res;
+    }
+
+    /**
+     * The last read live free memory, minus the memory booked since that read (so that bookings made inside the same read period do not
+     * all get the same free memory).
+     */
+    private long getLiveFreeMemoryMb()
+    {
+        long now = System.currentTimeMillis();
+        if (now - liveReadTime > LIVE_READ_PERIOD_MS)
+        {
+            liveFreeMemoryMb = detectFreeMemoryMb();
+            liveReadTime = now;
+            bookedSinceLiveReadMb = 0;
+            heapBookedSinceLiveReadMb = 0;
+        }
+        return liveFreeMemoryMb == Long.MAX_VALUE ? Long.MAX_VALUE : liveFreeMemoryMb - bookedSinceLiveReadMb;
+    }
+
+    /**
+     * The heap the engine may still allocate (max heap minus the heap already used), minus the memory booked by in-process JIs since the
+     * last live read. Host or cgroup memory does not protect in-process JIs from running out of heap.
+     */
+    private long getFreeHeapMb()
+    {
+        getLiveFreeMemoryMb(); // Resets the in-process bookings with the live read.
+        Runtime rt = Runtime.getRuntime();
+        return (rt.maxMemory() - (rt.totalMemory() - rt.freeMemory())) / MB - heapBookedSinceLiveReadMb;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Host capacity detection
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static long detectMemoryCapacityMb()
+    {
+        long res = Long.MAX_VALUE;
+
+        // Container (or any cgroup) limit.
+        Long limit = readLong("/sys/fs/cgroup/memory.max"); // v2
+        if (limit == null)
+        {
+            limit = readLong("/sys/fs/cgroup/memory/memory.limit_in_bytes"); // v1 - huge value when unlimited.
+        }
+        if (limit != null)
+        {
+            res = limit / MB;
+        }
+
+        // Host memory.
+        Long total = readMemInfo("MemTotal:");
+        if (total != null)
+        {
+            res = Math.min(res, total / 1024);
+        }
+
+        // Last resort: the memory of this JVM, as in-process JIs share it.
+        if (res == Long.MAX_VALUE)
+        {
+            res = Runtime.getRuntime().maxMemory() / MB;
+        }
+        return res;
+    }
+
+    private static long detectFreeMemoryMb()
+    {
+        long res = Long.MAX_VALUE;
+
+        Long limit = readLong("/sys/fs/cgroup/memory.max");
+        Long current = readLong("/sys/fs/cgroup/memory.current");
+        if (limit == null || current == null)
+        {
+            limit = readLong("/sys/fs/cgroup/memory/memory.limit_in_bytes");
+            current = readLong("/sys/fs/cgroup/memory/memory.usage_in_bytes");
+        }
+        if (limit != null && current != null)
+        {
+            res = (limit - current) / MB;
+        }
+
+        Long available = readMemInfo("MemAvailable:");
+        if (available != null)
+        {
+            res = Math.min(res, available / 1024);
+        }
+        return res;
+    }
+
+    private static long detectCpuCapacity()
+    {
+        // v2: "quota period" or "max period"
+        String cpuMax = readFirstLine("/sys/fs/cgroup/cpu.max");
+        if (cpuMax != null)
+        {
+            String[] segments = cpuMax.split(" ");
+            if (segments.length == 2 && !"max".equals(segments[0]))
+            {
+                return Long.parseLong(segments[0]) * 1000 / Long.parseLong(segments[1]);
+            }
+        }
+        else
+        {
+            // v1: quota is -1 when unlimited.
+            Long quota = readLong("/sys/fs/cgroup/cpu/cpu.cfs_quota_us");
+            Long period = readLong("/sys/fs/cgroup/cpu/cpu.cfs_period_us");
+            if (quota != null && period != null && quota > 0 && period > 0)
+            {
+                return quota * 1000 / period;
+            }
+        }
+
+        return Runtime.getRuntime().availableProcessors() * 1000L;
+    }
+
+    /**
+     * @return the value of the "key: value kB" line of /proc/meminfo, in kB. Null if not available.
+     */
+    private static Long readMemInfo(String key)
+    {
+        File f = new File("/proc/meminfo");
+        if (!f.canRead())
+        {
+            return null;
+        }
+        try
+        {
+            for (String line : FileUtils.readLines(f))
+            {
+                if (line.startsWith(key))
+                {
+                    return Long.parseLong(line.substring(key.length()).replace("kB", "").trim());
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            jqmlogger.debug("Could not read /proc/meminfo", e);
+        }
+        catch (NumberFormatException e)
+        {
+            jqmlogger.debug("Could not parse /proc/meminfo", e);
+        }
+        return null;
+    }
+
+    private static Long readLong(String path)
+    {
+        String line = readFirstLine(path);
+        if (line == null)
+        {
+            return null;
+        }
+        try
+        {
+            return Long.parseLong(line);
+        }
+        catch (NumberFormatException e)
+        {
+            // "max" means no limit.
+            return null;
+        }
+    }
+
+    private static String readFirstLine(String path)
+    {
+        File f = new File(path);
+        if (!f.canRead())
+        {
+            return null;
+        }
+        try
+        {
+            return FileUtils.readFileToString(f).trim().split("\n")[0].trim();
+        }
+        catch (IOException e)
+        {
+            jqmlogger.debug("Could not read " + path, e);
+            return null;
+        }
+    }
+}
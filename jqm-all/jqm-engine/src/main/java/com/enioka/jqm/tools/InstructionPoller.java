@@ -0,0 +1,104 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.enioka.jqm.jdbc.DbConn;
+
+/**
+ * Only started when instructions are cached (cacheInstructions parameter). It refreshes the instruction table of the
+ * {@link RunningJobInstanceManager} on a short period, so that kill, pause and priority changes reach the payloads without waiting for
+ * the (much longer) internal poller period. Only instructions which have changed since the previous read are sent to the trackers.
+ */
+class InstructionPoller implements Runnable
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(InstructionPoller.class);
+
+    /**
+     * Time to wait before trying to read again after a database failure.
+     */
+    private static final long RETRY_MS = 10000;
+
+    private boolean run = true;
+    private JqmEngine engine;
+    private long period;
+    private Semaphore loop = new Semaphore(0);
+
+    InstructionPoller(JqmEngine engine, long period)
+    {
+        this.engine = engine;
+        this.period = period;
+    }
+
+    void stop()
+    {
+        jqmlogger.info("Instruction poller has received a stop request");
+        this.run = false;
+        this.loop.release(1);
+    }
+
+    @Override
+    public void run()
+    {
+        Thread.currentThread().setName("INSTRUCTION_POLLER;polling;");
+        jqmlogger.info("Start of the instruction poller - instructions will be read every " + period + "ms");
+        DbConn cnx = null;
+
+        while (run)
+        {
+            long wait = period;
+            try
+            {
+                if (cnx == null)
+                {
+                    cnx = Helpers.getNewDbSession();
+                }
+                this.engine.getRunningJobInstanceManager().readInstructions(cnx, this.engine.getNode().getId(), false);
+                cnx.commit();
+            }
+            catch (RuntimeException e)
+            {
+                Helpers.closeQuietly(cnx);
+                cnx = null;
+                if (!Helpers.testDbFailure(e))
+                {
+                    throw e;
+                }
+
+                jqmlogger.warn("connection to database lost - instruction poller will retry in " + RETRY_MS + "ms");
+                jqmlogger.trace("connection error was:", e.getCause());
+                wait = RETRY_MS;
+            }
+
+            try
+            {
+                loop.tryAcquire(wait, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                run = false;
+            }
+        }
+
+        Helpers.closeQuietly(cnx);
+        jqmlogger.info("End of the instruction poller");
+    }
+}
@@ -15,8 +15,6 @@
  */
 package com.enioka.jqm.tools;
 
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.Calendar;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
@@ -26,11 +24,9 @@ import javax.naming.spi.NamingManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.enioka.jqm.jdbc.DatabaseException;
 import com.enioka.jqm.jdbc.DbConn;
 import com.enioka.jqm.jdbc.NoResultException;
 import com.enioka.jqm.model.GlobalParameter;
-import com.enioka.jqm.model.Instruction;
 import com.enioka.jqm.model.Node;
 
 /**
@@ -128,9 +124,19 @@ class InternalPoller implements Runnable
                 cnx.runUpdate("node_update_alive_by_id", node.getId());
                 cnx.commit();
 
+                // Global parameters are read once per loop, then served from memory to the rest of the engine.
+                this.engine.refreshGlobalParameters(cnx);
+
                 // Have queue bindings changed, or is engine disabled?
                 this.engine.syncPollers(cnx, node);
 
+                // Have job definitions, queues, class loaders or nodes changed (or is it time for a full reload)?
+                if (this.engine.getMetadataCache().refreshIfChanged(cnx))
+                {
+                    jqmlogger.debug("Metadata (job definitions, queues, class loaders, nodes) was reloaded");
+                    this.engine.getRunnerManager().retainJobDefinitions(this.engine.getMetadataCache().getJobDefIds());
+                }
+
                 // Should JNDI cache be purged?
                 Calendar bflkpm = Calendar.getInstance();
                 int i = cnx.runSelectSingle("jndi_select_count_changed", Integer.class, lastJndiPurge, lastJndiPurge);
@@ -149,31 +155,19 @@ class InternalPoller implements Runnable
                     }
                 }
 
-                // Should job instances be killed or changed priorities?
-                try
+                // Should job instances be killed or changed priorities? The result is also kept in memory for the payload API.
+                this.engine.getRunningJobInstanceManager().readInstructions(cnx, node.getId(), true);
+
+                // Resource managers may have things to give back.
+                for (ResourceManagerBase rm : this.engine.getResourceManagers())
                 {
-                    ResultSet rs = cnx.runSelect("ji_select_instructions_by_node", node.getId());
-                    while (rs.next())
-                    {
-                        Integer jiid = rs.getInt(1);
-                        String instr = rs.getString(2);
-                        Instruction instruction;
-                        try
-                        {
-                            instruction = Instruction.valueOf(instr);
-                        }
-                        catch (IllegalArgumentException ex2)
-                        {
-                            jqmlogger.warn("An unknown instruction was found and is ignored: " + instr);
-                            continue;
-                        }
-
-                        this.engine.getRunningJobInstanceManager().handleInstruction(jiid, instruction);
-                    }
+                    rm.onInternalPoll();
                 }
-                catch (SQLException e)
+
+                // Idle external workers should not be kept forever.
+                if (this.engine.getExternalWorkerPool() != null)
                 {
-                    throw new DatabaseException(e);
+                    this.engine.getExternalWorkerPool().evictIdle();
                 }
 
                 // All engine pollings done!
@@ -3,8 +3,11 @@ package com.enioka.jqm.tools;
 import java.io.File;
 import java.io.IOException;
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import javax.naming.NamingException;
 import javax.naming.spi.NamingManager;
@@ -16,11 +19,11 @@ import com.enioka.jqm.api.JqmClient;
 import com.enioka.jqm.api.JqmClientException;
 import com.enioka.jqm.api.JqmClientFactory;
 import com.enioka.jqm.api.JqmKillException;
-import com.enioka.jqm.api.Query;
 import com.enioka.jqm.jdbc.DbConn;
 import com.enioka.jqm.jdbc.NoResultException;
 import com.enioka.jqm.model.GlobalParameter;
 import com.enioka.jqm.model.Instruction;
+import com.enioka.jqm.model.JobDef;
 import com.enioka.jqm.model.JobInstance;
 import com.enioka.jqm.model.Message;
 import com.enioka.jqm.model.State;
@@ -34,12 +37,24 @@ class JobInstanceEngineApi implements JobManager
 {
     private static Logger jqmlogger = LoggerFactory.getLogger(JobInstanceEngineApi.class);
 
+    /**
+     * Max number of seconds between two counts of the awaited job instances when they all run inside this engine.
+     */
+    private static final int LOCAL_RECHECK_PERIOD = 10;
+
     private JobInstance ji;
+    private JqmEngine engine;
     private Calendar lastPeek = null;
+    private Map<String, Integer> childQueues = new HashMap<String, Integer>();
 
-    JobInstanceEngineApi(JobInstance ji)
+    /**
+     * @param engine
+     *                   the engine running the job instance. Null when there is no engine (single runner).
+     */
+    JobInstanceEngineApi(JobInstance ji, JqmEngine engine)
     {
         this.ji = ji;
+        this.engine = engine;
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -56,6 +71,13 @@ class JobInstanceEngineApi implements JobManager
     @Override
     public void sendMsg(String msg)
     {
+        PayloadMessageBuffer buffer = this.engine == null ? null : this.engine.getPayloadMessageBuffer();
+        if (buffer != null)
+        {
+            buffer.sendMsg(ji.getId(), msg);
+            return;
+        }
+
         DbConn cnx = Helpers.getNewDbSession();
         try
         {
@@ -77,10 +99,17 @@ class JobInstanceEngineApi implements JobManager
     @Override
     public void sendProgress(Integer msg)
     {
+        this.ji.setProgress(msg); // Not persisted, but useful to the Loader.
+        PayloadMessageBuffer buffer = this.engine == null ? null : this.engine.getPayloadMessageBuffer();
+        if (buffer != null)
+        {
+            buffer.sendProgress(ji.getId(), msg);
+            return;
+        }
+
         DbConn cnx = Helpers.getNewDbSession();
         try
         {
-            this.ji.setProgress(msg); // Not persisted, but useful to the Loader.
             cnx.runUpdate("jj_update_progress_by_id", msg, ji.getId());
             cnx.commit();
         }
@@ -110,7 +139,9 @@ class JobInstanceEngineApi implements JobManager
             jr.setParameters(parameters);
         }
 
-        return getJqmClient().enqueue(jr);
+        int res = getJqmClient().enqueue(jr);
+        signalLocalPollers(applicationName);
+        return res;
     }
 
     @Override
@@ -125,43 +156,96 @@ class JobInstanceEngineApi implements JobManager
     @Override
     public void waitChild(int id)
     {
-        JqmClient c = getJqmClient();
-        Query q = Query.create().setQueryHistoryInstances(false).setQueryLiveInstances(true).setJobInstanceId(id);
+        waitForChildren("ji_select_count_by_id", id, false);
+    }
 
-        while (!c.getJobs(q).isEmpty())
+    @Override
+    public void waitChildren()
+    {
+        waitForChildren("ji_select_count_by_parent", ji.getId(), true);
+    }
+
+    /**
+     * Waits until the given count of live instances is zero. Only the count is read, never the instances themselves. When the awaited
+     * instances all run inside this engine, the database is only queried again once one of them has ended (the manager signals it), or
+     * every {@link #LOCAL_RECHECK_PERIOD} seconds as a safety net. Otherwise the count is read every second.
+     */
+    private void waitForChildren(String countQuery, int key, boolean byParent)
+    {
+        RunningJobInstanceManager manager = this.engine != null ? this.engine.getRunningJobInstanceManager() : null;
+        Semaphore ended = new Semaphore(0);
+        if (manager != null)
         {
-            try
+            ended = byParent ? manager.registerChildEndWaiter(key) : manager.registerEndWaiter(key);
+        }
+
+        try
+        {
+            int live = countLive(countQuery, key);
+            int sinceLastCount = 0;
+            while (live > 0)
             {
-                Thread.sleep(1000);
-                handleInstructions();
+                boolean signaled;
+                try
+                {
+                    signaled = ended.tryAcquire(1000, TimeUnit.MILLISECONDS);
+                    handleInstructions();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+
+                sinceLastCount++;
+                if (signaled || sinceLastCount >= LOCAL_RECHECK_PERIOD || !allRunningLocally(manager, key, byParent, live))
+                {
+                    ended.drainPermits();
+                    live = countLive(countQuery, key);
+                    sinceLastCount = 0;
+                }
             }
-            catch (InterruptedException e)
+        }
+        finally
+        {
+            if (manager != null)
             {
-                Thread.currentThread().interrupt();
-                break;
+                if (byParent)
+                {
+                    manager.unregisterChildEndWaiter(key, ended);
+                }
+                else
+                {
+                    manager.unregisterEndWaiter(key, ended);
+                }
             }
         }
     }
 
-    @Override
-    public void waitChildren()
+    private static int countLive(String countQuery, int key)
     {
-        JqmClient c = getJqmClient();
-        Query q = Query.create().setQueryHistoryInstances(false).setQueryLiveInstances(true).setParentId(ji.getId());
+        DbConn cnx = Helpers.getNewDbSession();
+        try
+        {
+            return cnx.runSelectSingle(countQuery, Integer.class, key);
+        }
+        finally
+        {
+            Helpers.closeQuietly(cnx);
+        }
+    }
 
-        while (!c.getJobs(q).isEmpty())
+    private boolean allRunningLocally(RunningJobInstanceManager manager, int key, boolean byParent, int live)
+    {
+        if (manager == null)
         {
-            try
-            {
-                Thread.sleep(1000);
-                handleInstructions();
-            }
-            catch (InterruptedException e)
-            {
-                Thread.currentThread().interrupt();
-                break;
-            }
+            return false;
         }
+        if (byParent)
+        {
+            return manager.countRunningChildren(key) >= live;
+        }
+        return manager.isRunning(key);
     }
 
     @Override
@@ -214,6 +298,11 @@ class JobInstanceEngineApi implements JobManager
     @Override
     public String defaultConnect()
     {
+        if (this.engine != null)
+        {
+            return this.engine.getGlobalParameters().getParameter("defaultConnection", null);
+        }
+
         DbConn cnx = Helpers.getNewDbSession();
         try
         {
@@ -299,18 +388,55 @@ class JobInstanceEngineApi implements JobManager
         return JqmClientFactory.getClient();
     }
 
+    /**
+     * Fast path for new child instances: if this engine polls the queue of the new instance, the poller should not wait for the end of its
+     * polling interval to run it.
+     */
+    private void signalLocalPollers(String applicationName)
+    {
+        if (this.engine == null)
+        {
+            return;
+        }
+
+        Integer queueId = childQueues.get(applicationName);
+        if (queueId == null)
+        {
+            DbConn cnx = Helpers.getNewDbSession();
+            try
+            {
+                queueId = JobDef.select_key(cnx, applicationName).getQueue();
+                childQueues.put(applicationName, queueId);
+            }
+            catch (NoResultException e)
+            {
+                return;
+            }
+            finally
+            {
+                Helpers.closeQuietly(cnx);
+            }
+        }
+        this.engine.signalNewJobInstance(queueId);
+    }
+
     private void handleInstructions()
     {
+        // With the engine cache, instructions are only a map lookup away - no need for a throttle or a connection.
+        RunningJobInstanceManager manager = this.engine != null && this.engine.isInstructionCacheEnabled()
+                ? this.engine.getRunningJobInstanceManager()
+                : null;
+
         // Throttle: only peek once every 1 second.
-        if (lastPeek != null && Calendar.getInstance().getTimeInMillis() - lastPeek.getTimeInMillis() < 1000L)
+        if (manager == null && lastPeek != null && Calendar.getInstance().getTimeInMillis() - lastPeek.getTimeInMillis() < 1000L)
         {
             return;
         }
 
-        DbConn cnx = Helpers.getNewDbSession();
+        DbConn cnx = manager == null ? Helpers.getNewDbSession() : null;
         try
         {
-            Instruction s = Instruction.valueOf(cnx.runSelectSingle("ji_select_instruction_by_id", String.class, ji.getId()));
+            Instruction s = getInstruction(manager, cnx);
             jqmlogger.trace("Analysis: should JI " + ji.getId() + " get killed or paused? Current instruction is " + s);
             if (s.equals(Instruction.KILL))
             {
@@ -335,14 +461,15 @@ class JobInstanceEngineApi implements JobManager
                     {
                         throw new RuntimeException("job thread was interrupted");
                     }
-                    s = Instruction.valueOf(cnx.runSelectSingle("ji_select_instruction_by_id", String.class, ji.getId()));
+                    s = getInstruction(manager, cnx);
                 }
                 jqmlogger.info("Job instance is resuming");
                 sendMsg("Job instance is resuming");
             }
 
             // TEMP: #319 workaround. Full implementation should be in the engine, not here.
-            int priority = cnx.runSelectSingle("ji_select_priority_by_id", Integer.class, ji.getId());
+            int priority = manager != null ? manager.getPriority(ji.getId())
+                    : cnx.runSelectSingle("ji_select_priority_by_id", Integer.class, ji.getId());
             if (priority != 0)
             {
                 if (Thread.currentThread().getPriority() != priority)
@@ -358,6 +485,15 @@ class JobInstanceEngineApi implements JobManager
         }
     }
 
+    private Instruction getInstruction(RunningJobInstanceManager manager, DbConn cnx)
+    {
+        if (manager != null)
+        {
+            return manager.getInstruction(ji.getId());
+        }
+        return Instruction.valueOf(cnx.runSelectSingle("ji_select_instruction_by_id", String.class, ji.getId()));
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     // Simple accessors
     ///////////////////////////////////////////////////////////////////////////
@@ -39,9 +39,11 @@ import com.enioka.jqm.jdbc.NoResultException;
 import com.enioka.jqm.jdbc.QueryResult;
 import com.enioka.jqm.model.DeploymentParameter;
 import com.enioka.jqm.model.GlobalParameter;
+import com.enioka.jqm.model.GlobalParameterSnapshot;
 import com.enioka.jqm.model.History;
 import com.enioka.jqm.model.JobInstance;
 import com.enioka.jqm.model.Message;
+import com.enioka.jqm.model.MetadataCache;
 import com.enioka.jqm.model.Node;
 import com.enioka.jqm.model.ResourceManager;
 import com.enioka.jqm.model.State;
@@ -70,7 +72,10 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
 
     // Threads that together constitute the engine
     private Map<Integer, QueuePoller> pollers = new HashMap<Integer, QueuePoller>();
+    private NodePoller nodePoller = null;
     private InternalPoller intPoller = null;
+    private NotificationListener notificationListener = null;
+    private InstructionPoller instructionPoller = null;
     private CronScheduler scheduler = null;
 
     // Misc data
@@ -79,7 +84,13 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
     boolean loadJmxBeans = true;
     private AtomicLong endedInstances = new AtomicLong(0);
     private RunnerManager runnerManager;
+    private MetadataCache metadataCache;
+    private volatile GlobalParameterSnapshot globalParameters;
     private RunningJobInstanceManager runningJobInstanceManager;
+    private ExternalWorkerPool externalWorkerPool = null;
+    private EndOfRunWriter endOfRunWriter = null;
+    private PayloadMessageBuffer payloadMessageBuffer = null;
+    private boolean instructionCache = false;
     private List<ResourceManagerBase> resourceManagers = new ArrayList<ResourceManagerBase>();
 
     // DB connection resilience data
@@ -163,6 +174,7 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
 
         // Log parameters
         Helpers.dumpParameters(cnx, node);
+        refreshGlobalParameters(cnx);
 
         // The handler may take any actions it wishes here - such as setting log levels, starting Jetty...
         if (this.handler != null)
@@ -217,14 +229,45 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
         purgeDeadJobInstances(cnx, this.node);
 
         // Runners
-        runningJobInstanceManager = new RunningJobInstanceManager();
+        runningJobInstanceManager = new RunningJobInstanceManager(node.getName(),
+                Integer.parseInt(this.globalParameters.getParameter("payloadThreadPoolSize", "0")));
         runnerManager = new RunnerManager(cnx);
+        int endOfRunBatchSize = Integer.parseInt(this.globalParameters.getParameter("endOfRunBatchSize", "0"));
+        if (endOfRunBatchSize > 0)
+        {
+            endOfRunWriter = new EndOfRunWriter(this, endOfRunBatchSize,
+                    Integer.parseInt(this.globalParameters.getParameter("endOfRunBatchMaxWaitMs", "10")));
+        }
+        int payloadMessageFlushMs = Integer.parseInt(this.globalParameters.getParameter("payloadMessageFlushMs", "0"));
+        if (payloadMessageFlushMs > 0)
+        {
+            payloadMessageBuffer = new PayloadMessageBuffer(node.getName(), payloadMessageFlushMs);
+        }
+        instructionCache = Boolean.parseBoolean(this.globalParameters.getParameter("cacheInstructions", "false"));
+        int externalWorkers = Integer.parseInt(this.globalParameters.getParameter("externalWorkerPoolSize", "0"));
+        if (externalWorkers > 0)
+        {
+            externalWorkerPool = new ExternalWorkerPool(externalWorkers,
+                    Integer.parseInt(this.globalParameters.getParameter("externalWorkerMaxRuns", "50")),
+                    Long.parseLong(this.globalParameters.getParameter("externalWorkerIdleMs", "600000")));
+        }
 
         // Resource managers
         initResourceManagers(cnx);
 
-        // Pollers
+        // Job definitions, queues, class loaders and nodes used by the pollers, refreshed by the internal poller
+        metadataCache = new MetadataCache(cnx, Long.parseLong(this.globalParameters.getParameter("metadataReloadPeriodMs", "600000")));
+
+        // Pollers (either one thread per queue, or a single thread for all queues)
+        if (Boolean.parseBoolean(this.globalParameters.getParameter("multiplexedPolling", "false")))
+        {
+            nodePoller = new NodePoller(this);
+        }
         syncPollers(cnx, this.node);
+        if (nodePoller != null)
+        {
+            (new Thread(nodePoller)).start();
+        }
         jqmlogger.info("All required queues are now polled");
 
         // Internal poller (stop notifications, keep alive)
@@ -232,6 +275,21 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
         Thread t = new Thread(intPoller);
         t.start();
 
+        // Instruction poller, if payloads read their instructions from memory (shorter period than the internal poller)
+        if (instructionCache)
+        {
+            instructionPoller = new InstructionPoller(this,
+                    Long.parseLong(this.globalParameters.getParameter("cacheInstrPeriodMs", "1000")));
+            (new Thread(instructionPoller)).start();
+        }
+
+        // New job instance notifications, if the database can send them (faster than waiting for the polling interval)
+        if (cnx.supportsNotifications())
+        {
+            notificationListener = new NotificationListener(this);
+            (new Thread(notificationListener)).start();
+        }
+
         // Kill notifications
         killHook = new SignalHandler(this);
         Runtime.getRuntime().addShutdownHook(killHook);
@@ -337,8 +395,15 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
                 {
                     p = new QueuePoller(this, com.enioka.jqm.model.Queue.select(cnx, "q_select_by_id", i.getQueue()).get(0), i);
                     pollers.put(i.getId(), p);
-                    Thread t = new Thread(p);
-                    t.start();
+                    if (nodePoller != null)
+                    {
+                        nodePoller.add(p);
+                    }
+                    else
+                    {
+                        Thread t = new Thread(p);
+                        t.start();
+                    }
                 }
             }
 
@@ -376,24 +441,103 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
     {
         jqmlogger.info("Initializing node-level resource managers");
 
-        // For now, single RM using a global parameter. Future: from db configuration.
-        String itemList = GlobalParameter.getParameter(cnx, "discreteRmList", null);
-        if (itemList == null)
+        // Highlander rules apply to all queues, so a single RM for the node.
+        ResourceManager highlanderResourceManagerConfiguration = new ResourceManager();
+        highlanderResourceManagerConfiguration.setClassName(HighlanderResourceManager.class.getCanonicalName());
+        highlanderResourceManagerConfiguration.setDeploymentParameterId(null);
+        highlanderResourceManagerConfiguration.setEnabled(true);
+        highlanderResourceManagerConfiguration.setKey("highlander");
+        highlanderResourceManagerConfiguration.setNodeId(this.node.getId());
+        ResourceManagerBase highlanderResourceManager = new HighlanderResourceManager(highlanderResourceManagerConfiguration);
+        highlanderResourceManager.refreshConfiguration(highlanderResourceManagerConfiguration);
+        this.resourceManagers.add(highlanderResourceManager);
+
+        // For now, single RM of each type using global parameters. Future: from db configuration.
+        String itemList = this.globalParameters.getParameter("discreteRmList", null);
+        if (itemList != null)
         {
-            return;
+            ResourceManager discreteResourceManagerConfiguration = new ResourceManager();
+            discreteResourceManagerConfiguration.setClassName(DiscreteResourceManager.class.getCanonicalName());
+            discreteResourceManagerConfiguration.setDeploymentParameterId(null);
+            discreteResourceManagerConfiguration.setEnabled(true);
+            discreteResourceManagerConfiguration.setKey(this.globalParameters.getParameter("discreteRmName", "ports"));
+            discreteResourceManagerConfiguration.setNodeId(this.node.getId());
+            discreteResourceManagerConfiguration.addParameter("com.enioka.jqm.rm.discrete.list", itemList);
+
+            ResourceManagerBase rm1 = new DiscreteResourceManager(discreteResourceManagerConfiguration);
+            rm1.refreshConfiguration(discreteResourceManagerConfiguration);
+            this.resourceManagers.add(rm1);
         }
 
-        ResourceManager discreteResourceManagerConfiguration = new ResourceManager();
-        discreteResourceManagerConfiguration.setClassName(DiscreteResourceManager.class.getCanonicalName());
-        discreteResourceManagerConfiguration.setDeploymentParameterId(null);
-        discreteResourceManagerConfiguration.setEnabled(true);
-        discreteResourceManagerConfiguration.setKey(GlobalParameter.getParameter(cnx, "discreteRmName", "ports"));
-        discreteResourceManagerConfiguration.setNodeId(this.node.getId());
-        discreteResourceManagerConfiguration.addParameter("com.enioka.jqm.rm.discrete.list", itemList);
+        String clusterQuantity = this.globalParameters.getParameter("clusterRmQuantity", null);
+        if (clusterQuantity != null)
+        {
+            // Leases are considered dead after three keep-alive periods (plus one second) without a signal.
+            long keepAliveMs = Long.parseLong(this.globalParameters.getParameter("internalPollingPeriodMs", "60000"));
+
+            ResourceManager clusterResourceManagerConfiguration = new ResourceManager();
+            clusterResourceManagerConfiguration.setClassName(ClusterQuantityResourceManager.class.getCanonicalName());
+            clusterResourceManagerConfiguration.setDeploymentParameterId(null);
+            clusterResourceManagerConfiguration.setEnabled(true);
+            clusterResourceManagerConfiguration.setKey(this.globalParameters.getParameter("clusterRmName", "cluster"));
+            clusterResourceManagerConfiguration.setNodeId(this.node.getId());
+            clusterResourceManagerConfiguration.addParameter("com.enioka.jqm.rm.cluster.quantity", clusterQuantity);
+            clusterResourceManagerConfiguration.addParameter("com.enioka.jqm.rm.cluster.allowance",
+                    this.globalParameters.getParameter("clusterRmAllowance", "1"));
+            clusterResourceManagerConfiguration.addParameter("com.enioka.jqm.rm.cluster.leasetimeout", "" + (3 * keepAliveMs / 1000 + 1));
+
+            ResourceManagerBase rm2 = new ClusterQuantityResourceManager(clusterResourceManagerConfiguration);
+            rm2.refreshConfiguration(clusterResourceManagerConfiguration);
+            this.resourceManagers.add(rm2);
+        }
 
-        ResourceManagerBase rm1 = new DiscreteResourceManager(discreteResourceManagerConfiguration);
-        rm1.refreshConfiguration(discreteResourceManagerConfiguration);
-        this.resourceManagers.add(rm1);
+        if (Boolean.parseBoolean(this.globalParameters.getParameter("hostRm", "false")))
+        {
+            ResourceManager hostResourceManagerConfiguration = new ResourceManager();
+            hostResourceManagerConfiguration.setClassName(HostCapacityResourceManager.class.getCanonicalName());
+            hostResourceManagerConfiguration.setDeploymentParameterId(null);
+            hostResourceManagerConfiguration.setEnabled(true);
+            hostResourceManagerConfiguration.setKey(this.globalParameters.getParameter("hostRmName", "host"));
+            hostResourceManagerConfiguration.setNodeId(this.node.getId());
+            hostResourceManagerConfiguration.addParameter("com.enioka.jqm.rm.host.memory",
+                    this.globalParameters.getParameter("hostRmMemory", "auto"));
+            hostResourceManagerConfiguration.addParameter("com.enioka.jqm.rm.host.cpu",
+                    this.globalParameters.getParameter("hostRmCpu", "auto"));
+            hostResourceManagerConfiguration.addParameter("com.enioka.jqm.rm.host.memoryconsumption",
+                    this.globalParameters.getParameter("hostRmMemoryConsumption", "0"));
+            hostResourceManagerConfiguration.addParameter("com.enioka.jqm.rm.host.cpuconsumption",
+                    this.globalParameters.getParameter("hostRmCpuConsumption", "0"));
+
+            ResourceManagerBase rm3 = new HostCapacityResourceManager(hostResourceManagerConfiguration);
+            rm3.refreshConfiguration(hostResourceManagerConfiguration);
+            this.resourceManagers.add(rm3);
+        }
+
+        String rate = this.globalParameters.getParameter("rateRmRate", null);
+        if (rate != null)
+        {
+            ResourceManager rateResourceManagerConfiguration = new ResourceManager();
+            rateResourceManagerConfiguration.setClassName(RateLimitResourceManager.class.getCanonicalName());
+            rateResourceManagerConfiguration.setDeploymentParameterId(null);
+            rateResourceManagerConfiguration.setEnabled(true);
+            rateResourceManagerConfiguration.setKey(this.globalParameters.getParameter("rateRmName", "ratelimit"));
+            rateResourceManagerConfiguration.setNodeId(this.node.getId());
+            rateResourceManagerConfiguration.addParameter("com.enioka.jqm.rm.ratelimit.rate", rate);
+            rateResourceManagerConfiguration.addParameter("com.enioka.jqm.rm.ratelimit.period",
+                    this.globalParameters.getParameter("rateRmPeriod", "1"));
+            rateResourceManagerConfiguration.addParameter("com.enioka.jqm.rm.ratelimit.capacity",
+                    this.globalParameters.getParameter("rateRmCapacity", "0"));
+            rateResourceManagerConfiguration.addParameter("com.enioka.jqm.rm.ratelimit.consumption",
+                    this.globalParameters.getParameter("rateRmConsumption", "1"));
+
+            RateLimitResourceManager rm4 = new RateLimitResourceManager(rateResourceManagerConfiguration);
+            rm4.refreshConfiguration(rateResourceManagerConfiguration);
+            if (loadJmxBeans)
+            {
+                rm4.registerMBean(this.node.getName());
+            }
+            this.resourceManagers.add(rm4);
+        }
     }
 
     /**
@@ -431,6 +575,36 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
 
         // Also stop the internal poller
         this.intPoller.stop();
+        if (this.notificationListener != null)
+        {
+            this.notificationListener.stop();
+        }
+        if (this.instructionPoller != null)
+        {
+            this.instructionPoller.stop();
+        }
+        if (this.nodePoller != null)
+        {
+            this.nodePoller.stop();
+        }
+        if (this.payloadMessageBuffer != null)
+        {
+            this.payloadMessageBuffer.stop();
+        }
+        if (this.endOfRunWriter != null)
+        {
+            this.endOfRunWriter.stop();
+        }
+        for (ResourceManagerBase rm : this.resourceManagers)
+        {
+            rm.stop();
+        }
+        this.runningJobInstanceManager.stop();
+        this.runnerManager.stop();
+        if (this.externalWorkerPool != null)
+        {
+            this.externalWorkerPool.stop();
+        }
 
         // Reset the stop counter - we may want to restart one day
         DbConn cnx = null;
@@ -481,6 +655,14 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
     {
         for (JobInstance ji : JobInstance.select(cnx, "ji_select_by_node", node.getId()))
         {
+            // Never started (for example prefetched JI waiting for a thread): simply put it back inside its queue. External JI may have a
+            // process which has not reported yet, so they are still considered crashed.
+            if (ji.getState() == State.ATTRIBUTED && !ji.getJD().isExternal())
+            {
+                cnx.runUpdate("ji_update_back_to_submitted", node.getId(), ji.getId());
+                continue;
+            }
+
             try
             {
                 cnx.runSelectSingle("history_select_state_by_id", String.class, ji.getId());
@@ -645,6 +827,20 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
         this.endedInstances.incrementAndGet();
     }
 
+    /**
+     * Called when a new job instance was created inside the given queue. Pollers of this queue will poll at once.
+     */
+    synchronized void signalNewJobInstance(int queueId)
+    {
+        for (QueuePoller p : this.pollers.values())
+        {
+            if (p.getQueue().getId() == queueId)
+            {
+                p.wakeUp();
+            }
+        }
+    }
+
     JqmEngineHandler getHandler()
     {
         return this.handler;
@@ -655,11 +851,63 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
         return this.runnerManager;
     }
 
+    /**
+     * The global parameters, as read at the last internal poller loop. Should be used instead of the database in all frequently called
+     * methods.
+     */
+    GlobalParameterSnapshot getGlobalParameters()
+    {
+        return this.globalParameters;
+    }
+
+    void refreshGlobalParameters(DbConn cnx)
+    {
+        this.globalParameters = GlobalParameterSnapshot.load(cnx);
+    }
+
+    MetadataCache getMetadataCache()
+    {
+        return this.metadataCache;
+    }
+
     RunningJobInstanceManager getRunningJobInstanceManager()
     {
         return this.runningJobInstanceManager;
     }
 
+    /**
+     * @return the writer of job instance results, or null if they are written by the job instance threads themselves.
+     */
+    EndOfRunWriter getEndOfRunWriter()
+    {
+        return this.endOfRunWriter;
+    }
+
+    /**
+     * @return the buffer for payload messages and progress, or null if payloads write them themselves.
+     */
+    PayloadMessageBuffer getPayloadMessageBuffer()
+    {
+        return this.payloadMessageBuffer;
+    }
+
+    /**
+     * @return true if payloads read their instructions (kill, pause, priority) from the table maintained by the instruction poller
+     *         instead of the database.
+     */
+    boolean isInstructionCacheEnabled()
+    {
+        return this.instructionCache;
+    }
+
+    /**
+     * @return the pool of JVMs used by external job instances, or null if they each get a new JVM.
+     */
+    ExternalWorkerPool getExternalWorkerPool()
+    {
+        return this.externalWorkerPool;
+    }
+
     ////////////////////////////////////////////////////////////////////////////
     // JMX stat methods (they get their own connection to be thread safe)
     ////////////////////////////////////////////////////////////////////////////
@@ -724,6 +972,30 @@ class JqmEngine implements JqmEngineMBean, JqmEngineOperations
         return res;
     }
 
+    @Override
+    public int getPayloadThreadPoolMaxSize()
+    {
+        return this.runningJobInstanceManager.getPoolMaxSize();
+    }
+
+    @Override
+    public int getPayloadThreadPoolActiveCount()
+    {
+        return this.runningJobInstanceManager.getPoolActiveCount();
+    }
+
+    @Override
+    public int getPayloadThreadPoolQueueSize()
+    {
+        return this.runningJobInstanceManager.getPoolQueueSize();
+    }
+
+    @Override
+    public long getPayloadThreadPoolSaturationCount()
+    {
+        return this.runningJobInstanceManager.getPoolSaturationCount();
+    }
+
     @Override
     public long getUptime()
     {
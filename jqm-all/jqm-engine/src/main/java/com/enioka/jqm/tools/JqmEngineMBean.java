@@ -38,8 +38,9 @@ public interface JqmEngineMBean
     void resume();
 
     /**
-     * Forces a full refresh of base configuration (HTTP port, log level, ...). Usually configuration is updated automatically every
-     * <code>internalPollingPeriodMs</code> (a {@link GlobalParameter}) milliseconds. This triggers the same refresh method.
+     * Forces a full refresh of base configuration (HTTP port, log level, global parameters, ...). Usually configuration is updated
+     * automatically every <code>internalPollingPeriodMs</code> (a {@link GlobalParameter}) milliseconds. This triggers the same refresh
+     * method.
      */
     void refreshConfiguration();
 
@@ -77,4 +78,24 @@ public interface JqmEngineMBean
      * The count, for all pollers, of running jobs that have run for more than their maxTimeRunning time.
      */
     int getLateJobs();
+
+    /**
+     * Max number of threads of the payload thread pool. 0 if there is no pool (one new thread per job instance).
+     */
+    int getPayloadThreadPoolMaxSize();
+
+    /**
+     * The number of pool threads currently running a job instance.
+     */
+    int getPayloadThreadPoolActiveCount();
+
+    /**
+     * The number of job instances waiting for a pool thread. Should usually be 0.
+     */
+    int getPayloadThreadPoolQueueSize();
+
+    /**
+     * How many times a job instance was started while all the pool threads were busy (since engine start).
+     */
+    long getPayloadThreadPoolSaturationCount();
 }
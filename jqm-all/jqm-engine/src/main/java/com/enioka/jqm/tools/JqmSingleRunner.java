@@ -1,5 +1,9 @@
 package com.enioka.jqm.tools;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,6 +22,11 @@ public class JqmSingleRunner
 {
     private final static Logger jqmlogger = LoggerFactory.getLogger(JqmSingleRunner.class);
 
+    /**
+     * Written on stdout by a worker (followed by the job instance ID) when a job instance has ended.
+     */
+    static final String WORKER_END_MARKER = "##JQM_WORKER_END##";
+
     private JqmSingleRunner()
     {
         // Static class
@@ -36,6 +45,46 @@ public class JqmSingleRunner
         return run(jr);
     }
 
+    /**
+     * Worker mode, used by the engine to run external job instances inside pre-started JVMs: job instance IDs are read on stdin, one per
+     * line, and run one after the other. The end of each run is signaled on stdout by {@link #WORKER_END_MARKER}. Stops at the end of
+     * stdin (which is also what happens when the engine dies). Kill orders stop the whole JVM, as in single mode.
+     */
+    public static void runWorker()
+    {
+        jqmlogger.info("Starting external worker");
+
+        // Pay for all the bootstrap costs before the first job instance comes.
+        Helpers.registerJndiIfNeeded();
+        Helpers.closeQuietly(Helpers.getNewDbSession());
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        String line;
+        try
+        {
+            while ((line = in.readLine()) != null && !line.trim().isEmpty())
+            {
+                int id = Integer.parseInt(line.trim());
+                try
+                {
+                    JobInstance res = run(id);
+                    jqmlogger.info(res.getState().toString());
+                }
+                catch (RuntimeException e)
+                {
+                    jqmlogger.error("Job instance " + id + " could not be run by the worker", e);
+                }
+                System.out.println(WORKER_END_MARKER + id);
+                System.out.flush();
+            }
+        }
+        catch (IOException e)
+        {
+            jqmlogger.error("Worker input is not readable anymore", e);
+        }
+        jqmlogger.info("External worker stops");
+    }
+
     /**
      * Runs an existing JobInstance.
      * 
@@ -73,8 +122,9 @@ public class JqmSingleRunner
             System.setSecurityManager(new SecurityManagerPayload());
         }
 
-        // Create run container
-        final RunningJobInstance l = new RunningJobInstance(job, new JavaRunner(cnx));
+        // Create run container. A single job instance is run, so class loaders are never prepared in advance.
+        final JavaRunner runner = new JavaRunner(cnx, false);
+        final RunningJobInstance l = new RunningJobInstance(job, runner);
 
         // Kill signal handler
         final Thread mainT = Thread.currentThread();
@@ -164,10 +214,11 @@ public class JqmSingleRunner
         // Go.
         l.run();
 
-        // Free resources
+        // Free resources (a worker JVM runs many job instances one after the other)
         Runtime.getRuntime().removeShutdownHook(shutHook);
         cnx.close();
         stopper.interrupt();
+        runner.stop();
 
         // Get result
         return JqmClientFactory.getClient().getJob(job.getId());
@@ -0,0 +1,295 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.enioka.jqm.jdbc.DbConn;
+import com.enioka.jqm.model.DeploymentParameter;
+import com.enioka.jqm.model.JobInstance;
+import com.enioka.jqm.model.Queue;
+
+/**
+ * A single thread polling all the queues of a node, used instead of one {@link QueuePoller} thread per queue when the global parameter
+ * multiplexedPolling is true. On each loop, it uses a single connection to read the deployment parameters of the node once, fetches the
+ * heads of all the queues which are due, and hands them to the corresponding {@link QueuePoller}s, which still own the resource managers,
+ * the JMX beans and the running job instances of their queue. The JI of all the queues are claimed inside a single transaction.
+ */
+class NodePoller implements Runnable
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(NodePoller.class);
+
+    /**
+     * Max wait when there is no queue to poll. New pollers and stop requests wake up the loop anyway.
+     */
+    private static final long MAX_WAIT_MS = 60000;
+
+    /**
+     * Max wait before trying again after a database failure.
+     */
+    private static final long MAX_RETRY_MS = 60000;
+
+    private boolean run = true;
+    private JqmEngine engine;
+    private Semaphore loop = new Semaphore(0);
+    private List<QueuePoller> pollers = new CopyOnWriteArrayList<QueuePoller>();
+
+    NodePoller(JqmEngine engine)
+    {
+        this.engine = engine;
+    }
+
+    /**
+     * The semaphore shared by all the attached pollers - releasing it makes the node poller loop at once.
+     */
+    Semaphore getLoopSemaphore()
+    {
+        return this.loop;
+    }
+
+    void add(QueuePoller p)
+    {
+        p.attach(this);
+        this.pollers.add(p);
+        this.loop.release(1);
+    }
+
+    void stop()
+    {
+        jqmlogger.info("Node poller has received a stop request");
+        this.run = false;
+        this.loop.release(1);
+    }
+
+    @Override
+    public void run()
+    {
+        Thread.currentThread().setName("NODE_POLLER;polling;" + this.engine.getNode().getName());
+        jqmlogger.info("Start of the node poller - all queues of the node are polled by a single thread");
+        DbConn cnx = null;
+        long retryMs = 0;
+
+        while (run)
+        {
+            try
+            {
+                cnx = Helpers.getNewDbSession();
+                loop(cnx);
+
+                if (retryMs > 0)
+                {
+                    jqmlogger.warn("node poller is polling again");
+                    retryMs = 0;
+                }
+            }
+            catch (RuntimeException e)
+            {
+                if (!Helpers.testDbFailure(e))
+                {
+                    jqmlogger.error("Node poller loop has failed. It will be retried.", e);
+                }
+                else if (retryMs == 0)
+                {
+                    jqmlogger.error("connection to database lost - node poller will retry until it is restored");
+                    jqmlogger.trace("connection error was:", e.getCause());
+                }
+                retryMs = Math.min(retryMs + 1000, MAX_RETRY_MS);
+            }
+            finally
+            {
+                if (Thread.interrupted()) // always clear interrupted status before doing DB operations.
+                {
+                    run = false;
+                }
+                Helpers.closeQuietly(cnx);
+                cnx = null;
+            }
+
+            try
+            {
+                loop.tryAcquire(retryMs > 0 ? retryMs : timeToNextLoop(), TimeUnit.MILLISECONDS);
+                loop.drainPermits(); // a single loop deals with all the wake up signals received until now.
+            }
+            catch (InterruptedException e)
+            {
+                run = false;
+            }
+        }
+
+        jqmlogger.info("End of the node poller");
+    }
+
+    private void loop(DbConn cnx)
+    {
+        // A single snapshot of the parameters for all the queues.
+        Map<Integer, DeploymentParameter> dps = new HashMap<Integer, DeploymentParameter>();
+        for (DeploymentParameter dp : DeploymentParameter.select(cnx, "dp_select_for_node", this.engine.getNode().getId()))
+        {
+            dps.put(dp.getId(), dp);
+        }
+        boolean strictPollingPeriod = Boolean.parseBoolean(this.engine.getGlobalParameters().getParameter("strictPollingPeriod", "false"));
+
+        // Which queues should be polled now?
+        long now = System.currentTimeMillis();
+        Map<Queue, Integer> headSizes = new LinkedHashMap<Queue, Integer>();
+        Map<Queue, QueuePoller> due = new LinkedHashMap<Queue, QueuePoller>();
+        Map<Queue, Integer> freeRooms = new HashMap<Queue, Integer>();
+        for (QueuePoller p : this.pollers)
+        {
+            DeploymentParameter dp = dps.get(p.getDeploymentParameterId());
+            if (dp == null)
+            {
+                p.stop();
+            }
+            if (p.isStopping())
+            {
+                shutdown(p);
+                continue;
+            }
+
+            p.refreshDeploymentParameter(dp, strictPollingPeriod);
+            p.expirePrefetched(cnx);
+            if (p.getNextLoopTime() > now)
+            {
+                continue;
+            }
+
+            p.beginLoop();
+            int freeRoom = p.potentialFreeRoom();
+            int prefetchRoom = p.prefetchRoom();
+            if (freeRoom > 0 || prefetchRoom > 0)
+            {
+                headSizes.put(p.getQueue(), QueuePoller.headSize(freeRoom + prefetchRoom));
+                due.put(p.getQueue(), p);
+                freeRooms.put(p.getQueue(), freeRoom);
+            }
+        }
+        if (headSizes.isEmpty())
+        {
+            return;
+        }
+
+        // Fetch all the heads at once (this locks them), then let each poller book resources for its own.
+        Map<Integer, List<JobInstance>> heads = cnx.poll(headSizes);
+        Map<QueuePoller, QueuePoller.Booking> bookings = new LinkedHashMap<QueuePoller, QueuePoller.Booking>();
+        for (Map.Entry<Queue, QueuePoller> e : due.entrySet())
+        {
+            List<JobInstance> head = heads.get(e.getKey().getId());
+            try
+            {
+                bookings.put(e.getValue(),
+                        e.getValue().book(cnx, head == null ? new ArrayList<JobInstance>() : head, freeRooms.get(e.getKey())));
+            }
+            catch (RuntimeException ex)
+            {
+                if (Helpers.testDbFailure(ex))
+                {
+                    rollbackClaims(cnx, bookings);
+                    throw ex;
+                }
+                jqmlogger.error("Queue poller has failed! It will stop.", ex);
+                e.getValue().stop();
+            }
+        }
+
+        // Claim the JI of all the queues, with a single commit: the locks on the heads are held until all the queues are claimed.
+        try
+        {
+            for (Map.Entry<QueuePoller, QueuePoller.Booking> e : bookings.entrySet())
+            {
+                if (!e.getValue().isEmpty())
+                {
+                    e.getKey().claim(cnx, e.getValue());
+                }
+            }
+            cnx.commit();
+        }
+        catch (RuntimeException ex)
+        {
+            rollbackClaims(cnx, bookings);
+            throw ex;
+        }
+
+        // Launch.
+        for (Map.Entry<QueuePoller, QueuePoller.Booking> e : bookings.entrySet())
+        {
+            if (e.getValue().isEmpty())
+            {
+                continue;
+            }
+            try
+            {
+                e.getKey().startClaimed(cnx, e.getValue());
+            }
+            catch (RuntimeException ex)
+            {
+                if (Helpers.testDbFailure(ex))
+                {
+                    throw ex;
+                }
+                jqmlogger.error("Queue poller has failed! It will stop.", ex);
+                e.getKey().stop();
+            }
+        }
+    }
+
+    private void rollbackClaims(DbConn cnx, Map<QueuePoller, QueuePoller.Booking> bookings)
+    {
+        for (Map.Entry<QueuePoller, QueuePoller.Booking> e : bookings.entrySet())
+        {
+            e.getKey().rollbackClaim(cnx, e.getValue());
+        }
+    }
+
+    private long timeToNextLoop()
+    {
+        long now = System.currentTimeMillis();
+        long res = MAX_WAIT_MS;
+        for (QueuePoller p : this.pollers)
+        {
+            res = Math.min(res, p.getNextLoopTime() - now);
+        }
+        return Math.max(res, 0);
+    }
+
+    /**
+     * The shutdown procedure of a poller waits for its running job instances, so it has its own thread.
+     */
+    private void shutdown(final QueuePoller p)
+    {
+        this.pollers.remove(p);
+        Thread t = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                p.shutdown();
+            }
+        };
+        t.setName("QUEUE_POLLER;stopping;" + p.getQueue().getName() + ";" + this.engine.getNode().getName());
+        t.start();
+    }
+}
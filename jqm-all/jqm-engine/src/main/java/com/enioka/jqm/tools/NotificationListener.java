@@ -0,0 +1,115 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.enioka.jqm.jdbc.DbConn;
+
+/**
+ * Only started when the database adapter supports notifications. It holds a dedicated session listening to "new job instance"
+ * notifications, and wakes up the pollers of the corresponding queues. Polling itself is unchanged - the pollers still loop at the end of
+ * their polling interval, so a lost notification only means a delayed start.
+ */
+class NotificationListener implements Runnable
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(NotificationListener.class);
+
+    /**
+     * Max time between two checks of the stop flag.
+     */
+    private static final int WAIT_MS = 1000;
+
+    /**
+     * Time to wait before trying to listen again after a database failure.
+     */
+    private static final long RETRY_MS = 10000;
+
+    private boolean run = true;
+    private JqmEngine engine;
+    private Semaphore loop = new Semaphore(0);
+
+    NotificationListener(JqmEngine engine)
+    {
+        this.engine = engine;
+    }
+
+    void stop()
+    {
+        jqmlogger.info("Notification listener has received a stop request");
+        this.run = false;
+        this.loop.release(1);
+    }
+
+    @Override
+    public void run()
+    {
+        Thread.currentThread().setName("NOTIFICATION_LISTENER;listening;");
+        jqmlogger.info("Start of the notification listener - pollers will be woken up on new job instances");
+        DbConn cnx = null;
+
+        while (run)
+        {
+            try
+            {
+                if (cnx == null)
+                {
+                    cnx = Helpers.getNewDbSession();
+                    cnx.listenForNewJobInstances();
+                }
+
+                for (Integer queueId : cnx.waitForNewJobInstances(WAIT_MS))
+                {
+                    jqmlogger.trace("New job instance notification for queue {}", queueId);
+                    this.engine.signalNewJobInstance(queueId);
+                }
+            }
+            catch (RuntimeException e)
+            {
+                Helpers.closeQuietly(cnx);
+                cnx = null;
+                if (!Helpers.testDbFailure(e))
+                {
+                    jqmlogger.warn("Notifications cannot be used - pollers will only rely on their polling interval", e);
+                    run = false;
+                    break;
+                }
+
+                jqmlogger.warn("connection to database lost - notification listener will retry in " + RETRY_MS + "ms");
+                jqmlogger.trace("connection error was:", e.getCause());
+                try
+                {
+                    loop.tryAcquire(RETRY_MS, TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException e1)
+                {
+                    run = false;
+                }
+            }
+        }
+
+        if (cnx != null)
+        {
+            cnx.unlistenForNewJobInstances();
+            Helpers.closeQuietly(cnx);
+        }
+        jqmlogger.info("End of the notification listener");
+    }
+}
@@ -0,0 +1,336 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.enioka.jqm.jdbc.DbConn;
+import com.enioka.jqm.model.Message;
+
+/**
+ * A node-level write-behind buffer for the messages and progress sent by payloads through the engine API, so that payloads sending them
+ * in a loop do not pay for a transaction each time. Everything is written by a single thread, at a fixed period, with one commit.<br>
+ * <br>
+ * Guarantees:
+ * <ul>
+ * <li>messages of a job instance are written in the order they were sent</li>
+ * <li>for progress, the last value wins - intermediate values may never be written</li>
+ * <li>messages and progress are visible to clients at most one period after being sent, and are written before the end of the job
+ * instance is (unless the database is unavailable at that time, in which case they are written as soon as it is back)</li>
+ * <li>messages which cannot be written for other reasons than the database being unavailable (too long...) are logged and dropped,
+ * instead of failing the payload</li>
+ * </ul>
+ */
+class PayloadMessageBuffer implements Runnable
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(PayloadMessageBuffer.class);
+
+    private final int flushPeriodMs;
+    private final Thread thread;
+    private volatile boolean run = true;
+    private final Object sleepLock = new Object();
+
+    private final Queue<PendingMessage> messages = new ConcurrentLinkedQueue<PendingMessage>();
+    private final ConcurrentHashMap<Integer, Integer> progress = new ConcurrentHashMap<Integer, Integer>();
+
+    /**
+     * Messages taken from the queue but not written because the database was unavailable. They are written first by the next flush.
+     * Guarded by this.
+     */
+    private final List<PendingMessage> notWritten = new ArrayList<PendingMessage>();
+
+    /**
+     * Job instances with messages or progress being written right now. Guarded by this. A job instance is only written by one flush at a
+     * time, which keeps its messages in order without holding the lock during database access.
+     */
+    private final Set<Integer> inFlight = new HashSet<Integer>();
+
+    private static class PendingMessage
+    {
+        private final int jobInstanceId;
+        private final String text;
+
+        private PendingMessage(int jobInstanceId, String text)
+        {
+            this.jobInstanceId = jobInstanceId;
+            this.text = text;
+        }
+    }
+
+    PayloadMessageBuffer(String nodeName, int flushPeriodMs)
+    {
+        this.flushPeriodMs = flushPeriodMs;
+        this.thread = new Thread(this, "JQM payload message writer;;" + nodeName);
+        this.thread.start();
+        jqmlogger.info("Payload messages and progress will be written every {}ms", flushPeriodMs);
+    }
+
+    void sendMsg(int jobInstanceId, String msg)
+    {
+        messages.add(new PendingMessage(jobInstanceId, msg));
+    }
+
+    void sendProgress(int jobInstanceId, Integer value)
+    {
+        progress.put(jobInstanceId, value);
+    }
+
+    /**
+     * Writes everything waiting inside the buffer. Called regularly by the buffer thread.
+     */
+    void flush()
+    {
+        flush(null);
+    }
+
+    /**
+     * Writes everything waiting inside the buffer for the given job instance, or for all job instances if null. Called at the end of each
+     * run.<br>
+     * What should be written is taken from the buffer under the lock, but is written outside of it.
+     */
+    void flush(Integer jobInstanceId)
+    {
+        List<PendingMessage> toWrite = new ArrayList<PendingMessage>();
+        Map<Integer, Integer> progressToWrite = new HashMap<Integer, Integer>();
+        Set<Integer> taken = new HashSet<Integer>();
+
+        synchronized (this)
+        {
+            // Wait for a flush already writing the messages of this JI, so that they are written before the end of the JI.
+            while (jobInstanceId != null && inFlight.contains(jobInstanceId))
+            {
+                try
+                {
+                    this.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+
+            for (Iterator<PendingMessage> it = notWritten.iterator(); it.hasNext();)
+            {
+                PendingMessage m = it.next();
+                if (isToFlush(m.jobInstanceId, jobInstanceId))
+                {
+                    toWrite.add(m);
+                    it.remove();
+                }
+            }
+            for (Iterator<PendingMessage> it = messages.iterator(); it.hasNext();)
+            {
+                PendingMessage m = it.next();
+                if (isToFlush(m.jobInstanceId, jobInstanceId))
+                {
+                    toWrite.add(m);
+                    it.remove();
+                }
+            }
+            for (Map.Entry<Integer, Integer> e : progress.entrySet())
+            {
+                if (isToFlush(e.getKey(), jobInstanceId))
+                {
+                    progressToWrite.put(e.getKey(), e.getValue());
+                }
+            }
+
+            for (PendingMessage m : toWrite)
+            {
+                taken.add(m.jobInstanceId);
+            }
+            taken.addAll(progressToWrite.keySet());
+            inFlight.addAll(taken);
+        }
+        if (taken.isEmpty())
+        {
+            return;
+        }
+
+        DbConn cnx = null;
+        try
+        {
+            cnx = Helpers.getNewDbSession();
+            write(cnx, toWrite, progressToWrite);
+            cnx.commit();
+            toWrite.clear();
+        }
+        catch (RuntimeException e)
+        {
+            if (Helpers.testDbFailure(e))
+            {
+                jqmlogger.warn("connection to database lost - payload messages and progress will be written later");
+                progressToWrite.clear();
+            }
+            else
+            {
+                // Find the culprit(s) by writing messages one by one.
+                jqmlogger.warn("Could not write payload messages - trying one by one", e);
+                Helpers.closeQuietly(cnx);
+                cnx = Helpers.getNewDbSession();
+                writeOneByOne(cnx, toWrite, progressToWrite);
+                toWrite.clear();
+            }
+        }
+        finally
+        {
+            Helpers.closeQuietly(cnx);
+            synchronized (this)
+            {
+                notWritten.addAll(toWrite);
+                for (Map.Entry<Integer, Integer> e : progressToWrite.entrySet())
+                {
+                    // Only if not changed in the meantime.
+                    progress.remove(e.getKey(), e.getValue());
+                }
+                inFlight.removeAll(taken);
+                this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * A JI is flushed if it was asked for, or if all JI are flushed and it is not already being written by another flush.
+     */
+    private boolean isToFlush(int id, Integer jobInstanceId)
+    {
+        return jobInstanceId == null ? !inFlight.contains(id) : jobInstanceId == id;
+    }
+
+    private static void write(DbConn cnx, List<PendingMessage> messages, Map<Integer, Integer> progress)
+    {
+        if (!messages.isEmpty())
+        {
+            List<String> texts = new ArrayList<String>(messages.size());
+            List<Integer> ids = new ArrayList<Integer>(messages.size());
+            for (PendingMessage m : messages)
+            {
+                texts.add(m.text);
+                ids.add(m.jobInstanceId);
+            }
+            Message.create(cnx, texts, ids);
+        }
+
+        if (!progress.isEmpty())
+        {
+            List<Object[]> prms = new ArrayList<Object[]>(progress.size());
+            for (Map.Entry<Integer, Integer> e : progress.entrySet())
+            {
+                prms.add(new Object[] { e.getValue(), e.getKey() });
+            }
+            cnx.runUpdateBatch("jj_update_progress_by_id", prms);
+        }
+    }
+
+    private static void writeOneByOne(DbConn cnx, List<PendingMessage> toWrite, Map<Integer, Integer> progressToWrite)
+    {
+        for (PendingMessage m : toWrite)
+        {
+            try
+            {
+                Message.create(cnx, m.text, m.jobInstanceId);
+                cnx.commit();
+            }
+            catch (RuntimeException e)
+            {
+                jqmlogger.error("Message from job instance " + m.jobInstanceId + " could not be written and is dropped", e);
+                cnx.rollback();
+            }
+        }
+        for (Map.Entry<Integer, Integer> e : progressToWrite.entrySet())
+        {
+            try
+            {
+                cnx.runUpdate("jj_update_progress_by_id", e.getValue(), e.getKey());
+                cnx.commit();
+            }
+            catch (RuntimeException ex)
+            {
+                jqmlogger.error("Progress of job instance " + e.getKey() + " could not be written and is dropped", ex);
+                cnx.rollback();
+            }
+        }
+    }
+
+    /**
+     * Writes everything waiting then stops the buffer thread.
+     */
+    void stop()
+    {
+        run = false;
+        synchronized (sleepLock)
+        {
+            sleepLock.notifyAll();
+        }
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    @Override
+    public void run()
+    {
+        while (run)
+        {
+            try
+            {
+                synchronized (sleepLock)
+                {
+                    if (run)
+                    {
+                        sleepLock.wait(flushPeriodMs);
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+            if (!run)
+            {
+                break; // Final flush is done by stop().
+            }
+
+            try
+            {
+                flush();
+            }
+            catch (RuntimeException e)
+            {
+                jqmlogger.error("Could not write payload messages", e);
+            }
+        }
+    }
+}
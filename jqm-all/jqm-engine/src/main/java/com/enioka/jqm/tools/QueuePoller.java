@@ -22,8 +22,13 @@ import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
@@ -37,13 +42,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.enioka.jqm.jdbc.DbConn;
-import com.enioka.jqm.jdbc.QueryResult;
+import com.enioka.jqm.jdbc.DbHelper;
 import com.enioka.jqm.model.DeploymentParameter;
-import com.enioka.jqm.model.GlobalParameter;
 import com.enioka.jqm.model.JobInstance;
 import com.enioka.jqm.model.Queue;
 import com.enioka.jqm.model.ResourceManager;
 import com.enioka.jqm.model.State;
+import com.enioka.jqm.tools.ResourceManagerBase.BookingStatus;
 
 /**
  * A thread that polls a queue according to the parameters defined inside a {@link DeploymentParameter}.
@@ -57,6 +62,8 @@ class QueuePoller implements Runnable, QueuePollerMBean
     private int maxNbThread = 10;
     private boolean paused = false;
     private int pollingInterval = 10000;
+    private Integer pollingIntervalMax = null;
+    private volatile int effectivePollingInterval = 10000;
     private int dpId;
     private boolean strictPollingPeriod = false;
 
@@ -74,6 +81,44 @@ class QueuePoller implements Runnable, QueuePollerMBean
     private Thread localThread = null;
     private Semaphore loop;
 
+    // Only set when the queue is polled by the node-level poller and not by this object's own thread.
+    private NodePoller nodePoller = null;
+    private volatile boolean loopRequested = false;
+
+    // Prefetch: JI already claimed by this node (ATTRIBUTED) which wait for a free thread. The list is its own lock.
+    private volatile int prefetchSize = 0;
+    private volatile long prefetchMaxWaitMs = 10000;
+    private final LinkedList<PrefetchedJobInstance> prefetched = new LinkedList<PrefetchedJobInstance>();
+
+    private static class PrefetchedJobInstance
+    {
+        private final JobInstance ji;
+        private final List<ResourceManagerBase> bookedRms;
+        private final long claimTime = System.currentTimeMillis();
+
+        private PrefetchedJobInstance(JobInstance ji, List<ResourceManagerBase> bookedRms)
+        {
+            this.ji = ji;
+            this.bookedRms = bookedRms;
+        }
+    }
+
+    /**
+     * The JI of a loop for which resources were booked, from booking until they are launched (or their bookings rolled back).
+     */
+    static class Booking
+    {
+        private final Map<JobInstance, List<ResourceManagerBase>> booked = new LinkedHashMap<JobInstance, List<ResourceManagerBase>>();
+        private final Set<JobInstance> toPrefetch = new HashSet<JobInstance>();
+        private Set<Integer> claimed = null;
+        private int nbToRun = 0;
+
+        boolean isEmpty()
+        {
+            return booked.isEmpty();
+        }
+    }
+
     @Override
     public void stop()
     {
@@ -94,7 +139,17 @@ class QueuePoller implements Runnable, QueuePollerMBean
         hasStopped = false;
         run = true;
         lastLoop = null;
-        loop = new Semaphore(0);
+        loop = this.nodePoller == null ? new Semaphore(0) : this.nodePoller.getLoopSemaphore();
+    }
+
+    /**
+     * Makes this poller driven by the given node-level poller: it will not have a thread of its own, and its wake up signals go to the node
+     * poller.
+     */
+    void attach(NodePoller nodePoller)
+    {
+        this.nodePoller = nodePoller;
+        this.loop = nodePoller.getLoopSemaphore();
     }
 
     QueuePoller(JqmEngine engine, Queue q, DeploymentParameter dp)
@@ -113,17 +168,7 @@ class QueuePoller implements Runnable, QueuePollerMBean
         QuantityResourceManager threadResourceManager = new QuantityResourceManager(threadresourceManagerConfiguration);
         this.resourceManagers.add(threadResourceManager);
 
-        // Hard code a highlander RM
-        ResourceManager highlanderResourceManagerConfiguration = new ResourceManager();
-        highlanderResourceManagerConfiguration.setClassName(HighlanderResourceManager.class.getCanonicalName());
-        highlanderResourceManagerConfiguration.setDeploymentParameterId(dp.getId());
-        highlanderResourceManagerConfiguration.setEnabled(true);
-        highlanderResourceManagerConfiguration.setKey("highlander");
-        highlanderResourceManagerConfiguration.setNodeId(null);
-        HighlanderResourceManager highlanderResourceManager = new HighlanderResourceManager(highlanderResourceManagerConfiguration);
-        this.resourceManagers.add(highlanderResourceManager);
-
-        // Add global resource managers
+        // Add global resource managers (including highlander)
         this.resourceManagers.addAll(engine.getResourceManagers());
 
         // Synchronize parameters
@@ -136,11 +181,21 @@ class QueuePoller implements Runnable, QueuePollerMBean
     void applyDeploymentParameter(DeploymentParameter dp)
     {
         this.pollingInterval = dp.getPollingInterval();
+        this.pollingIntervalMax = dp.getPollingIntervalMax();
+        this.effectivePollingInterval = this.pollingInterval;
         this.maxNbThread = !this.paused && dp.getEnabled() ? dp.getNbThread() : 0;
         this.dpId = dp.getId();
 
-        jqmlogger.info("Engine {}" + " will poll JobInstances on queue {} every {} s", engine.getNode().getName(), queue.getName(),
-                pollingInterval / 1000);
+        if (this.pollingIntervalMax == null || this.pollingIntervalMax <= this.pollingInterval)
+        {
+            jqmlogger.info("Engine {}" + " will poll JobInstances on queue {} every {} s", engine.getNode().getName(), queue.getName(),
+                    pollingInterval / 1000);
+        }
+        else
+        {
+            jqmlogger.info("Engine {}" + " will poll JobInstances on queue {} every {} to {} s depending on activity",
+                    engine.getNode().getName(), queue.getName(), pollingInterval / 1000, pollingIntervalMax / 1000);
+        }
 
         this.threadresourceManagerConfiguration.addParameter("com.enioka.jqm.rm.quantity.quantity", "" + this.maxNbThread);
         this.resourceManagers.get(0).refreshConfiguration(this.threadresourceManagerConfiguration);
@@ -158,14 +213,27 @@ class QueuePoller implements Runnable, QueuePollerMBean
             return;
         }
 
-        DeploymentParameter p = prms.get(0);
-        if (p.getPollingInterval() != this.pollingInterval || (p.getEnabled() && !this.paused && this.maxNbThread != p.getNbThread())
+        refreshDeploymentParameter(prms.get(0),
+                Boolean.parseBoolean(this.engine.getGlobalParameters().getParameter("strictPollingPeriod", "false")));
+    }
+
+    /**
+     * Same as {@link #refreshDeploymentParameter(DbConn)} with already loaded parameters.
+     */
+    void refreshDeploymentParameter(DeploymentParameter p, boolean strictPollingPeriod)
+    {
+        if (p.getPollingInterval() != this.pollingInterval
+                || (p.getPollingIntervalMax() == null ? this.pollingIntervalMax != null
+                        : !p.getPollingIntervalMax().equals(this.pollingIntervalMax))
+                || (p.getEnabled() && !this.paused && this.maxNbThread != p.getNbThread())
                 || (this.maxNbThread > 0 && (!p.getEnabled() || this.paused)) || (this.maxNbThread == 0 && p.getEnabled() && !this.paused))
         {
             applyDeploymentParameter(p);
         }
 
-        this.strictPollingPeriod = Boolean.parseBoolean(GlobalParameter.getParameter(cnx, "strictPollingPeriod", "false"));
+        this.strictPollingPeriod = strictPollingPeriod;
+        this.prefetchSize = Integer.parseInt(this.engine.getGlobalParameters().getParameter("prefetchSize", "0"));
+        this.prefetchMaxWaitMs = Long.parseLong(this.engine.getGlobalParameters().getParameter("prefetchMaxWaitMs", "10000"));
     }
 
     private void registerMBean()
@@ -198,7 +266,29 @@ class QueuePoller implements Runnable, QueuePollerMBean
         }
     }
 
-    private int potentialFreeRoom()
+    /**
+     * Adaptive polling: the interval doubles (up to its max) when the queue looks empty, and is halved (down to the configured interval)
+     * when the queue holds more job instances than this poller can currently run. Does nothing if no max is set.
+     */
+    private void adaptPollingInterval(int polledCount, int freeRoom)
+    {
+        if (this.pollingIntervalMax == null || this.pollingIntervalMax <= this.pollingInterval)
+        {
+            this.effectivePollingInterval = this.pollingInterval;
+            return;
+        }
+
+        if (polledCount == 0)
+        {
+            this.effectivePollingInterval = (int) Math.min(this.pollingIntervalMax, this.effectivePollingInterval * 2L);
+        }
+        else if (polledCount > freeRoom)
+        {
+            this.effectivePollingInterval = Math.max(this.pollingInterval, this.effectivePollingInterval / 2);
+        }
+    }
+
+    int potentialFreeRoom()
     {
         int room = Integer.MAX_VALUE;
         for (ResourceManagerBase rm : this.resourceManagers)
@@ -208,6 +298,21 @@ class QueuePoller implements Runnable, QueuePollerMBean
         return room;
     }
 
+    /**
+     * How many more JI may be claimed in advance, to be started as soon as a thread is free. 0 if prefetch is disabled.
+     */
+    int prefetchRoom()
+    {
+        if (this.prefetchSize <= 0 || this.maxNbThread == 0 || !this.run)
+        {
+            return 0;
+        }
+        synchronized (this.prefetched)
+        {
+            return Math.max(0, this.prefetchSize - this.prefetched.size());
+        }
+    }
+
     @Override
     public synchronized void run() // sync: avoid race condition on run when restarting after failure.
     {
@@ -217,7 +322,7 @@ class QueuePoller implements Runnable, QueuePollerMBean
 
         while (true)
         {
-            lastLoop = Calendar.getInstance();
+            beginLoop();
             jqmlogger.trace("poller loop");
 
             try
@@ -225,90 +330,14 @@ class QueuePoller implements Runnable, QueuePollerMBean
                 // Always check latest polling parameters
                 cnx = Helpers.getNewDbSession();
                 refreshDeploymentParameter(cnx);
+                expirePrefetched(cnx);
 
                 // Free room?
                 int freeRoom = potentialFreeRoom();
-                if (freeRoom > 0)
+                int prefetchRoom = prefetchRoom();
+                if (freeRoom > 0 || prefetchRoom > 0)
                 {
-                    // Fetch the queue head. * 3 because we may reject quite a few JI inside resource managers.
-                    List<JobInstance> newInstances = cnx.poll(this.queue, freeRoom > 100000 ? Integer.MAX_VALUE : freeRoom * 3);
-                    jqmlogger.trace("Poller has selected {} JIs to run", newInstances.size());
-
-                    jiloop: for (JobInstance ji : newInstances)
-                    {
-                        // TODO: bulk load parameters
-                        ji.loadPrmCache(cnx);
-
-                        // Check if we have the resources needed to run this JI
-                        List<ResourceManagerBase> alreadyReserved = new ArrayList<ResourceManagerBase>(this.resourceManagers.size());
-                        for (ResourceManagerBase rm : this.resourceManagers)
-                        {
-                            switch (rm.bookResource(ji, cnx))
-                            {
-                            case BOOKED:
-                                // OK, nothing to do.
-                                alreadyReserved.add(rm);
-                                break;
-                            case EXHAUSTED:
-                                // Stop the loop - cannot do anything anymore with these resources.
-                                jqmlogger.trace("Poller has a full RM");
-                                for (ResourceManagerBase reservedRm : alreadyReserved)
-                                {
-                                    reservedRm.rollbackResourceBooking(ji, cnx);
-                                }
-                                break jiloop;
-                            case FAILED:
-                                // Skip this JI - no resource for it but there may be resources for the next ones.
-                                jqmlogger.trace("Head JI asks for unavailable resources, skipping to next one");
-                                for (ResourceManagerBase reservedRm : alreadyReserved)
-                                {
-                                    reservedRm.rollbackResourceBooking(ji, cnx);
-                                }
-                                continue jiloop;
-                            }
-                        }
-
-                        // Actually set it for running on this node and report it on the in-memory object.
-                        QueryResult qr = cnx.runUpdate("ji_update_status_by_id", this.engine.getNode().getId(), ji.getId());
-                        if (qr.nbUpdated != 1)
-                        {
-                            // Means the JI was taken by another node, so simply continue.
-                            for (ResourceManagerBase reservedRm : alreadyReserved)
-                            {
-                                reservedRm.rollbackResourceBooking(ji, cnx);
-                            }
-                            continue;
-                        }
-                        ji.setNode(this.engine.getNode());
-                        ji.setState(State.ATTRIBUTED);
-
-                        // Commit taking possession of the JI (as well as anything whih may have been done inside the RMs)
-                        actualNbThread.incrementAndGet();
-                        jqmlogger.trace("Commit");
-                        cnx.commit();
-                        for (ResourceManagerBase reservedRm : alreadyReserved)
-                        {
-                            reservedRm.commitResourceBooking(ji, cnx); // after transaction commit.
-                        }
-
-                        // We will run this JI!
-                        jqmlogger.trace("JI number {} will be run by this poller this loop (already {}/{} on {})", ji.getId(),
-                                actualNbThread, maxNbThread, this.queue.getName());
-                        if (ji.getJD().getMaxTimeRunning() != null)
-                        {
-                            this.peremption.put(ji.getId(), new Date((new Date()).getTime() + ji.getJD().getMaxTimeRunning() * 60 * 1000));
-                        }
-
-                        // Run it
-                        if (!ji.getJD().isExternal())
-                        {
-                            this.engine.getRunningJobInstanceManager().startNewJobInstance(ji, this);
-                        }
-                        else
-                        {
-                            (new Thread(new RunningExternalJobInstance(cnx, ji, this))).start();
-                        }
-                    }
+                    launch(cnx, cnx.poll(this.queue, headSize(freeRoom + prefetchRoom)), freeRoom);
                 }
             }
             catch (RuntimeException e)
@@ -353,7 +382,7 @@ class QueuePoller implements Runnable, QueuePollerMBean
             // Wait according to the deploymentParameter
             try
             {
-                loop.tryAcquire(this.pollingInterval, TimeUnit.MILLISECONDS);
+                loop.tryAcquire(this.effectivePollingInterval, TimeUnit.MILLISECONDS);
             }
             catch (InterruptedException e)
             {
@@ -373,37 +402,432 @@ class QueuePoller implements Runnable, QueuePollerMBean
             // Run is true only if the loop has exited abnormally, in which case the engine should try to restart the poller
             // So only do the graceful shutdown procedure if normal shutdown.
 
-            jqmlogger
-                    .info("Poller loop on queue " + this.queue.getName() + " is stopping [engine " + this.engine.getNode().getName() + "]");
-            waitForAllThreads(60L * 1000);
+            shutdown();
+        }
+        else
+        {
+            // else => Abnormal stop (DB failure only). Set booleans to reflect this.
+            jqmlogger.error("Poller on queue " + this.queue.getName() + " has ended abnormally");
+            this.run = false;
+            this.hasStopped = true;
+            // Do not check for engine end - we do not want to shut down the engine on a poller failure.
+        }
+        localThread = null;
+    }
+
+    /**
+     * The graceful shutdown procedure, once the poller has stopped looping: waits for the running JI, then lets the engine decide if it
+     * should stop.
+     */
+    void shutdown()
+    {
+        jqmlogger.info("Poller loop on queue " + this.queue.getName() + " is stopping [engine " + this.engine.getNode().getName() + "]");
+        returnPrefetched();
+        waitForAllThreads(60L * 1000);
 
-            // JMX
-            if (this.engine.loadJmxBeans)
+        // JMX
+        if (this.engine.loadJmxBeans)
+        {
+            try
             {
-                try
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+            catch (Exception e)
+            {
+                jqmlogger.error("Could not unregister JMX beans", e);
+            }
+        }
+
+        // Let the engine decide if it should stop completely
+        this.hasStopped = true; // BEFORE check
+        jqmlogger.info("Poller on queue " + this.queue.getName() + " has ended normally");
+        this.engine.checkEngineEnd();
+    }
+
+    /**
+     * Marks the beginning of a loop on this queue.
+     */
+    void beginLoop()
+    {
+        this.lastLoop = Calendar.getInstance();
+        this.loopRequested = false;
+    }
+
+    /**
+     * How many JI to fetch from the queue head for the given free room. * 3 because we may reject quite a few JI inside resource managers.
+     */
+    static int headSize(int freeRoom)
+    {
+        return freeRoom > 100000 ? Integer.MAX_VALUE : freeRoom * 3;
+    }
+
+    /**
+     * Books resources for as many of the given queue head JI as possible, then takes possession of them and launches them.
+     */
+    void launch(DbConn cnx, List<JobInstance> newInstances, int freeRoom)
+    {
+        Booking booking = book(cnx, newInstances, freeRoom);
+        if (booking.isEmpty())
+        {
+            return;
+        }
+
+        try
+        {
+            claim(cnx, booking);
+            cnx.commit();
+        }
+        catch (RuntimeException e)
+        {
+            rollbackClaim(cnx, booking);
+            throw e;
+        }
+        startClaimed(cnx, booking);
+    }
+
+    /**
+     * Books resources for as many of the given queue head JI as possible. Nothing is written inside the JI table. If this method fails,
+     * nothing stays booked.
+     */
+    Booking book(DbConn cnx, List<JobInstance> newInstances, int freeRoom)
+    {
+        jqmlogger.trace("Poller has selected {} JIs to run", newInstances.size());
+        adaptPollingInterval(newInstances.size(), freeRoom);
+
+        // JI claimed during previous loops go first.
+        launchPrefetched();
+
+        // The poll query does not join the metadata, which comes from the engine cache.
+        this.engine.getMetadataCache().resolve(cnx, newInstances);
+
+        // Book resources for as many JI as possible. Nothing is written inside the JI table yet.
+        // Parameters are only read (in bulk) when first needed, usually by the first RM analysing the first JI.
+        JobInstance.loadPrmCacheLazily(cnx, newInstances);
+
+        Booking booking = new Booking();
+        Map<JobInstance, List<ResourceManagerBase>> booked = booking.booked;
+        Set<JobInstance> toPrefetch = booking.toPrefetch;
+        int prefetchRoom = prefetchRoom();
+        List<ResourceManagerBase> alreadyReserved = null;
+        JobInstance current = null;
+        try
+        {
+            jiloop: for (JobInstance ji : newInstances)
+            {
+                // Check if we have the resources needed to run this JI
+                boolean prefetch = false;
+                current = ji;
+                alreadyReserved = new ArrayList<ResourceManagerBase>(this.resourceManagers.size());
+                for (ResourceManagerBase rm : this.resourceManagers)
                 {
-                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+                    BookingStatus status = rm.bookResource(ji, cnx);
+                    if (status != BookingStatus.BOOKED && rm == this.resourceManagers.get(0) && toPrefetch.size() < prefetchRoom
+                            && !ji.getJD().isHighlander() && !ji.getJD().isExternal())
+                    {
+                        // No free thread (first RM), but the JI may wait for one inside the prefetch buffer. Its thread is booked on start.
+                        prefetch = true;
+                        continue;
+                    }
+
+                    switch (status)
+                    {
+                    case BOOKED:
+                        // OK, nothing to do.
+                        alreadyReserved.add(rm);
+                        break;
+                    case EXHAUSTED:
+                        // Stop the loop - cannot do anything anymore with these resources.
+                        jqmlogger.trace("Poller has a full RM");
+                        rollbackBookings(ji, alreadyReserved, cnx);
+                        break jiloop;
+                    case FAILED:
+                        // Skip this JI - no resource for it but there may be resources for the next ones.
+                        jqmlogger.trace("Head JI asks for unavailable resources, skipping to next one");
+                        rollbackBookings(ji, alreadyReserved, cnx);
+                        continue jiloop;
+                    }
                 }
-                catch (Exception e)
+                booked.put(ji, alreadyReserved);
+                if (prefetch)
                 {
-                    jqmlogger.error("Could not unregister JMX beans", e);
+                    toPrefetch.add(ji);
                 }
             }
+            current = null;
+        }
+        catch (RuntimeException e)
+        {
+            // Nothing was claimed: give back everything booked during this loop.
+            if (current != null)
+            {
+                rollbackBookings(current, alreadyReserved, cnx);
+            }
+            for (Map.Entry<JobInstance, List<ResourceManagerBase>> entry : booked.entrySet())
+            {
+                rollbackBookings(entry.getKey(), entry.getValue(), cnx);
+            }
+            throw e;
+        }
+        return booking;
+    }
+
+    /**
+     * Takes possession of all the JI for which resources were booked with a single set-based update. JI which were taken by another node
+     * in the meantime are found out here, and have their bookings rolled back in {@link #startClaimed(DbConn, Booking)}. Does not commit:
+     * the caller commits (so that a single commit may be used for several queues), then calls
+     * {@link #startClaimed(DbConn, Booking)} - or {@link #rollbackClaim(DbConn, Booking)} if anything failed.
+     */
+    void claim(DbConn cnx, Booking booking)
+    {
+        List<Integer> ids = new ArrayList<Integer>(booking.booked.size());
+        for (JobInstance ji : booking.booked.keySet())
+        {
+            ids.add(ji.getId());
+        }
+
+        // Actually set them for running on this node.
+        int nbClaimed = 0;
+        for (List<Integer> chunk : DbHelper.splitInClause(ids))
+        {
+            nbClaimed += cnx.runUpdate("ji_update_status_by_id_list", this.engine.getNode().getId(), chunk).nbUpdated;
+        }
 
-            // Let the engine decide if it should stop completely
-            this.hasStopped = true; // BEFORE check
-            jqmlogger.info("Poller on queue " + this.queue.getName() + " has ended normally");
-            this.engine.checkEngineEnd();
+        Set<Integer> claimed;
+        if (nbClaimed == ids.size())
+        {
+            claimed = new HashSet<Integer>(ids);
         }
         else
         {
-            // else => Abnormal stop (DB failure only). Set booleans to reflect this.
-            jqmlogger.error("Poller on queue " + this.queue.getName() + " has ended abnormally");
-            this.run = false;
-            this.hasStopped = true;
-            // Do not check for engine end - we do not want to shut down the engine on a poller failure.
+            // Some JI were taken by another node - find out which ones are ours.
+            claimed = new HashSet<Integer>(nbClaimed);
+            for (List<Integer> chunk : DbHelper.splitInClause(ids))
+            {
+                claimed.addAll(cnx.runSelectColumn("ji_select_attributed_by_node_id_list", Integer.class, this.engine.getNode().getId(),
+                        chunk));
+            }
+        }
+
+        // Threads are counted before the commit, so that they cannot be given to someone else in the meantime.
+        int nbToRun = 0;
+        for (JobInstance ji : booking.booked.keySet())
+        {
+            if (claimed.contains(ji.getId()) && !booking.toPrefetch.contains(ji))
+            {
+                nbToRun++;
+            }
+        }
+        actualNbThread.addAndGet(nbToRun);
+        booking.nbToRun = nbToRun;
+        booking.claimed = claimed;
+    }
+
+    /**
+     * Gives back everything booked or counted for the given booking, when the transaction claiming it could not be committed.
+     */
+    void rollbackClaim(DbConn cnx, Booking booking)
+    {
+        actualNbThread.addAndGet(-booking.nbToRun);
+        booking.nbToRun = 0;
+        for (Map.Entry<JobInstance, List<ResourceManagerBase>> entry : booking.booked.entrySet())
+        {
+            rollbackBookings(entry.getKey(), entry.getValue(), cnx);
+        }
+    }
+
+    /**
+     * Once the claim is committed, launches the claimed JI (or puts them inside the prefetch buffer) and rolls back the bookings of JI
+     * which were taken by another node.
+     */
+    void startClaimed(DbConn cnx, Booking booking)
+    {
+        for (Map.Entry<JobInstance, List<ResourceManagerBase>> entry : booking.booked.entrySet())
+        {
+            JobInstance ji = entry.getKey();
+            if (!booking.claimed.contains(ji.getId()))
+            {
+                // Means the JI was taken by another node, so simply continue.
+                rollbackBookings(ji, entry.getValue(), cnx);
+                continue;
+            }
+
+            // Report it on the in-memory object. Parameters must be loaded while the poller connection is still open.
+            ji.setNode(this.engine.getNode());
+            ji.setState(State.ATTRIBUTED);
+            ji.getPrms();
+            for (ResourceManagerBase reservedRm : entry.getValue())
+            {
+                reservedRm.commitResourceBooking(ji, cnx); // after transaction commit.
+            }
+
+            if (booking.toPrefetch.contains(ji))
+            {
+                jqmlogger.trace("JI number {} is prefetched by this poller and will run as soon as a thread is free on {}", ji.getId(),
+                        this.queue.getName());
+                synchronized (this.prefetched)
+                {
+                    this.prefetched.add(new PrefetchedJobInstance(ji, entry.getValue()));
+                }
+                continue;
+            }
+
+            // We will run this JI!
+            jqmlogger.trace("JI number {} will be run by this poller this loop (already {}/{} on {})", ji.getId(), actualNbThread,
+                    maxNbThread, this.queue.getName());
+            start(cnx, ji);
+        }
+
+        // A thread may have been freed while prefetching.
+        if (!booking.toPrefetch.isEmpty())
+        {
+            launchPrefetched();
+        }
+    }
+
+    /**
+     * Rolls back the bookings of a JI in all the given RMs, even if one of them fails, so that no RM keeps a booking for a JI which will
+     * not run.
+     */
+    private void rollbackBookings(JobInstance ji, List<ResourceManagerBase> reserved, DbConn cnx)
+    {
+        for (ResourceManagerBase reservedRm : reserved)
+        {
+            try
+            {
+                reservedRm.rollbackResourceBooking(ji, cnx);
+            }
+            catch (RuntimeException e)
+            {
+                jqmlogger.warn("Could not rollback the resource booking of JI " + ji.getId(), e);
+            }
+        }
+    }
+
+    private void start(DbConn cnx, JobInstance ji)
+    {
+        if (ji.getJD().getMaxTimeRunning() != null)
+        {
+            this.peremption.put(ji.getId(), new Date((new Date()).getTime() + ji.getJD().getMaxTimeRunning() * 60 * 1000));
+        }
+
+        // Run it
+        if (!ji.getJD().isExternal())
+        {
+            this.engine.getRunningJobInstanceManager().startNewJobInstance(ji, this);
+        }
+        else
+        {
+            // The watcher of an external JI only waits for its process: it does not need (nor should hold) a payload pool thread.
+            this.engine.getRunningJobInstanceManager().startThread(new RunningExternalJobInstance(cnx, ji, this), ji.getPriority(), false);
+        }
+    }
+
+    /**
+     * Starts prefetched JI as long as there are free threads. Prefetched JI are never external, so no connection is needed.
+     */
+    private void launchPrefetched()
+    {
+        ResourceManagerBase threadRm = this.resourceManagers.get(0);
+        while (this.run)
+        {
+            PrefetchedJobInstance p;
+            synchronized (this.prefetched)
+            {
+                p = this.prefetched.peek();
+                if (p == null || threadRm.bookResource(p.ji, null) != BookingStatus.BOOKED)
+                {
+                    return;
+                }
+                this.prefetched.poll();
+                actualNbThread.incrementAndGet();
+            }
+            threadRm.commitResourceBooking(p.ji, null);
+
+            jqmlogger.trace("Prefetched JI number {} starts after waiting {} ms (already {}/{} on {})", p.ji.getId(),
+                    System.currentTimeMillis() - p.claimTime, actualNbThread, maxNbThread, this.queue.getName());
+            start(null, p.ji);
+        }
+    }
+
+    /**
+     * Puts back inside the queue the prefetched JI which have waited too long for a thread (all of them if the poller is stopping), so that
+     * other nodes may run them.
+     */
+    void expirePrefetched(DbConn cnx)
+    {
+        List<PrefetchedJobInstance> expired = new ArrayList<PrefetchedJobInstance>();
+        long limit = System.currentTimeMillis() - this.prefetchMaxWaitMs;
+        synchronized (this.prefetched)
+        {
+            Iterator<PrefetchedJobInstance> it = this.prefetched.iterator();
+            while (it.hasNext())
+            {
+                PrefetchedJobInstance p = it.next();
+                if (!this.run || this.prefetchSize <= 0 || p.claimTime < limit)
+                {
+                    expired.add(p);
+                    it.remove();
+                }
+            }
+        }
+        if (expired.isEmpty())
+        {
+            return;
+        }
+
+        try
+        {
+            for (PrefetchedJobInstance p : expired)
+            {
+                cnx.runUpdate("ji_update_back_to_submitted", this.engine.getNode().getId(), p.ji.getId());
+            }
+            cnx.commit();
+        }
+        catch (RuntimeException e)
+        {
+            // Keep them, the next loop will try again.
+            synchronized (this.prefetched)
+            {
+                this.prefetched.addAll(0, expired);
+            }
+            throw e;
+        }
+
+        for (PrefetchedJobInstance p : expired)
+        {
+            for (ResourceManagerBase rm : p.bookedRms)
+            {
+                rm.releaseResource(p.ji);
+            }
+        }
+        jqmlogger.debug("{} prefetched job instances were put back inside queue {}", expired.size(), this.queue.getName());
+    }
+
+    private void returnPrefetched()
+    {
+        synchronized (this.prefetched)
+        {
+            if (this.prefetched.isEmpty())
+            {
+                return;
+            }
+        }
+
+        DbConn cnx = null;
+        try
+        {
+            cnx = Helpers.getNewDbSession();
+            expirePrefetched(cnx);
+        }
+        catch (RuntimeException e)
+        {
+            // They will be put back inside the queue on next engine startup.
+            jqmlogger.error("Could not put back prefetched job instances inside queue " + this.queue.getName(), e);
+        }
+        finally
+        {
+            Helpers.closeQuietly(cnx);
         }
-        localThread = null;
     }
 
     @Override
@@ -424,20 +848,61 @@ class QueuePoller implements Runnable, QueuePollerMBean
         {
             rm.releaseResource(ji);
         }
+        launchPrefetched();
 
         if (!this.strictPollingPeriod)
         {
             // Force a new loop at once. This makes queues more fluid.
+            loopRequested = true;
             loop.release(1);
         }
         this.engine.signalEndOfRun();
     }
 
+    /**
+     * Called when new job instances may be waiting inside the queue. Forces a new loop at once, unless strict polling is required or there
+     * is no room for new job instances (the poller will loop anyway when room is made).
+     */
+    void wakeUp()
+    {
+        if (!this.strictPollingPeriod && potentialFreeRoom() > 0)
+        {
+            loopRequested = true;
+            loop.release(1);
+        }
+    }
+
     boolean isRunning()
     {
         return !this.hasStopped;
     }
 
+    /**
+     * True if a stop was requested (or the poller has failed) but the shutdown procedure has not run yet.
+     */
+    boolean isStopping()
+    {
+        return !this.run && !this.hasStopped;
+    }
+
+    /**
+     * The time (in ms since epoch) at which this queue should be polled next, according to its polling interval and to the wake up signals
+     * received since its last loop.
+     */
+    long getNextLoopTime()
+    {
+        if (this.lastLoop == null || this.loopRequested)
+        {
+            return 0;
+        }
+        return this.lastLoop.getTimeInMillis() + this.effectivePollingInterval;
+    }
+
+    int getDeploymentParameterId()
+    {
+        return this.dpId;
+    }
+
     private void waitForAllThreads(long timeOutMs)
     {
         long timeWaitedMs = 0;
@@ -505,6 +970,7 @@ class QueuePoller implements Runnable, QueuePollerMBean
     void setPollingInterval(int ms)
     {
         this.pollingInterval = ms;
+        this.effectivePollingInterval = ms;
     }
 
     // //////////////////////////////////////////////////////////
@@ -552,6 +1018,12 @@ class QueuePoller implements Runnable, QueuePollerMBean
         return this.pollingInterval;
     }
 
+    @Override
+    public Integer getEffectivePollingIntervalMilliseconds()
+    {
+        return this.effectivePollingInterval;
+    }
+
     @Override
     public Integer getMaxConcurrentJobInstanceCount()
     {
@@ -562,7 +1034,7 @@ class QueuePoller implements Runnable, QueuePollerMBean
     public boolean isActuallyPolling()
     {
         // 1000ms is a rough estimate of the time taken to do the actual poll. If it's more, there is a huge issue elsewhere.
-        return (Calendar.getInstance().getTimeInMillis() - this.lastLoop.getTimeInMillis()) <= pollingInterval + 1000;
+        return (Calendar.getInstance().getTimeInMillis() - this.lastLoop.getTimeInMillis()) <= effectivePollingInterval + 1000;
     }
 
     @Override
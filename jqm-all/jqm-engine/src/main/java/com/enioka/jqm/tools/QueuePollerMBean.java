@@ -35,6 +35,12 @@ public interface QueuePollerMBean
      */
     Integer getPollingIntervalMilliseconds();
 
+    /**
+     * Number of milliseconds the poller will actually wait before its next database check. Equals {@link #getPollingIntervalMilliseconds()}
+     * unless the polling interval is adaptive.
+     */
+    Integer getEffectivePollingIntervalMilliseconds();
+
     /**
      * Max number of simultaneously running job instances on this queue on this engine
      */
@@ -57,7 +63,7 @@ public interface QueuePollerMBean
     long getCurrentlyRunningJobCount();
 
     /**
-     * True if the last time the poller looped was less than a period ago.
+     * True if the last time the poller looped was less than a period ago (using the effective period).
      */
     boolean isActuallyPolling();
 
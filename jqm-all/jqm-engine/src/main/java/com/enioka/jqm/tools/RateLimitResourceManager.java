@@ -0,0 +1,452 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.enioka.jqm.jdbc.DbConn;
+import com.enioka.jqm.model.JobInstance;
+import com.enioka.jqm.model.ResourceManager;
+
+/**
+ * A Resource Manager which limits the number of job instances starting per period of time, whatever their run duration. Each start takes
+ * tokens from a bucket, which is refilled at a constant rate up to its capacity. There is a bucket per RM, and job instances may also ask
+ * for a bucket of their own with a parameter (for example one bucket per downstream API).<br>
+ * Buckets are lock-free: each one is a single atomic "theoretical arrival time" (the time at which the bucket would be full again), so
+ * pollers of different queues never wait for each other.<br>
+ * Tokens are only given back if the job instance is not launched in the end - once started, the job instance has used its tokens.<br>
+ * This RM has no persistence - buckets are full on startup.<br>
+ * By default it allows 10 starts per second, and JI do NOT use any token - only job instances with the right parameter are concerned.
+ */
+class RateLimitResourceManager extends ResourceManagerBase implements RateLimitResourceManagerMBean
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(RateLimitResourceManager.class);
+
+    private static String PRM_ROOT = "com.enioka.jqm.rm.ratelimit.";
+    private static String PRM_RATE = "rate";
+    private static String PRM_PERIOD = "period";
+    private static String PRM_CAPACITY = "capacity";
+    private static String PRM_CONSUMPTION = "consumption";
+    private static String PRM_BUCKET = "bucket";
+
+    private static final String DEFAULT_BUCKET = "";
+
+    /**
+     * Above this number of buckets, full buckets (which are the same as new ones) are removed when a new bucket is created. Buckets which
+     * are not full cannot be removed, but there cannot be more of them than starts during one refill of a bucket.
+     */
+    private static final int BUCKET_SWEEP_THRESHOLD = 100;
+
+    /**
+     * Value of the theoretical arrival time of a bucket removed from the bucket map. Such a bucket must not be used anymore.
+     */
+    private static final long RETIRED = Long.MIN_VALUE;
+
+    /**
+     * Nanoseconds between two tokens.
+     */
+    private volatile long emissionIntervalNs;
+
+    /**
+     * Max number of tokens inside a bucket.
+     */
+    private volatile long capacity;
+
+    private volatile int defaultConsumption;
+
+    private ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+    private Map<Integer, Booking> bookings = new ConcurrentHashMap<Integer, Booking>();
+
+    private AtomicLong granted = new AtomicLong(0);
+    private AtomicLong refused = new AtomicLong(0);
+
+    private ObjectName name = null;
+
+    private class Bucket
+    {
+        /**
+         * The bucket is full when this is in the past. Each token taken pushes it one emission interval further. A booking fails if it
+         * would push it further than the capacity from now.
+         */
+        private AtomicLong tat = new AtomicLong(System.nanoTime());
+
+        /**
+         * @return false if the tokens are not available, or if the bucket is retired (see {@link #isRetired()}).
+         */
+        private boolean tryTake(int tokens)
+        {
+            while (true)
+            {
+                long now = System.nanoTime();
+                long current = tat.get();
+                if (current == RETIRED)
+                {
+                    return false;
+                }
+                long next = (current - now > 0 ? current : now) + tokens * emissionIntervalNs;
+                if (next - now > capacity * emissionIntervalNs)
+                {
+                    return false;
+                }
+                if (tat.compareAndSet(current, next))
+                {
+                    return true;
+                }
+            }
+        }
+
+        private void giveBack(int tokens)
+        {
+            while (true)
+            {
+                long now = System.nanoTime();
+                long current = tat.get();
+                if (current == RETIRED)
+                {
+                    return;
+                }
+                long next = current - tokens * emissionIntervalNs;
+                if (next - now < 0)
+                {
+                    next = now;
+                }
+                if (tat.compareAndSet(current, next))
+                {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Marks the bucket as no longer usable if it is full. A full bucket has no memory of its past use, so it can be replaced by a new
+         * one at any time.
+         *
+         * @return true if retired.
+         */
+        private boolean retireIfFull()
+        {
+            long current = tat.get();
+            return current != RETIRED && current - System.nanoTime() <= 0 && tat.compareAndSet(current, RETIRED);
+        }
+
+        private boolean isRetired()
+        {
+            return tat.get() == RETIRED;
+        }
+
+        /**
+         * Nanoseconds before the bucket is full again.
+         */
+        private long getDebtNs()
+        {
+            return Math.max(0, tat.get() - System.nanoTime());
+        }
+
+        private long getAvailableTokens()
+        {
+            return Math.max(0, (capacity * emissionIntervalNs - getDebtNs()) / emissionIntervalNs);
+        }
+    }
+
+    private static class Booking
+    {
+        private Bucket bucket;
+        private int tokens;
+
+        private Booking(Bucket bucket, int tokens)
+        {
+            this.bucket = bucket;
+            this.tokens = tokens;
+        }
+    }
+
+    RateLimitResourceManager(ResourceManager rm)
+    {
+        super(rm);
+    }
+
+    @Override
+    protected void setDefaultProperties()
+    {
+        this.currentProperties.put(PRM_ROOT + PRM_RATE, "10");
+        this.currentProperties.put(PRM_ROOT + PRM_PERIOD, "1");
+        this.currentProperties.put(PRM_ROOT + PRM_CAPACITY, "0");
+        this.currentProperties.put(PRM_ROOT + PRM_CONSUMPTION, "0");
+        this.currentProperties.put(PRM_ROOT + PRM_BUCKET, DEFAULT_BUCKET);
+    }
+
+    @Override
+    String getParameterRoot()
+    {
+        return PRM_ROOT;
+    }
+
+    @Override
+    void refreshConfiguration(ResourceManager configuration)
+    {
+        // Read configuration
+        super.refreshConfiguration(configuration);
+        int rate = getIntegerParameter(PRM_RATE);
+        int period = getIntegerParameter(PRM_PERIOD);
+        int capacity = getIntegerParameter(PRM_CAPACITY);
+        if (rate <= 0 || period <= 0)
+        {
+            throw new JqmInitError("Rate limiting resource manager " + this.key + " must have a strictly positive rate and period");
+        }
+
+        // Existing buckets keep their content - only the refill speed changes.
+        this.emissionIntervalNs = Math.max(1, period * 1000000000L / rate);
+        this.capacity = capacity > 0 ? capacity : rate;
+        this.defaultConsumption = getIntegerParameter(PRM_CONSUMPTION);
+
+        // Log
+        jqmlogger.info(
+                "\tConfigured rate limiting resource manager [{}] with {} starts per {}s and buckets of {} tokens - "
+                        + "taking {} per JI by default",
+                this.key, rate, period, this.capacity, this.defaultConsumption);
+    }
+
+    @Override
+    BookingStatus bookResource(JobInstance ji, DbConn cnx)
+    {
+        int tokens = this.getIntegerParameter(PRM_CONSUMPTION, ji, true);
+        String bucketName = this.getStringParameter(PRM_BUCKET, ji, true);
+        if (tokens <= 0)
+        {
+            return BookingStatus.BOOKED;
+        }
+
+        if (tokens > this.capacity)
+        {
+            // Would never fit inside the bucket - take a full bucket instead of waiting forever.
+            jqmlogger.warn("Job instance {} asks for {} tokens from rate limiting resource manager {}, more than its bucket capacity. "
+                    + "It will take {}", ji.getId(), tokens, this.key, this.capacity);
+            tokens = (int) this.capacity;
+        }
+
+        Bucket bucket = getBucket(bucketName);
+        boolean taken = bucket.tryTake(tokens);
+        while (!taken && bucket.isRetired())
+        {
+            bucket = getBucket(bucketName);
+            taken = bucket.tryTake(tokens);
+        }
+        if (!taken)
+        {
+            refused.incrementAndGet();
+            // Only JI using the default bucket and consumption mean the next JI of the queue head cannot start either.
+            return DEFAULT_BUCKET.equals(bucketName) && this.defaultConsumption > 0 && tokens <= this.defaultConsumption
+                    ? BookingStatus.EXHAUSTED
+                    : BookingStatus.FAILED;
+        }
+
+        // If here, booking has succeeded.
+        granted.incrementAndGet();
+        bookings.put(ji.getId(), new Booking(bucket, tokens));
+        return BookingStatus.BOOKED;
+    }
+
+    @Override
+    void commitResourceBooking(JobInstance ji, DbConn cnx)
+    {
+        // Tokens are consumed by the start itself.
+        bookings.remove(ji.getId());
+    }
+
+    @Override
+    void rollbackResourceBooking(JobInstance ji, DbConn cnx)
+    {
+        Booking booking = bookings.remove(ji.getId());
+        if (booking != null)
+        {
+            jqmlogger.trace("Giving back {} tokens for RM {}", booking.tokens, this.key);
+            booking.bucket.giveBack(booking.tokens);
+            granted.decrementAndGet();
+        }
+    }
+
+    @Override
+    void releaseResource(JobInstance ji)
+    {
+        bookings.remove(ji.getId());
+    }
+
+    @Override
+    int getSlotsAvailable()
+    {
+        if (this.defaultConsumption <= 0)
+        {
+            return Integer.MAX_VALUE;
+        }
+        return (int) (getBucket(DEFAULT_BUCKET).getAvailableTokens() / this.defaultConsumption);
+    }
+
+    private Bucket getBucket(String bucketName)
+    {
+        while (true)
+        {
+            Bucket res = buckets.get(bucketName);
+            if (res != null && !res.isRetired())
+            {
+                return res;
+            }
+            if (res != null)
+            {
+                // Retired by a sweep which has not removed it yet.
+                buckets.remove(bucketName, res);
+                continue;
+            }
+
+            if (buckets.size() > BUCKET_SWEEP_THRESHOLD)
+            {
+                sweepBuckets();
+            }
+            Bucket newBucket = new Bucket();
+            if (buckets.putIfAbsent(bucketName, newBucket) == null)
+            {
+                return newBucket;
+            }
+        }
+    }
+
+    /**
+     * Removes all full buckets - except the default one. Buckets named after something specific to each job instance would otherwise
+     * accumulate forever.
+     */
+    private void sweepBuckets()
+    {
+        for (Map.Entry<String, Bucket> e : buckets.entrySet())
+        {
+            if (!DEFAULT_BUCKET.equals(e.getKey()) && e.getValue().retireIfFull())
+            {
+                buckets.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // JMX
+    ///////////////////////////////////////////////////////////////////////////
+
+    void registerMBean(String nodeName)
+    {
+        try
+        {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            name = new ObjectName("com.enioka.jqm:type=Node.ResourceManager,Node=" + nodeName + ",name=" + this.key);
+
+            // Unregister MBean if it already exists. This may happen if a previous engine with the same name did not stop cleanly.
+            try
+            {
+                mbs.getMBeanInfo(name);
+                mbs.unregisterMBean(name);
+            }
+            catch (InstanceNotFoundException e)
+            {
+                // Nothing to do, this should be the normal case.
+            }
+
+            mbs.registerMBean(this, name);
+        }
+        catch (Exception e)
+        {
+            throw new JqmInitError("Could not create JMX beans", e);
+        }
+    }
+
+    @Override
+    void stop()
+    {
+        if (name != null)
+        {
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+            catch (Exception e)
+            {
+                jqmlogger.error("Could not unregister JMX beans", e);
+            }
+            name = null;
+        }
+    }
+
+    @Override
+    public double getRefillRatePerSecond()
+    {
+        return 1000000000d / this.emissionIntervalNs;
+    }
+
+    @Override
+    public long getBucketCapacity()
+    {
+        return this.capacity;
+    }
+
+    @Override
+    public long getAvailableTokens()
+    {
+        return getAvailableTokensInBucket(DEFAULT_BUCKET);
+    }
+
+    @Override
+    public long getAvailableTokensInBucket(String bucket)
+    {
+        Bucket b = buckets.get(bucket == null ? DEFAULT_BUCKET : bucket);
+        return b == null ? this.capacity : b.getAvailableTokens();
+    }
+
+    @Override
+    public long getMillisecondsToNextToken()
+    {
+        Bucket b = buckets.get(DEFAULT_BUCKET);
+        long debt = b == null ? 0 : b.getDebtNs();
+        if (debt == 0)
+        {
+            return 0;
+        }
+        long res = debt % this.emissionIntervalNs;
+        return (res == 0 ? this.emissionIntervalNs : res) / 1000000;
+    }
+
+    @Override
+    public int getBucketCount()
+    {
+        return buckets.size();
+    }
+
+    @Override
+    public long getGrantedCount()
+    {
+        return granted.get();
+    }
+
+    @Override
+    public long getRefusedCount()
+    {
+        return refused.get();
+    }
+}
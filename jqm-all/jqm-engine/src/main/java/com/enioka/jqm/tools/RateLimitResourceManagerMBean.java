@@ -0,0 +1,62 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.tools;
+
+/**
+ * Monitoring interface for rate limiting resource managers.
+ */
+public interface RateLimitResourceManagerMBean
+{
+    /**
+     * How many tokens are added to each bucket per second.
+     */
+    double getRefillRatePerSecond();
+
+    /**
+     * Max number of tokens inside a bucket, that is the max number of job instances which can start at once after an idle period.
+     */
+    long getBucketCapacity();
+
+    /**
+     * Tokens currently available inside the default bucket (the one used by job instances without a bucket parameter).
+     */
+    long getAvailableTokens();
+
+    /**
+     * Tokens currently available inside the given bucket. A bucket which was never used is full.
+     */
+    long getAvailableTokensInBucket(String bucket);
+
+    /**
+     * Milliseconds before the next token is added to the default bucket. 0 if the bucket is full.
+     */
+    long getMillisecondsToNextToken();
+
+    /**
+     * Number of buckets currently in use.
+     */
+    int getBucketCount();
+
+    /**
+     * Number of bookings which succeeded since startup.
+     */
+    long getGrantedCount();
+
+    /**
+     * Number of bookings which were refused since startup.
+     */
+    long getRefusedCount();
+}
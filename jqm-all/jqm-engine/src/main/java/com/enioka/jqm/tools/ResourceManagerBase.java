@@ -90,6 +90,24 @@ abstract class ResourceManagerBase
         this.releaseResource(ji);
     }
 
+    /**
+     * Called on each loop of the internal poller of the engine, outside of any booking. Allows to do periodic housekeeping, such as giving
+     * back resources unused for a long time.<br>
+     * Default implementation does nothing. This method should never fail.
+     */
+    void onInternalPoll()
+    {
+    }
+
+    /**
+     * Called when the engine stops, once all pollers have stopped. Allows to free anything kept by the RM, such as a database connection.
+     * <br>
+     * Default implementation does nothing.
+     */
+    void stop()
+    {
+    }
+
     /**
      * According to this resource manager, how many job instances could now be launched? This should be a very fast approximation with
      * reasonable hypothesis (which may use parameters). Do not implement if not compatible with this type of resource.
@@ -131,8 +149,11 @@ abstract class ResourceManagerBase
         // Add hard-coded defaults to properties
         setDefaultProperties();
 
-        // Add values from new configuration to properties
-        this.currentProperties.putAll(configuration.getParameterCache());
+        // Add values from new configuration to properties (if any)
+        if (configuration.getParameterCache() != null)
+        {
+            this.currentProperties.putAll(configuration.getParameterCache());
+        }
     }
 
     /**
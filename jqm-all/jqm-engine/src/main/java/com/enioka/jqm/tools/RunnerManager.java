@@ -1,6 +1,7 @@
 package com.enioka.jqm.tools;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -23,13 +24,43 @@ class RunnerManager
 
     private List<JobRunner> runners = new ArrayList<JobRunner>(2);
 
+    private JavaRunner javaRunner;
+
     RunnerManager(DbConn cnx)
     {
         jqmlogger.info("Registering java runner");
-        runners.add(new JavaRunner(cnx));
+        javaRunner = new JavaRunner(cnx);
+        runners.add(javaRunner);
         runners.add(new ShellRunner(cnx));
     }
 
+    /**
+     * Called when the job definitions may have changed, so that runners can drop what they keep for deleted ones.
+     * 
+     * @param jobDefIds
+     *                      the IDs of all the existing job definitions.
+     */
+    void retainJobDefinitions(Collection<Integer> jobDefIds)
+    {
+        javaRunner.retainJobDefinitions(jobDefIds);
+    }
+
+    JavaRunner getJavaRunner()
+    {
+        return javaRunner;
+    }
+
+    /**
+     * Stops all runners. Called once at engine shutdown.
+     */
+    void stop()
+    {
+        for (JobRunner runner : runners)
+        {
+            runner.stop();
+        }
+    }
+
     /**
      * Retrieves the most adequate {@link JobRunner} for a given {@link JobInstance}. Throws {@link JqmRuntimeException} if none was found.
      * 
@@ -15,7 +15,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.enioka.jqm.jdbc.DbConn;
-import com.enioka.jqm.model.GlobalParameter;
+import com.enioka.jqm.model.GlobalParameterSnapshot;
 import com.enioka.jqm.model.JobInstance;
 
 /**
@@ -37,10 +37,10 @@ class RunningExternalJobInstance implements Runnable
         this.jobId = job.getId();
         this.ji = job;
         this.qp = qp;
-        opts = job.getJD().getJavaOpts() == null
-                ? GlobalParameter.getParameter(cnx, "defaultExternalOpts", "-Xms32m -Xmx128m -XX:MaxPermSize=64m")
+        GlobalParameterSnapshot prms = qp.getEngine().getGlobalParameters();
+        opts = job.getJD().getJavaOpts() == null ? prms.getParameter("defaultExternalOpts", "-Xms32m -Xmx128m -XX:MaxPermSize=64m")
                 : job.getJD().getJavaOpts();
-        killCheckPeriodMs = Integer.parseInt(GlobalParameter.getParameter(cnx, "internalPollingPeriodMs", "1000"));
+        killCheckPeriodMs = Integer.parseInt(prms.getParameter("internalPollingPeriodMs", "1000"));
 
         logFile = "./logs";
         logFile = FilenameUtils.concat(logFile, StringUtils.leftPad("" + jobId, 10, "0") + ".log");
@@ -49,19 +49,40 @@ class RunningExternalJobInstance implements Runnable
     @Override
     public void run()
     {
-        jqmlogger.debug("Starting external loader for job " + jobId);
+        ExternalWorkerPool pool = qp.getEngine().getExternalWorkerPool();
+        if (pool != null)
+        {
+            runInWorker(pool);
+        }
+        else
+        {
+            runInNewProcess();
+        }
+    }
+
+    /**
+     * The command line of a new JVM running the JQM CLI with the given arguments.
+     */
+    static ProcessBuilder getProcessBuilder(String opts, String... mainArgs)
+    {
         String java_path = FilenameUtils.concat(System.getProperty("java.home"), "bin/java");
         List<String> args = new ArrayList<String>();
 
         args.add(java_path);
         args.addAll(Arrays.asList(opts.split(" ")));
         args.add("com.enioka.jqm.tools.Main");
-        args.add("-s");
-        args.add("" + this.jobId);
+        args.addAll(Arrays.asList(mainArgs));
 
         ProcessBuilder pb = new ProcessBuilder(args);
         pb.redirectErrorStream(true);
         pb.environment().put("CLASSPATH", System.getProperty("java.class.path"));
+        return pb;
+    }
+
+    private void runInNewProcess()
+    {
+        jqmlogger.debug("Starting external loader for job " + jobId);
+        ProcessBuilder pb = getProcessBuilder(opts, "-s", "" + this.jobId);
 
         Process p = null;
         try
@@ -76,7 +97,7 @@ class RunningExternalJobInstance implements Runnable
             return;
         }
 
-        // Wait for end, flushing logs.
+        // Wait for end, flushing logs. The stream ends when the process exits.
         int res = -1;
         InputStreamReader isr = null;
         BufferedReader br = null;
@@ -90,35 +111,14 @@ class RunningExternalJobInstance implements Runnable
             f = new FileWriter(logFile);
             br = new BufferedReader(isr);
 
-            while (true)
+            while ((buf = br.readLine()) != null)
             {
-                // Dump log file
-                while (br.ready())
-                {
-                    buf = br.readLine();
-                    if (buf != null)
-                    {
-                        f.write(buf + linesep);
-                        jqmlogger.debug(buf);
-                    }
-                }
-
-                // Done?
-                try
-                {
-                    res = p.exitValue();
-                    jqmlogger.debug("External payload " + jobId + " - the external process has exited with RC " + res);
-                    // if here, has exited.
-                    break;
-                }
-                catch (IllegalThreadStateException t)
-                {
-                    // Nothing to do - it means process still running
-                }
-
-                // Wait between loops.
-                Thread.sleep(1000);
+                f.write(buf + linesep);
+                jqmlogger.debug(buf);
             }
+
+            res = p.waitFor();
+            jqmlogger.debug("External payload " + jobId + " - the external process has exited with RC " + res);
         }
         catch (Exception e)
         {
@@ -138,4 +138,38 @@ class RunningExternalJobInstance implements Runnable
             jqmlogger.error("An external payload has exited with return code " + res + ". Abnormal - it should always be 0.");
         }
     }
+
+    private void runInWorker(ExternalWorkerPool pool)
+    {
+        jqmlogger.debug("Sending job " + jobId + " to a pooled external JVM");
+        ExternalWorkerPool.Worker w = null;
+        boolean ended = false;
+        FileWriter f = null;
+
+        try
+        {
+            w = pool.acquire(opts);
+            f = new FileWriter(logFile);
+            ended = w.run(jobId, f);
+        }
+        catch (IOException e)
+        {
+            jqmlogger.error("could not run external payload " + jobId + " inside a pooled JVM", e);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(f);
+            if (w != null)
+            {
+                pool.release(w, ended);
+            }
+
+            qp.releaseResources(this.ji);
+        }
+
+        if (!ended)
+        {
+            jqmlogger.error("The external JVM running payload " + jobId + " has exited before the end of the payload. Abnormal.");
+        }
+    }
 }
@@ -2,8 +2,10 @@ package com.enioka.jqm.tools;
 
 import java.io.File;
 import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map.Entry;
 import java.util.Properties;
@@ -19,7 +21,6 @@ import com.enioka.jqm.api.JqmClientFactory;
 import com.enioka.jqm.api.SimpleApiSecurity;
 import com.enioka.jqm.jdbc.DbConn;
 import com.enioka.jqm.jdbc.QueryResult;
-import com.enioka.jqm.model.GlobalParameter;
 import com.enioka.jqm.model.History;
 import com.enioka.jqm.model.Instruction;
 import com.enioka.jqm.model.JobInstance;
@@ -49,6 +50,7 @@ class RunningJobInstance implements Runnable, JobRunnerCallback
     private Boolean isDone = false;
     private Calendar endDate = null;
     private JobRunner jr = null;
+    private volatile boolean slotReleaseDeferred = false;
 
     /**
      * Constructor for JI coming from queue pollers.
@@ -132,7 +134,7 @@ class RunningJobInstance implements Runnable, JobRunnerCallback
         }
 
         // Create tracker
-        tracker = jr.getTracker(this.ji, new JobInstanceEngineApi(this.ji), this);
+        tracker = jr.getTracker(this.ji, new JobInstanceEngineApi(this.ji, this.engine), this);
 
         // Block needing the database
         DbConn cnx = null;
@@ -229,10 +231,19 @@ class RunningJobInstance implements Runnable, JobRunnerCallback
             }
         }
 
-        // Release the slot so as to allow other job instances to run (first op!)
+        // Release the slot so as to allow other job instances to run (first op!) - unless the result is written asynchronously, in which
+        // case the slot is only released once the result is inside the database.
+        EndOfRunWriter writer = this.engine == null ? null : this.engine.getEndOfRunWriter();
         if (this.manager != null)
         {
-            this.manager.signalEndOfRun(this);
+            if (writer == null)
+            {
+                this.manager.signalEndOfRun(this);
+            }
+            else
+            {
+                this.slotReleaseDeferred = true;
+            }
         }
 
         // Send e-mail before releasing the slot - it may be long
@@ -282,8 +293,29 @@ class RunningJobInstance implements Runnable, JobRunnerCallback
             this.engine.getHandler().onJobInstanceDone(ji);
         }
 
+        // Messages and progress sent by the payload must be written before its end.
+        if (this.engine != null && this.engine.getPayloadMessageBuffer() != null)
+        {
+            try
+            {
+                this.engine.getPayloadMessageBuffer().flush(this.ji.getId());
+            }
+            catch (Exception e)
+            {
+                // Not an issue - the buffer thread will write them later.
+                jqmlogger.warn("Could not write the messages and progress of job instance " + this.ji.getId(), e);
+            }
+        }
+
         // Part needing DB connection with specific failure handling code.
-        endOfRunDb();
+        if (writer != null)
+        {
+            writer.add(this);
+        }
+        else
+        {
+            endOfRunDb();
+        }
     }
 
     /**
@@ -302,6 +334,8 @@ class RunningJobInstance implements Runnable, JobRunnerCallback
             jqmlogger.trace("An History was just created for job instance " + this.ji.getId());
             cnx.runUpdate("ji_delete_by_id", this.ji.getId());
             cnx.commit();
+
+            endOfRunPersisted();
         }
         catch (RuntimeException e)
         {
@@ -313,6 +347,53 @@ class RunningJobInstance implements Runnable, JobRunnerCallback
         }
     }
 
+    /**
+     * Same as {@link #endOfRunDb()} for many job instances at once, with a single commit. Failures are left to the caller. Used by
+     * {@link EndOfRunWriter}.
+     */
+    static void endOfRunDb(DbConn cnx, List<RunningJobInstance> batch)
+    {
+        List<JobInstance> jis = new ArrayList<JobInstance>(batch.size());
+        List<State> states = new ArrayList<State>(batch.size());
+        List<Calendar> endDates = new ArrayList<Calendar>(batch.size());
+        List<Object[]> ids = new ArrayList<Object[]>(batch.size());
+        for (RunningJobInstance rji : batch)
+        {
+            jis.add(rji.ji);
+            states.add(rji.resultStatus);
+            endDates.add(rji.endDate);
+            ids.add(new Object[] { rji.ji.getId() });
+        }
+
+        History.create(cnx, jis, states, endDates);
+        cnx.runUpdateBatch("ji_delete_by_id", ids);
+        cnx.commit();
+    }
+
+    /**
+     * Called once the end of the job instance is inside the database.
+     */
+    void endOfRunPersisted()
+    {
+        releaseDeferredSlot();
+        if (this.manager != null)
+        {
+            this.manager.signalEndOfRunPersisted(this.ji);
+        }
+    }
+
+    /**
+     * Releases the slot of the job instance if this was not done at the end of the run (see {@link EndOfRunWriter}).
+     */
+    void releaseDeferredSlot()
+    {
+        if (this.slotReleaseDeferred)
+        {
+            this.slotReleaseDeferred = false;
+            this.manager.signalEndOfRun(this);
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     // DB failure analysis
     ///////////////////////////////////////////////////////////////////////////
@@ -457,7 +538,7 @@ class RunningJobInstance implements Runnable, JobRunnerCallback
     {
         // Do not use port from engine.getNode, as it may have been set AFTER engine startup.
         Node node = Node.select_single(cnx, "node_select_by_id", this.engine.getNode().getId());
-        boolean useSsl = Boolean.parseBoolean(GlobalParameter.getParameter(cnx, "enableWsApiSsl", "false"));
+        boolean useSsl = Boolean.parseBoolean(this.engine.getGlobalParameters().getParameter("enableWsApiSsl", "false"));
         return (useSsl ? "https://localhost:" : "http://localhost:") + node.getPort();
     }
 }
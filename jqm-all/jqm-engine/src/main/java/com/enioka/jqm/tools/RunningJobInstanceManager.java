@@ -1,7 +1,23 @@
 package com.enioka.jqm.tools;
 
+import java.lang.reflect.Field;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.enioka.jqm.jdbc.DatabaseException;
+import com.enioka.jqm.jdbc.DbConn;
 import com.enioka.jqm.model.Instruction;
 import com.enioka.jqm.model.JobInstance;
 
@@ -9,14 +25,71 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Responsible for creating and storing references to the the {@link RunningJobInstance}.
+ * Responsible for creating and storing references to the the {@link RunningJobInstance}, and for giving them a thread. Threads are either
+ * created for each job instance, or taken from a bounded pool of reusable threads, in which case job instances waiting for a thread are
+ * served by descending priority.
  */
 class RunningJobInstanceManager
 {
     private Logger jqmlogger = LoggerFactory.getLogger(RunningJobInstanceManager.class);
 
-    private ConcurrentHashMap<RunningJobInstance, RjiRegistration> instancesByTracker = new ConcurrentHashMap<RunningJobInstance, RjiRegistration>();
-    private ConcurrentHashMap<Integer, RjiRegistration> instancesById = new ConcurrentHashMap<Integer, RunningJobInstanceManager.RjiRegistration>();
+    private ConcurrentHashMap<RunningJobInstance, RjiRegistration> instancesByTracker =
+            new ConcurrentHashMap<RunningJobInstance, RjiRegistration>();
+    private ConcurrentHashMap<Integer, RjiRegistration> instancesById =
+            new ConcurrentHashMap<Integer, RunningJobInstanceManager.RjiRegistration>();
+    private Map<Integer, List<Semaphore>> childEndWaiters = new HashMap<Integer, List<Semaphore>>();
+    private Map<Integer, List<Semaphore>> endWaiters = new HashMap<Integer, List<Semaphore>>();
+
+    /**
+     * Instructions and priorities of the running job instances, as last read by the internal or instruction poller. Absent means RUN and
+     * priority 0. These maps are replaced, never modified.
+     */
+    private volatile Map<Integer, Instruction> instructions = new HashMap<Integer, Instruction>();
+    private volatile Map<Integer, Integer> priorities = new HashMap<Integer, Integer>();
+
+    private ThreadPoolExecutor pool = null;
+    private AtomicLong saturationCount = new AtomicLong(0);
+    private AtomicLong taskSequence = new AtomicLong(0);
+
+    /**
+     * @param nodeName
+     *                     used in the name of the pool threads.
+     * @param poolSize
+     *                     max number of payload threads. 0 means no pool - a new thread for each job instance.
+     */
+    RunningJobInstanceManager(final String nodeName, int poolSize)
+    {
+        if (poolSize <= 0)
+        {
+            return;
+        }
+
+        ThreadFactory factory = new ThreadFactory()
+        {
+            private AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, idleThreadName(nodeName, count.incrementAndGet()));
+                t.setUncaughtExceptionHandler(RETIRE_HANDLER);
+                return t;
+            }
+        };
+        pool = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), factory);
+        pool.allowCoreThreadTimeOut(true);
+        jqmlogger.info("Job instances will run inside a pool of at most {} threads", poolSize);
+        if (THREAD_LOCAL_FIELDS == null)
+        {
+            jqmlogger.info("Thread local variables cannot be cleared on this JVM - a pool thread is renewed after each job instance. "
+                    + "Use --add-opens java.base/java.lang=ALL-UNNAMED to reuse pool threads.");
+        }
+    }
+
+    private static String idleThreadName(String nodeName, int count)
+    {
+        return "PAYLOAD_POOL;idle;" + nodeName + ";" + count;
+    }
 
     void startNewJobInstance(JobInstance ji, QueuePoller qp)
     {
@@ -29,7 +102,196 @@ class RunningJobInstanceManager
         instancesByTracker.put(reg.rji, reg);
         instancesById.put(reg.ji.getId(), reg);
 
-        (new Thread(reg.rji)).start();
+        // Children never wait for a pool thread: their parent may be holding one while waiting for them.
+        startThread(reg.rji, ji.getPriority(), ji.getParentId() == null || ji.getParentId() <= 0);
+    }
+
+    /**
+     * Runs the given job instance related task (a {@link RunningJobInstance} or the watcher of an external job instance) inside a thread of
+     * the pool, or inside a new thread if there is no pool or if the task may not use the pool.<br>
+     * Tasks which may block while waiting for other job instances to run must not use the pool, as the pool could then be entirely taken
+     * by tasks waiting for job instances which are themselves waiting for a pool thread.
+     *
+     * @param pooled
+     *                   false to always use a new thread.
+     */
+    void startThread(Runnable r, Integer priority, boolean pooled)
+    {
+        if (pool == null || !pooled)
+        {
+            (new Thread(r)).start();
+            return;
+        }
+
+        if (pool.getActiveCount() >= pool.getMaximumPoolSize())
+        {
+            saturationCount.incrementAndGet();
+        }
+        pool.execute(new PoolTask(r, priority == null ? 0 : priority, taskSequence.incrementAndGet()));
+    }
+
+    /**
+     * Lets the pool threads end. Called once all job instances have ended.
+     */
+    void stop()
+    {
+        if (pool != null)
+        {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * The fields of {@link Thread} holding its thread local variables, or null if they cannot be accessed (recent JVMs without the right
+     * --add-opens option).
+     */
+    private static final Field[] THREAD_LOCAL_FIELDS = getThreadLocalFields();
+
+    private static Field[] getThreadLocalFields()
+    {
+        try
+        {
+            Field tl = Thread.class.getDeclaredField("threadLocals");
+            Field itl = Thread.class.getDeclaredField("inheritableThreadLocals");
+            tl.setAccessible(true);
+            itl.setAccessible(true);
+            return new Field[] { tl, itl };
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Drops all the thread local variables of the given thread.
+     *
+     * @return false if this is not possible on this JVM.
+     */
+    private static boolean clearThreadLocals(Thread t)
+    {
+        if (THREAD_LOCAL_FIELDS == null)
+        {
+            return false;
+        }
+        try
+        {
+            for (Field f : THREAD_LOCAL_FIELDS)
+            {
+                f.set(t, null);
+            }
+            return true;
+        }
+        catch (IllegalAccessException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Thrown by a pool task to end its thread instead of giving it back to the pool. The pool creates a new thread when needed.
+     */
+    private static class ThreadRetiredException extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final Thread.UncaughtExceptionHandler RETIRE_HANDLER = new Thread.UncaughtExceptionHandler()
+    {
+        @Override
+        public void uncaughtException(Thread t, Throwable e)
+        {
+            if (!(e instanceof ThreadRetiredException))
+            {
+                LoggerFactory.getLogger(RunningJobInstanceManager.class).error("Payload pool thread has failed", e);
+            }
+        }
+    };
+
+    /**
+     * A task inside the pool queue: highest priority first, then FIFO. Restores the thread to a neutral state after the run, as job
+     * instances rename their thread, change its priority and its context class loader.<br>
+     * Payloads may also leave thread local variables behind, which would keep their class loader alive as long as the thread lives: they
+     * are cleared, or the thread is retired when this is not possible.
+     */
+    private static class PoolTask implements Runnable, Comparable<PoolTask>
+    {
+        private final Runnable task;
+        private final int priority;
+        private final long sequence;
+
+        private PoolTask(Runnable task, int priority, long sequence)
+        {
+            this.task = task;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run()
+        {
+            Thread t = Thread.currentThread();
+            String idleName = t.getName();
+            ClassLoader idleCl = t.getContextClassLoader();
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                Thread.interrupted(); // A kill signal must not reach the next job instance.
+                t.setName(idleName);
+                t.setPriority(Thread.NORM_PRIORITY);
+                t.setContextClassLoader(idleCl);
+            }
+
+            if (!clearThreadLocals(t))
+            {
+                throw new ThreadRetiredException();
+            }
+        }
+
+        @Override
+        public int compareTo(PoolTask o)
+        {
+            if (this.priority != o.priority)
+            {
+                return this.priority > o.priority ? -1 : 1;
+            }
+            return this.sequence < o.sequence ? -1 : (this.sequence == o.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Max number of threads in the pool, 0 if there is no pool.
+     */
+    int getPoolMaxSize()
+    {
+        return pool == null ? 0 : pool.getMaximumPoolSize();
+    }
+
+    /**
+     * Number of pool threads currently running a job instance.
+     */
+    int getPoolActiveCount()
+    {
+        return pool == null ? 0 : pool.getActiveCount();
+    }
+
+    /**
+     * Number of job instances waiting for a pool thread.
+     */
+    int getPoolQueueSize()
+    {
+        return pool == null ? 0 : pool.getQueue().size();
+    }
+
+    /**
+     * How many times a job instance was given to the pool while all its threads were busy.
+     */
+    long getPoolSaturationCount()
+    {
+        return saturationCount.get();
     }
 
     void signalEndOfRun(RunningJobInstance rji)
@@ -53,6 +315,187 @@ class RunningJobInstanceManager
         }
     }
 
+    /**
+     * Called once the end of a job instance has been committed to the database. Wakes up its parent if it waits for its children, as well
+     * as any job instance waiting for this very job instance.
+     */
+    void signalEndOfRunPersisted(JobInstance ji)
+    {
+        if (ji.getParentId() != null)
+        {
+            releaseWaiters(childEndWaiters, ji.getParentId());
+        }
+        releaseWaiters(endWaiters, ji.getId());
+    }
+
+    /**
+     * @return a semaphore released when the given job instance ends inside this engine. Each caller gets its own semaphore, which must be
+     *         given back to {@link #unregisterEndWaiter(int, Semaphore)}.
+     */
+    Semaphore registerEndWaiter(int jobInstanceId)
+    {
+        return registerWaiter(endWaiters, jobInstanceId);
+    }
+
+    void unregisterEndWaiter(int jobInstanceId, Semaphore s)
+    {
+        unregisterWaiter(endWaiters, jobInstanceId, s);
+    }
+
+    /**
+     * @return a semaphore released each time a child of the given job instance ends inside this engine. Each caller gets its own semaphore,
+     *         which must be given back to {@link #unregisterChildEndWaiter(int, Semaphore)}.
+     */
+    Semaphore registerChildEndWaiter(int parentId)
+    {
+        return registerWaiter(childEndWaiters, parentId);
+    }
+
+    void unregisterChildEndWaiter(int parentId, Semaphore s)
+    {
+        unregisterWaiter(childEndWaiters, parentId, s);
+    }
+
+    private static Semaphore registerWaiter(Map<Integer, List<Semaphore>> waitersById, int id)
+    {
+        Semaphore s = new Semaphore(0);
+        synchronized (waitersById)
+        {
+            List<Semaphore> waiters = waitersById.get(id);
+            if (waiters == null)
+            {
+                waiters = new ArrayList<Semaphore>(1);
+                waitersById.put(id, waiters);
+            }
+            waiters.add(s);
+        }
+        return s;
+    }
+
+    private static void unregisterWaiter(Map<Integer, List<Semaphore>> waitersById, int id, Semaphore s)
+    {
+        synchronized (waitersById)
+        {
+            List<Semaphore> waiters = waitersById.get(id);
+            if (waiters != null)
+            {
+                waiters.remove(s);
+                if (waiters.isEmpty())
+                {
+                    waitersById.remove(id);
+                }
+            }
+        }
+    }
+
+    private static void releaseWaiters(Map<Integer, List<Semaphore>> waitersById, int id)
+    {
+        synchronized (waitersById)
+        {
+            List<Semaphore> waiters = waitersById.get(id);
+            if (waiters != null)
+            {
+                for (Semaphore s : waiters)
+                {
+                    s.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the job instance was started by this engine and has not ended yet.
+     */
+    boolean isRunning(int jobInstanceId)
+    {
+        return instancesById.containsKey(jobInstanceId);
+    }
+
+    /**
+     * @return the number of children of the given job instance started by this engine which have not ended yet.
+     */
+    int countRunningChildren(int parentId)
+    {
+        int res = 0;
+        for (RjiRegistration reg : instancesById.values())
+        {
+            if (reg.ji.getParentId() != null && reg.ji.getParentId() == parentId)
+            {
+                res++;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Reads the instructions and priorities of the job instances of a node, forwards the instructions to their trackers and replaces the
+     * in-memory instruction table.
+     * 
+     * @param resendAll
+     *                      if false, only instructions which have changed since the previous read are sent to the trackers.
+     */
+    void readInstructions(DbConn cnx, int nodeId, boolean resendAll)
+    {
+        Map<Integer, Instruction> previous = this.instructions;
+        Map<Integer, Instruction> newInstructions = new HashMap<Integer, Instruction>();
+        Map<Integer, Integer> newPriorities = new HashMap<Integer, Integer>();
+        try
+        {
+            ResultSet rs = cnx.runSelect("ji_select_instructions_by_node", nodeId);
+            while (rs.next())
+            {
+                Integer jiid = rs.getInt(1);
+                String instr = rs.getString(2);
+                newPriorities.put(jiid, rs.getInt(3));
+                Instruction instruction;
+                try
+                {
+                    instruction = Instruction.valueOf(instr);
+                }
+                catch (IllegalArgumentException ex2)
+                {
+                    jqmlogger.warn("An unknown instruction was found and is ignored: " + instr);
+                    continue;
+                }
+
+                if (instruction != Instruction.RUN)
+                {
+                    newInstructions.put(jiid, instruction);
+                    if (resendAll || instruction != previous.get(jiid))
+                    {
+                        handleInstruction(jiid, instruction);
+                    }
+                }
+            }
+            rs.close();
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+
+        this.instructions = newInstructions;
+        this.priorities = newPriorities;
+    }
+
+    /**
+     * @return the instruction of a running job instance, as last read from the database.
+     */
+    Instruction getInstruction(int jobInstanceId)
+    {
+        Instruction res = this.instructions.get(jobInstanceId);
+        return res == null ? Instruction.RUN : res;
+    }
+
+    /**
+     * @return the priority of a running job instance, as last read from the database.
+     */
+    int getPriority(int jobInstanceId)
+    {
+        Integer res = this.priorities.get(jobInstanceId);
+        return res == null ? 0 : res;
+    }
+
     void handleInstruction(int jobInstanceId, Instruction instruction)
     {
         if (!instancesById.containsKey(jobInstanceId))
@@ -116,6 +116,21 @@ public class ClientApiTest extends JqmBaseTest
         Assert.assertEquals(State.CRASHED, res.get(0).getState());
     }
 
+    @Test
+    public void testKillJobCachedInstructions() throws Exception
+    {
+        // Default internal poller period (60s): the kill can only be seen in time through the instruction poller.
+        Helpers.setSingleParam("cacheInstructions", "true", cnx);
+        int i = JqmSimpleTest.create(cnx, "pyl.KillMe").expectOk(0).addWaitTime(3000).run(this);
+
+        JqmClientFactory.getClient().killJob(i);
+        TestHelpers.waitFor(1, 5000, cnx);
+
+        List<JobInstance> res = Query.create().run();
+        Assert.assertEquals(1, res.size());
+        Assert.assertEquals(State.CRASHED, res.get(0).getState());
+    }
+
     @Test
     public void testGetMsg() throws Exception
     {
@@ -331,6 +346,31 @@ public class ClientApiTest extends JqmBaseTest
         Assert.assertEquals(1, TestHelpers.getOkCount(cnx));
     }
 
+    @Test
+    public void testPauseResumeRunningCachedInstructions() throws Exception
+    {
+        Helpers.setSingleParam("cacheInstructions", "true", cnx);
+        Helpers.setSingleParam("cacheInstrPeriodMs", "200", cnx);
+        CreationTools.createJobDef(null, true, "pyl.CallYieldLoop", null, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip, 42,
+                "MarsuApplication", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        addAndStartEngine();
+        int i = JobRequest.create("MarsuApplication", "TestUser").submit();
+        TestHelpers.waitForRunning(1, 10000, cnx);
+
+        // The payload would end after 3s if not paused. Pause is only seen through the instruction table of the engine.
+        JqmClientFactory.getClient().pauseRunningJob(i);
+        Thread.sleep(4000);
+        Assert.assertEquals(0, TestHelpers.getHistoryAllCount(cnx)); // Still running.
+
+        List<String> msgs = JqmClientFactory.getClient().getJobMessages(i);
+        Assert.assertEquals(1, msgs.size());
+        Assert.assertTrue(msgs.get(0).toLowerCase().contains("pause"));
+
+        JqmClientFactory.getClient().resumeRunningJob(i);
+        TestHelpers.waitFor(1, 10000, cnx);
+        Assert.assertEquals(1, TestHelpers.getOkCount(cnx));
+    }
+
     @Test
     public void testPauseResumeQueue()
     {
@@ -92,6 +92,26 @@ public class DbFailTest extends JqmBaseTest
         Assert.assertEquals(1, TestHelpers.getOkCount(this.getNewDbSession()));
     }
 
+    // Job ends OK during db failure, result written by the end of run writer.
+    @Test
+    public void testDbFailureWithRunningJobBatchedEnd() throws Exception
+    {
+        Helpers.setSingleParam("endOfRunBatchSize", "10", cnx);
+        JqmSimpleTest.create(cnx, "pyl.Wait", "jqm-test-pyl-nodep").addRuntimeParameter("p1", "4000").expectOk(0).run(this);
+        this.sleep(2);
+
+        jqmlogger.info("Stopping db");
+        s.stop();
+        this.waitDbStop();
+        this.sleep(5);
+
+        jqmlogger.info("Restarting DB");
+        s.start();
+        TestHelpers.waitFor(1, 10000, this.getNewDbSession());
+
+        Assert.assertEquals(1, TestHelpers.getOkCount(this.getNewDbSession()));
+    }
+
     // Job ends KO during db failure.
     @Test
     public void testDbFailureWithRunningJobKo() throws Exception
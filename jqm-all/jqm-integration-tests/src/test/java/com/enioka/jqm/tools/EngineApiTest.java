@@ -22,9 +22,12 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import com.enioka.jqm.api.JobInstance;
+import com.enioka.jqm.api.JobRequest;
 import com.enioka.jqm.api.Query;
 import com.enioka.jqm.api.Query.Sort;
 import com.enioka.jqm.api.State;
+import com.enioka.jqm.test.helpers.CreationTools;
+import com.enioka.jqm.test.helpers.TestHelpers;
 
 public class EngineApiTest extends JqmBaseTest
 {
@@ -59,6 +62,21 @@ public class EngineApiTest extends JqmBaseTest
         Assert.assertEquals(true, success3);
     }
 
+    @Test
+    public void testSendMsgBuffered() throws Exception
+    {
+        Helpers.setSingleParam("payloadMessageFlushMs", "100", cnx);
+
+        int i = JqmSimpleTest.create(cnx, "pyl.EngineApiSend3Msg").run(this);
+
+        // All messages written before the end of the job instance.
+        List<String> messages = Query.create().setJobInstanceId(i).run().get(0).getMessages();
+        Assert.assertEquals(3, messages.size());
+        Assert.assertTrue(messages.contains("Les marsus sont nos amis, il faut les aimer aussi!"));
+        Assert.assertTrue(messages.contains("Les marsus sont nos amis, il faut les aimer aussi!2"));
+        Assert.assertTrue(messages.contains("Les marsus sont nos amis, il faut les aimer aussi!3"));
+    }
+
     @Test
     public void testSendProgress() throws Exception
     {
@@ -98,4 +116,28 @@ public class EngineApiTest extends JqmBaseTest
     {
         JqmSimpleTest.create(cnx, "pyl.EngineApiGetStatus").expectNonOk(1).expectOk(2).run(this);
     }
+
+    /**
+     * waitChild can also be used on a job instance which is not a child - here running inside the same engine.
+     */
+    @Test
+    public void testWaitOther() throws Exception
+    {
+        CreationTools.createJobDef(null, true, "pyl.Wait", null, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip, 42,
+                "jqm-test-wait", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        CreationTools.createJobDef(null, true, "pyl.EngineApiWaitOther", null, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip,
+                42, "jqm-test-waitother", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+
+        int other = JobRequest.create("jqm-test-wait", "test").addParameter("delay_ms", "2000").submit();
+        int waiter = JobRequest.create("jqm-test-waitother", "test").addParameter("other", "" + other).submit();
+
+        addAndStartEngine();
+        TestHelpers.waitFor(2, 20000, cnx);
+
+        Assert.assertEquals(2, TestHelpers.getOkCount(cnx));
+        Calendar otherEnd = Query.create().setJobInstanceId(other).run().get(0).getEndDate();
+        Calendar waiterEnd = Query.create().setJobInstanceId(waiter).run().get(0).getEndDate();
+        Assert.assertFalse(waiterEnd.before(otherEnd));
+    }
 }
@@ -73,6 +73,77 @@ public class EngineCLIsolationTest extends JqmBaseTest
         Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
     }
 
+    /**
+     * Run test setting global parameter launch_isolation_default to Pooled, with each job definition launched twice so that the second
+     * launches use CLs prepared in advance.
+     * 
+     * Expected : Isolation
+     */
+    @Test
+    public void testGlobalPooled() throws Exception
+    {
+        Helpers.setSingleParam("launch_isolation_default", "Pooled", cnx);
+        cnx.commit();
+
+        addAndStartEngine();
+
+        createSubmitSetJob(null);
+        TestHelpers.waitFor(1, 10000, cnx);
+        createSubmitGetJob(null);
+        TestHelpers.waitFor(2, 10000, cnx);
+        Thread.sleep(500); // Let the pool be filled.
+        JobRequest.create("TestSet", null).submit();
+        TestHelpers.waitFor(3, 10000, cnx);
+        JobRequest.create("TestGet", null).submit();
+        TestHelpers.waitFor(4, 10000, cnx);
+
+        Assert.assertEquals(4, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+
+        // The last two runs were given a CL prepared in advance.
+        Assert.assertEquals(2, getPooledClassLoadersUsed());
+    }
+
+    /**
+     * Same as {@link #testGlobalPooled()}, but with room for a single pooled CL on the node, so that each job definition evicts the CL
+     * prepared for the other one.
+     * 
+     * Expected : Isolation
+     */
+    @Test
+    public void testGlobalPooledTotal() throws Exception
+    {
+        Helpers.setSingleParam("launch_isolation_default", "Pooled", cnx);
+        Helpers.setSingleParam("launch_isolation_total", "1", cnx);
+        cnx.commit();
+
+        addAndStartEngine();
+
+        createSubmitSetJob(null);
+        TestHelpers.waitFor(1, 10000, cnx);
+        createSubmitGetJob(null);
+        TestHelpers.waitFor(2, 10000, cnx);
+        for (int i = 0; i < 3; i++)
+        {
+            Thread.sleep(500); // Let the pool be filled.
+            JobRequest.create("TestSet", null).submit();
+            TestHelpers.waitFor(3 + 2 * i, 10000, cnx);
+            JobRequest.create("TestGet", null).submit();
+            TestHelpers.waitFor(4 + 2 * i, 10000, cnx);
+        }
+
+        Assert.assertEquals(8, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+
+        // The pool only holds one CL, always evicted by the other job definition before it could be used.
+        Assert.assertEquals(0, getPooledClassLoadersUsed());
+    }
+
+    private int getPooledClassLoadersUsed()
+    {
+        return ((JqmEngine) engines.get("localhost")).getRunnerManager().getJavaRunner().getPooledClassLoadersUsed();
+    }
+
     /**
      * Run test setting global parameter launch_isolation_default to SharedJar with two jobs inside the same jar.
      * 
@@ -247,4 +318,28 @@ public class EngineCLIsolationTest extends JqmBaseTest
         Assert.assertEquals(1, TestHelpers.getOkCount(cnx));
         Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
     }
+
+    /**
+     * Runner selection is only done once per payload class inside a reused CL - check that further launches (with a new API object each
+     * time) still work.
+     */
+    @Test
+    public void testJobDefSharedRepeatedLaunches() throws Exception
+    {
+        CreationTools.createJobDef(null, true, "pyl.EngineApiStaticInjection", null, "jqm-tests/jqm-test-pyl/target/test.jar",
+                TestHelpers.qVip, -1, "TestSet", null, null, null, null, null, false, cnx, "mycontext");
+        CreationTools.createJobDef(null, true, "pyl.CallYieldAtOnce", null, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip, -1,
+                "TestYield", null, null, null, null, null, false, cnx, "mycontext");
+        addAndStartEngine();
+
+        for (int i = 0; i < 3; i++)
+        {
+            JobRequest.create("TestSet", null).submit();
+            JobRequest.create("TestYield", null).submit();
+            TestHelpers.waitFor(2 * (i + 1), 10000, cnx);
+        }
+
+        Assert.assertEquals(6, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+    }
 }
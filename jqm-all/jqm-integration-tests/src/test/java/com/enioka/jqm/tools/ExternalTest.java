@@ -40,4 +40,34 @@ public class ExternalTest extends JqmBaseTest
         Assert.assertEquals(0, TestHelpers.getOkCount(cnx));
         Assert.assertEquals(1, TestHelpers.getNonOkCount(cnx));
     }
+
+    @Test
+    public void testExternalWorkerPool() throws Exception
+    {
+        Helpers.setSingleParam("externalWorkerPoolSize", "1", cnx);
+        Helpers.setSingleParam("externalWorkerMaxRuns", "2", cnx);
+        Helpers.setSingleParam("internalPollingPeriodMs", "100", cnx);
+
+        // Three runs - the second reuses the first JVM, the third needs a new one.
+        JqmSimpleTest.create(cnx, "pyl.Wait").addDefParameter("delay_ms", "10").setExternal().run(this);
+        JobRequest.create("TestJqmApplication", "TestUser").submit();
+        JobRequest.create("TestJqmApplication", "TestUser").submit();
+        TestHelpers.waitFor(3, 20000, cnx);
+        Assert.assertEquals(3, TestHelpers.getOkCount(cnx));
+
+        // A kill stops the whole worker JVM, which is replaced.
+        int jdId = CreationTools.createJobDef(null, true, "pyl.KillMeNot", null, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip,
+                -1, "KillApp", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        JobDef.setExternal(cnx, jdId);
+        cnx.commit();
+        int i = JobRequest.create("KillApp", "TestUser").submit();
+        TestHelpers.waitForRunning(1, 20000, cnx);
+        JqmClientFactory.getClient().killJob(i);
+        TestHelpers.waitFor(4, 20000, cnx);
+
+        JobRequest.create("TestJqmApplication", "TestUser").submit();
+        TestHelpers.waitFor(5, 20000, cnx);
+        Assert.assertEquals(4, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(1, TestHelpers.getNonOkCount(cnx));
+    }
 }
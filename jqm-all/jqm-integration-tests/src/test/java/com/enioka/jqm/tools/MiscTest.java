@@ -212,19 +212,21 @@ public class MiscTest extends JqmBaseTest
     @Test
     public void testStartupCleanupAttr() throws Exception
     {
-        CreationTools.createJobDef(null, true, "App", null, "jqm-tests/jqm-test-em/target/test.jar", TestHelpers.qVip, 42, "jqm-test-em",
-                null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        CreationTools.createJobDef(null, true, "pyl.EngineApiSendMsg", null, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip, 42,
+                "jqm-test-em", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
 
-        // Create a running job that should be cleaned at startup
+        // Create an attributed (never started) job that should be put back inside its queue at startup
         int i = JqmClientFactory.getClient().enqueue("jqm-test-em", "test");
         cnx.runUpdate("ji_update_status_by_id", TestHelpers.node.getId(), i);
         cnx.commit();
 
         addAndStartEngine();
+        TestHelpers.waitFor(1, 10000, cnx);
 
         Assert.assertEquals(0, TestHelpers.getQueueAllCount(cnx));
         Assert.assertEquals(1, TestHelpers.getHistoryAllCount(cnx));
-        Assert.assertEquals(1, TestHelpers.getNonOkCount(cnx));
+        Assert.assertEquals(1, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
     }
 
     @Test
@@ -285,6 +287,26 @@ public class MiscTest extends JqmBaseTest
         Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
     }
 
+    @Test
+    public void testMavenArtifactOfflineFirst()
+    {
+        // The artifact of the current build is inside the local repository, so no remote repository is needed.
+        Helpers.setSingleParam("mavenOfflineFirst", "true", cnx);
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "com.enioka.jqm:jqm-test-pyl-nodep:" + Helpers.getMavenVersion(),
+                TestHelpers.qVip, 42, "jqm-test-maven", null, "Franquin", "ModuleMachin", "other", "other", false, cnx, null, false, null,
+                false, PathType.MAVEN);
+        addAndStartEngine();
+
+        JobRequest.create("jqm-test-maven", null).submit();
+        TestHelpers.waitFor(1, 10000, cnx);
+        JobRequest.create("jqm-test-maven", null).submit(); // From cache.
+        TestHelpers.waitFor(2, 10000, cnx);
+
+        Assert.assertEquals(2, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+        Assert.assertTrue(new File(FilenameUtils.concat(TestHelpers.node.getTmpDirectory(), "maven_resolution_cache.properties")).isFile());
+    }
+
     @Test
     public void testMetaJndiBug()
     {
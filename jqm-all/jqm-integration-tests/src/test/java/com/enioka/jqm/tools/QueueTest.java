@@ -1,8 +1,15 @@
 package com.enioka.jqm.tools;
 
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import javax.management.JMX;
+import javax.management.ObjectName;
 
 import com.enioka.jqm.api.JobInstance;
 import com.enioka.jqm.api.JobRequest;
@@ -10,6 +17,7 @@ import com.enioka.jqm.api.JqmClientFactory;
 import com.enioka.jqm.api.JqmInvalidRequestException;
 import com.enioka.jqm.api.Query;
 import com.enioka.jqm.api.State;
+import com.enioka.jqm.jdbc.DbConn;
 import com.enioka.jqm.model.DeploymentParameter;
 import com.enioka.jqm.model.GlobalParameter;
 import com.enioka.jqm.model.Queue;
@@ -17,6 +25,7 @@ import com.enioka.jqm.test.helpers.CreationTools;
 import com.enioka.jqm.test.helpers.TestHelpers;
 
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
 /**
@@ -330,4 +339,506 @@ public class QueueTest extends JqmBaseTest
         Assert.assertEquals(0, TestHelpers.getQueueRunningCount(cnx));
         Assert.assertEquals(0, TestHelpers.getQueueAllCount(cnx));
     }
+
+    // Test queue behaviour with a cluster-wide quantity RM shared by two nodes.
+    @Test
+    public void testRmClusterQuantity() throws Exception
+    {
+        // Same queue on two nodes
+        int qId = Queue.create(cnx, "testqueue", " ", false);
+        DeploymentParameter.create(cnx, TestHelpers.node.getId(), 40, 1, qId); // 40 threads, so not the limiting factor.
+        DeploymentParameter.create(cnx, TestHelpers.node2.getId(), 40, 1, qId);
+
+        // Enable the cluster RM - two units for the whole cluster.
+        GlobalParameter.setParameter(cnx, "clusterRmName", "mainframe");
+        GlobalParameter.setParameter(cnx, "clusterRmQuantity", "2");
+
+        Map<String, String> prms = new HashMap<String, String>(1);
+        prms.put("com.enioka.jqm.rm.cluster.consumption", "1");
+        CreationTools.createJobDef(null, true, "pyl.KillMe", prms, "jqm-tests/jqm-test-pyl/target/test.jar", qId, 42, "jqm-test-kill", null,
+                "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+
+        for (int i = 0; i < 4; i++)
+        {
+            JobRequest.create("jqm-test-kill", "test").setPriority(null).submit();
+        }
+
+        addAndStartEngine();
+        addAndStartEngine("localhost2");
+        TestHelpers.waitForRunning(2, 60000, cnx);
+        sleep(2); // Time for bugs to happen.
+
+        // Only two should be running in the whole cluster.
+        Assert.assertEquals(2, TestHelpers.getQueueRunningCount(cnx));
+        Assert.assertEquals(4, TestHelpers.getQueueAllCount(cnx));
+
+        // Kill them, the last two JI should then start.
+        for (JobInstance ji : Query.create().setQueryHistoryInstances(false).setQueryLiveInstances(true).addStatusFilter(State.RUNNING)
+                .run())
+        {
+            JqmClientFactory.getClient().killJob(ji.getId());
+        }
+        TestHelpers.waitFor(2, 60000, cnx);
+        TestHelpers.waitForRunning(2, 60000, cnx);
+        sleep(1);
+        Assert.assertEquals(2, TestHelpers.getQueueRunningCount(cnx));
+
+        // Kill all to end the test.
+        for (JobInstance ji : Query.create().setQueryHistoryInstances(false).setQueryLiveInstances(true).addStatusFilter(State.RUNNING)
+                .run())
+        {
+            JqmClientFactory.getClient().killJob(ji.getId());
+        }
+        TestHelpers.waitFor(4, 60000, cnx);
+        Assert.assertEquals(4, TestHelpers.getNonOkCount(cnx));
+    }
+
+    // The cluster RM keeps its allowance while idle, and only gives it back after the lease timeout.
+    @Test
+    public void testRmClusterQuantityIdleLease() throws Exception
+    {
+        Helpers.setSingleParam("internalPollingPeriodMs", "500", cnx); // Lease timeout is then 2s.
+        GlobalParameter.setParameter(cnx, "clusterRmName", "mainframe");
+        GlobalParameter.setParameter(cnx, "clusterRmQuantity", "5");
+
+        Map<String, String> prms = new HashMap<String, String>(1);
+        prms.put("com.enioka.jqm.rm.cluster.consumption", "1");
+        CreationTools.createJobDef(null, true, "pyl.EngineApiSendMsg", prms, "jqm-tests/jqm-test-pyl/target/test.jar",
+                TestHelpers.qVip, 42, "jqm-test-msg", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+
+        addAndStartEngine();
+        JobRequest.create("jqm-test-msg", "test").submit();
+        TestHelpers.waitFor(1, 10000, cnx);
+        Assert.assertEquals(1, TestHelpers.getOkCount(cnx));
+
+        // Idle, but the allowance is still leased.
+        Assert.assertEquals(1, (int) cnx.runSelectSingle("rmlease_select_units_others", Integer.class, "mainframe", -1, 3600));
+
+        // After the lease timeout, nothing is leased anymore.
+        sleep(4);
+        Assert.assertEquals(0, (int) cnx.runSelectSingle("rmlease_select_units_others", Integer.class, "mainframe", -1, 3600));
+    }
+
+    // Test queue behaviour with a rate limiting RM - the number of starts is limited, not the number of running JI.
+    @Test
+    public void testRmRateLimit() throws Exception
+    {
+        int qId = Queue.create(cnx, "testqueue", " ", false);
+        DeploymentParameter.create(cnx, TestHelpers.node.getId(), 40, 1, qId); // 40 threads, so not the limiting factor.
+
+        // Enable the rate RM - two starts every ten seconds, so a new token every five seconds.
+        GlobalParameter.setParameter(cnx, "rateRmName", "api");
+        GlobalParameter.setParameter(cnx, "rateRmRate", "2");
+        GlobalParameter.setParameter(cnx, "rateRmPeriod", "10");
+
+        Map<String, String> prms = new HashMap<String, String>(1);
+        prms.put("com.enioka.jqm.rm.ratelimit.consumption", "1");
+        CreationTools.createJobDef(null, true, "pyl.KillMe", prms, "jqm-tests/jqm-test-pyl/target/test.jar", qId, 42, "jqm-test-kill", null,
+                "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+
+        for (int i = 0; i < 4; i++)
+        {
+            JobRequest.create("jqm-test-kill", "test").setPriority(null).submit();
+        }
+
+        addAndStartEngine();
+        TestHelpers.waitForRunning(2, 60000, cnx);
+        sleep(1); // Time for bugs to happen.
+
+        // The bucket was full on startup, so two JI have started at once. The others start later, even if the first ones still run.
+        Assert.assertEquals(2, TestHelpers.getQueueRunningCount(cnx));
+        TestHelpers.waitForRunning(4, 60000, cnx);
+        Assert.assertEquals(4, TestHelpers.getQueueRunningCount(cnx));
+
+        // Kill all to end the test.
+        for (JobInstance ji : Query.create().setQueryHistoryInstances(false).setQueryLiveInstances(true).addStatusFilter(State.RUNNING)
+                .run())
+        {
+            JqmClientFactory.getClient().killJob(ji.getId());
+        }
+        TestHelpers.waitFor(4, 60000, cnx);
+        Assert.assertEquals(4, TestHelpers.getNonOkCount(cnx));
+    }
+
+    // Same as above, but the JI do not say how many tokens they take: the RM-level consumption applies.
+    @Test
+    public void testRmRateLimitDefaultConsumption() throws Exception
+    {
+        int qId = Queue.create(cnx, "testqueue", " ", false);
+        DeploymentParameter.create(cnx, TestHelpers.node.getId(), 40, 1, qId);
+
+        GlobalParameter.setParameter(cnx, "rateRmName", "api");
+        GlobalParameter.setParameter(cnx, "rateRmRate", "2");
+        GlobalParameter.setParameter(cnx, "rateRmPeriod", "10");
+
+        CreationTools.createJobDef(null, true, "pyl.KillMe", null, "jqm-tests/jqm-test-pyl/target/test.jar", qId, 42, "jqm-test-kill", null,
+                "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+
+        for (int i = 0; i < 3; i++)
+        {
+            JobRequest.create("jqm-test-kill", "test").submit();
+        }
+
+        addAndStartEngine();
+        TestHelpers.waitForRunning(2, 60000, cnx);
+        sleep(1);
+        Assert.assertEquals(2, TestHelpers.getQueueRunningCount(cnx));
+
+        for (JobInstance ji : Query.create().setQueryHistoryInstances(false).setQueryLiveInstances(true).addStatusFilter(State.RUNNING)
+                .run())
+        {
+            JqmClientFactory.getClient().killJob(ji.getId());
+        }
+        TestHelpers.waitFor(3, 60000, cnx);
+    }
+
+    @Test
+    public void testRmRateLimitConsumptionAboveCapacity() throws Exception
+    {
+        GlobalParameter.setParameter(cnx, "rateRmName", "api");
+        GlobalParameter.setParameter(cnx, "rateRmRate", "2");
+        GlobalParameter.setParameter(cnx, "rateRmPeriod", "10");
+
+        // Asks for more than the bucket can ever hold: takes the whole bucket instead of never starting.
+        Map<String, String> prms = new HashMap<String, String>(1);
+        prms.put("com.enioka.jqm.rm.ratelimit.consumption", "5");
+        CreationTools.createJobDef(null, true, "pyl.Wait", prms, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip, 42,
+                "jqm-test-wait", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+
+        JobRequest.create("jqm-test-wait", "test").addParameter("delay_ms", "1").submit();
+
+        addAndStartEngine();
+        TestHelpers.waitFor(1, 20000, cnx);
+        Assert.assertEquals(1, TestHelpers.getOkCount(cnx));
+    }
+
+    // Test queue behaviour with the host capacity RM - here the memory is the limiting factor.
+    // Same as above, but the consumption comes from the global parameter instead of the job definition.
+    @Test
+    public void testRmHostCapacityDefaultConsumption() throws Exception
+    {
+        int qId = Queue.create(cnx, "testqueue", " ", false);
+        DeploymentParameter.create(cnx, TestHelpers.node.getId(), 40, 1, qId);
+
+        GlobalParameter.setParameter(cnx, "hostRm", "true");
+        GlobalParameter.setParameter(cnx, "hostRmMemory", "100");
+        GlobalParameter.setParameter(cnx, "hostRmMemoryConsumption", "40");
+
+        CreationTools.createJobDef(null, true, "pyl.KillMe", null, "jqm-tests/jqm-test-pyl/target/test.jar", qId, 42, "jqm-test-kill", null,
+                "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+
+        for (int i = 0; i < 3; i++)
+        {
+            JobRequest.create("jqm-test-kill", "test").submit();
+        }
+
+        addAndStartEngine();
+        TestHelpers.waitForRunning(2, 60000, cnx);
+        sleep(2);
+        Assert.assertEquals(2, TestHelpers.getQueueRunningCount(cnx));
+
+        for (JobInstance ji : Query.create().setQueryHistoryInstances(false).setQueryLiveInstances(true).addStatusFilter(State.RUNNING)
+                .run())
+        {
+            JqmClientFactory.getClient().killJob(ji.getId());
+        }
+        TestHelpers.waitFor(2, 60000, cnx);
+        TestHelpers.waitForRunning(1, 60000, cnx);
+        for (JobInstance ji : Query.create().setQueryHistoryInstances(false).setQueryLiveInstances(true).addStatusFilter(State.RUNNING)
+                .run())
+        {
+            JqmClientFactory.getClient().killJob(ji.getId());
+        }
+        TestHelpers.waitFor(3, 60000, cnx);
+    }
+
+    @Test
+    public void testRmHostCapacity() throws Exception
+    {
+        int qId = Queue.create(cnx, "testqueue", " ", false);
+        DeploymentParameter.create(cnx, TestHelpers.node.getId(), 40, 1, qId); // 40 threads, so not the limiting factor.
+
+        // Enable the host RM - with a fixed memory size so as not to depend on the test host.
+        GlobalParameter.setParameter(cnx, "hostRm", "true");
+        GlobalParameter.setParameter(cnx, "hostRmMemory", "100");
+
+        Map<String, String> prms = new HashMap<String, String>(1);
+        prms.put("com.enioka.jqm.rm.host.memoryconsumption", "40");
+        CreationTools.createJobDef(null, true, "pyl.KillMe", prms, "jqm-tests/jqm-test-pyl/target/test.jar", qId, 42, "jqm-test-kill", null,
+                "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+
+        for (int i = 0; i < 3; i++)
+        {
+            JobRequest.create("jqm-test-kill", "test").setPriority(null).submit();
+        }
+
+        addAndStartEngine();
+        TestHelpers.waitForRunning(2, 60000, cnx);
+        sleep(2); // Time for bugs to happen.
+
+        // Only two fit inside 100MB.
+        Assert.assertEquals(2, TestHelpers.getQueueRunningCount(cnx));
+        Assert.assertEquals(3, TestHelpers.getQueueAllCount(cnx));
+
+        // Kill them, the last JI should then start.
+        for (JobInstance ji : Query.create().setQueryHistoryInstances(false).setQueryLiveInstances(true).addStatusFilter(State.RUNNING)
+                .run())
+        {
+            JqmClientFactory.getClient().killJob(ji.getId());
+        }
+        TestHelpers.waitFor(2, 60000, cnx);
+        TestHelpers.waitForRunning(1, 60000, cnx);
+        Assert.assertEquals(1, TestHelpers.getQueueRunningCount(cnx));
+
+        // Kill all to end the test.
+        for (JobInstance ji : Query.create().setQueryHistoryInstances(false).setQueryLiveInstances(true).addStatusFilter(State.RUNNING)
+                .run())
+        {
+            JqmClientFactory.getClient().killJob(ji.getId());
+        }
+        TestHelpers.waitFor(3, 60000, cnx);
+        Assert.assertEquals(3, TestHelpers.getNonOkCount(cnx));
+    }
+
+    @Test
+    public void testPrefetch() throws Exception
+    {
+        GlobalParameter.setParameter(cnx, "prefetchSize", "2");
+
+        // A single thread, and a polling interval far longer than the test.
+        int qId = Queue.create(cnx, "testqueue", " ", false);
+        DeploymentParameter.create(cnx, TestHelpers.node.getId(), 1, 100000, qId);
+        CreationTools.createJobDef(null, true, "pyl.Wait", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", qId, 42, "jqm-test-wait",
+                null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+
+        for (int i = 0; i < 3; i++)
+        {
+            JobRequest.create("jqm-test-wait", "test").addParameter("ms", "2000").submit();
+        }
+
+        addAndStartEngine();
+        TestHelpers.waitForRunning(1, 60000, cnx);
+
+        // The two others were claimed at the same time, and wait for the thread.
+        Assert.assertEquals(2, Query.create().setQueryHistoryInstances(false).setQueryLiveInstances(true).addStatusFilter(State.ATTRIBUTED)
+                .run().size());
+
+        TestHelpers.waitFor(3, 60000, cnx);
+        Assert.assertEquals(3, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getQueueAllCount(cnx));
+    }
+
+    @Test
+    public void testPayloadThreadPool() throws Exception
+    {
+        // Fewer pool threads than queue threads: job instances wait for a pool thread.
+        GlobalParameter.setParameter(cnx, "payloadThreadPoolSize", "2");
+
+        int qId = Queue.create(cnx, "testqueue", " ", false);
+        DeploymentParameter.create(cnx, TestHelpers.node.getId(), 5, 100, qId);
+        CreationTools.createJobDef(null, true, "pyl.Wait", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", qId, 42, "jqm-test-wait",
+                null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+
+        for (int i = 0; i < 5; i++)
+        {
+            JobRequest.create("jqm-test-wait", "test").addParameter("ms", "500").submit();
+        }
+
+        addAndStartEngine();
+        TestHelpers.waitFor(5, 60000, cnx);
+
+        Assert.assertEquals(5, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+    }
+
+    @Test
+    public void testPayloadThreadPoolWithChildren() throws Exception
+    {
+        // The parent waits for five children while holding the only pool thread: children must not wait for a pool thread.
+        GlobalParameter.setParameter(cnx, "payloadThreadPoolSize", "1");
+
+        JqmSimpleTest.create(cnx, "pyl.EngineApiWaitAll").expectOk(6).run(this);
+    }
+
+    @Test
+    public void testEndOfRunBatch() throws Exception
+    {
+        GlobalParameter.setParameter(cnx, "endOfRunBatchSize", "20");
+        GlobalParameter.setParameter(cnx, "endOfRunBatchMaxWaitMs", "50");
+        cnx.runUpdate("dp_update_threads_by_id", 20, TestHelpers.dpVip.getId());
+
+        CreationTools.createJobDef(null, true, "pyl.Nothing", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", TestHelpers.qVip, -1,
+                "jqm-test-nothing", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+
+        for (int i = 0; i < 100; i++)
+        {
+            JobRequest.create("jqm-test-nothing", "test").submit();
+        }
+
+        addAndStartEngine();
+        TestHelpers.waitFor(100, 60000, cnx);
+
+        Assert.assertEquals(100, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+        Assert.assertEquals(0, (long) cnx.runSelectSingle("ji_select_count_all", Long.class));
+    }
+
+    @Test
+    public void testMultiplexedPolling() throws Exception
+    {
+        GlobalParameter.setParameter(cnx, "multiplexedPolling", "true");
+
+        // Two queues (plus the default test ones) polled by the same thread.
+        int qId1 = Queue.create(cnx, "testqueue1", " ", false);
+        int qId2 = Queue.create(cnx, "testqueue2", " ", false);
+        DeploymentParameter.create(cnx, TestHelpers.node.getId(), 2, 100, qId1);
+        DeploymentParameter.create(cnx, TestHelpers.node.getId(), 2, 100, qId2);
+
+        CreationTools.createJobDef(null, true, "pyl.Wait", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", qId1, 42, "jqm-test-wait1",
+                null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        CreationTools.createJobDef(null, true, "pyl.Wait", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar", qId2, 42, "jqm-test-wait2",
+                null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+
+        for (int i = 0; i < 3; i++)
+        {
+            JobRequest.create("jqm-test-wait1", "test").addParameter("ms", "100").submit();
+            JobRequest.create("jqm-test-wait2", "test").addParameter("ms", "100").submit();
+        }
+
+        addAndStartEngine();
+        TestHelpers.waitFor(6, 60000, cnx);
+
+        Assert.assertEquals(6, TestHelpers.getOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getNonOkCount(cnx));
+        Assert.assertEquals(0, TestHelpers.getQueueAllCount(cnx));
+    }
+
+    @Test
+    public void testAdaptivePollingInterval() throws Exception
+    {
+        // 3 threads, polling between 100ms and 1600ms
+        int qId = Queue.create(cnx, "testqueue", " ", false);
+        DeploymentParameter dp = DeploymentParameter.create(cnx, TestHelpers.node.getId(), 3, 100, qId);
+        cnx.runUpdate("dp_update_interval_max_by_id", 1600, dp.getId());
+
+        CreationTools.createJobDef(null, true, "pyl.KillMe", null, "jqm-tests/jqm-test-pyl/target/test.jar", qId, 42, "jqm-test-kill", null,
+                "Franquin", "ModuleMachin", "other", "other", false, cnx);
+
+        // Poller beans are only registered when JMX is enabled.
+        JmxAgent.unregisterAgent();
+        ServerSocket s1 = new ServerSocket(0);
+        ServerSocket s2 = new ServerSocket(0);
+        cnx.runUpdate("node_update_jmx_by_id", s1.getLocalPort(), s2.getLocalPort(), TestHelpers.node.getId());
+        s1.close();
+        s2.close();
+        cnx.commit();
+
+        addAndStartEngine();
+        ObjectName name = new ObjectName("com.enioka.jqm:type=Node.Queue,Node=" + TestHelpers.node.getName() + ",name=testqueue");
+        QueuePollerMBean poller = JMX.newMBeanProxy(ManagementFactory.getPlatformMBeanServer(), name, QueuePollerMBean.class);
+
+        // Empty queue: the interval goes up to its max.
+        sleep(3);
+        Assert.assertEquals((Integer) 100, poller.getPollingIntervalMilliseconds());
+        Assert.assertEquals((Integer) 1600, poller.getEffectivePollingIntervalMilliseconds());
+        Assert.assertTrue(poller.isActuallyPolling());
+
+        // More JI than free slots: the interval goes down.
+        for (int i = 0; i < 10; i++)
+        {
+            JqmClientFactory.getClient().enqueue("jqm-test-kill", "test");
+        }
+        TestHelpers.waitForRunning(3, 10000, cnx);
+        Assert.assertTrue(poller.getEffectivePollingIntervalMilliseconds() < 1600);
+
+        // Kill all to end the test.
+        for (JobInstance ji : Query.create().setQueryHistoryInstances(false).setQueryLiveInstances(true).run())
+        {
+            JqmClientFactory.getClient().killJob(ji.getId());
+        }
+        TestHelpers.waitFor(10, 60000, cnx);
+    }
+
+    @Test
+    public void testNotificationsPg() throws Exception
+    {
+        Assume.assumeTrue(db.getProduct().contains("postgres"));
+        Assert.assertTrue(cnx.supportsNotifications());
+
+        DbConn listener = db.getConn();
+        try
+        {
+            listener.listenForNewJobInstances();
+
+            // Notifications are only sent on commit.
+            cnx.notifyNewJobInstance(TestHelpers.qVip);
+            cnx.commit();
+
+            Set<Integer> notified = new HashSet<Integer>();
+            for (int i = 0; i < 10 && !notified.contains(TestHelpers.qVip); i++)
+            {
+                notified.addAll(listener.waitForNewJobInstances(1000));
+            }
+            Assert.assertTrue(notified.contains(TestHelpers.qVip));
+        }
+        finally
+        {
+            listener.unlistenForNewJobInstances();
+            listener.close();
+        }
+    }
+
+    @Test
+    public void testNotificationsDefault() throws Exception
+    {
+        Assume.assumeFalse(db.getProduct().contains("postgres"));
+        Assert.assertFalse(cnx.supportsNotifications());
+
+        // Default adapter: no-op listen, wait simply times out.
+        cnx.listenForNewJobInstances();
+        cnx.notifyNewJobInstance(TestHelpers.qVip);
+        cnx.commit();
+        Assert.assertTrue(cnx.waitForNewJobInstances(10).isEmpty());
+        cnx.unlistenForNewJobInstances();
+    }
+
+    @Test
+    public void testMultiQueuePoll() throws Exception
+    {
+        CreationTools.createJobDef(null, true, "pyl.Wait", null, "jqm-tests/jqm-test-pyl/target/test.jar", TestHelpers.qVip, 42,
+                "jqm-test-wait", null, "Franquin", "ModuleMachin", "other", "other", false, cnx);
+        cnx.commit();
+
+        int first = JobRequest.create("jqm-test-wait", "test").submit();
+        JobRequest.create("jqm-test-wait", "test").submit();
+        int prioritized = JobRequest.create("jqm-test-wait", "test").setPriority(5).submit();
+        JobRequest.create("jqm-test-wait", "test").setQueueName("NormalQueue").submit();
+        JobRequest.create("jqm-test-wait", "test").setQueueName("NormalQueue").submit();
+
+        Map<Queue, Integer> headSizes = new HashMap<Queue, Integer>();
+        headSizes.put(Queue.select(cnx, "q_select_by_id", TestHelpers.qVip).get(0), 2);
+        headSizes.put(Queue.select(cnx, "q_select_by_id", TestHelpers.qNormal).get(0), 10);
+        headSizes.put(Queue.select(cnx, "q_select_by_id", TestHelpers.qSlow).get(0), 10);
+        Map<Integer, List<com.enioka.jqm.model.JobInstance>> heads = cnx.poll(headSizes);
+        cnx.commit();
+
+        // Each head is limited to its own size and sorted like a single queue poll.
+        Assert.assertEquals(3, heads.size());
+        Assert.assertEquals(2, heads.get(TestHelpers.qVip).size());
+        Assert.assertEquals(prioritized, (int) heads.get(TestHelpers.qVip).get(0).getId());
+        Assert.assertEquals(first, (int) heads.get(TestHelpers.qVip).get(1).getId());
+        Assert.assertEquals(2, heads.get(TestHelpers.qNormal).size());
+        Assert.assertEquals(0, heads.get(TestHelpers.qSlow).size());
+    }
 }
@@ -1,8 +1,18 @@
 package com.enioka.jqm.tools;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.enioka.jqm.api.JobRequest;
+import com.enioka.jqm.api.JqmClientFactory;
+import com.enioka.jqm.model.Cl;
+import com.enioka.jqm.model.ClEvent;
+import com.enioka.jqm.model.ClHandler;
+import com.enioka.jqm.model.MetadataCache;
+import com.enioka.jqm.test.helpers.CreationTools;
 import com.enioka.jqm.test.helpers.TestHelpers;
 
 public class RefreshTest extends JqmBaseTest
@@ -21,4 +31,71 @@ public class RefreshTest extends JqmBaseTest
         TestHelpers.waitFor(1, 5000, cnx);
         Assert.assertEquals(1, TestHelpers.getOkCount(cnx));
     }
+
+    @Test
+    public void testJobDefChangeIsApplied() throws Exception
+    {
+        Helpers.setSingleParam("internalPollingPeriodMs", "100", cnx);
+        int jd = CreationTools.createJobDef(null, true, "pyl.PckMain", null, "jqm-tests/jqm-test-pyl-nodep/target/test.jar",
+                TestHelpers.qVip, -1, "TestJqmApplication", null, "TestModule", null, null, null, false, cnx);
+        addAndStartEngine();
+
+        int i1 = JobRequest.create("TestJqmApplication", "TestUser").submit();
+        TestHelpers.waitFor(1, 10000, cnx);
+
+        // Disabling the JD must be seen by the running engine (which caches JD) without restart.
+        cnx.runUpdate("jd_update_set_enabled_by_id", false, jd);
+        cnx.commit();
+        Thread.sleep(1000);
+
+        int i2 = JobRequest.create("TestJqmApplication", "TestUser").submit();
+        TestHelpers.waitFor(2, 10000, cnx);
+
+        Assert.assertEquals(2, TestHelpers.getOkCount(cnx));
+        Assert.assertNotEquals(-1, (int) JqmClientFactory.getClient().getJob(i1).getProgress());
+        Assert.assertEquals(-1, (int) JqmClientFactory.getClient().getJob(i2).getProgress());
+    }
+
+    @Test
+    public void testMetadataCacheChangeDetection() throws Exception
+    {
+        MetadataCache cache = new MetadataCache(cnx, 0);
+        Assert.assertFalse(cache.refreshIfChanged(cnx));
+
+        // Node parameters.
+        cnx.runUpdate("node_update_port_by_id", 12345, TestHelpers.node.getId());
+        cnx.commit();
+        Assert.assertTrue(cache.refreshIfChanged(cnx));
+        Assert.assertEquals((Integer) 12345, cache.getNode(cnx, TestHelpers.node.getId()).getPort());
+
+        // Class loader handlers are deleted and re-created on each change, even with the same count of rows.
+        int cl = Cl.create(cnx, "testcl", false, null, false, false, null);
+        Map<String, String> prms = new HashMap<String, String>();
+        prms.put("key", "value1");
+        ClHandler.create(cnx, ClEvent.JI_STARTING, "pyl.Handler", cl, prms);
+        cnx.commit();
+        Assert.assertTrue(cache.refreshIfChanged(cnx));
+
+        cnx.runUpdate("clehprm_delete_all_for_cl", cl);
+        cnx.runUpdate("cleh_delete_all_for_cl", cl);
+        prms.put("key", "value2");
+        ClHandler.create(cnx, ClEvent.JI_STARTING, "pyl.Handler", cl, prms);
+        cnx.commit();
+        Assert.assertTrue(cache.refreshIfChanged(cnx));
+        Assert.assertFalse(cache.refreshIfChanged(cnx));
+    }
+
+    @Test
+    public void testMetadataCacheFullReload() throws Exception
+    {
+        MetadataCache cache = new MetadataCache(cnx, 100);
+        Assert.assertFalse(cache.refreshIfChanged(cnx));
+
+        // Changes not stamped (as done by older libraries) are only seen at the next full reload.
+        cnx.runUpdate("node_update_alive_by_id", TestHelpers.node.getId());
+        cnx.commit();
+        Thread.sleep(200);
+        Assert.assertTrue(cache.refreshIfChanged(cnx));
+        Assert.assertEquals(2, cache.getVersion());
+    }
 }
@@ -29,12 +29,12 @@ public class Db
     /**
      * The version of the schema as it described in the current Maven artifact
      */
-    private static final int SCHEMA_VERSION = 2;
+    private static final int SCHEMA_VERSION = 7;
 
     /**
      * The SCHEMA_VERSION version is backward compatible until this version
      */
-    private static final int SCHEMA_COMPATIBLE_VERSION = 2;
+    private static final int SCHEMA_COMPATIBLE_VERSION = 6;
 
     /**
      * The list of different database adapters. We are using reflection for loading them for future extensibility.
@@ -6,9 +6,11 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,6 +18,7 @@ import org.slf4j.LoggerFactory;
 import com.enioka.jqm.model.JobInstance;
 import com.enioka.jqm.model.Node;
 import com.enioka.jqm.model.Queue;
+import com.enioka.jqm.model.State;
 
 /**
  * The interface to implement to create a new database adapter. Adapters contain all the database-specific stuff for running JQM on a
@@ -149,7 +152,10 @@ public abstract class DbAdapter
      * method allows to fully change the polling method. <br>
      * <br>
      * Default implementation uses the ji_select_poll SQL template query and does retrieve the whole queue without using headSize, so is a
-     * performance waste.
+     * performance waste.<br>
+     * Implementations may take row locks on the returned job instances (the poller always ends its loop with a commit or a rollback).<br>
+     * The returned job instances only carry the IDs of their job definition, queue and node - the engine resolves them through its
+     * {@link com.enioka.jqm.model.MetadataCache}.
      *
      * @param cnx
      *                     a session without active TX.
@@ -163,4 +169,136 @@ public abstract class DbAdapter
     {
         return JobInstance.select(cnx, "ji_select_poll", queue.getId());
     }
+
+    /**
+     * Polls the heads of multiple queues at once. Used by engines polling all their queues from a single thread.<br>
+     * <br>
+     * Default implementation simply calls {@link #poll(DbConn, Queue, int)} for each queue, inside the same session. Implementations able
+     * to retrieve all heads with fewer round trips should override it, for example with
+     * {@link #pollSingleQuery(DbConn, Map, boolean, String)}.
+     *
+     * @param cnx
+     *                      a session without active TX.
+     * @param headSizes
+     *                      for each queue to poll, the upper estimate of how many JI can be taken from it. See
+     *                      {@link #poll(DbConn, Queue, int)}.
+     * @return for each queue ID, a list of JI (possibly empty). Never null.
+     */
+    public Map<Integer, List<JobInstance>> poll(DbConn cnx, Map<Queue, Integer> headSizes)
+    {
+        Map<Integer, List<JobInstance>> res = new HashMap<Integer, List<JobInstance>>(headSizes.size());
+        for (Map.Entry<Queue, Integer> e : headSizes.entrySet())
+        {
+            res.put(e.getKey().getId(), poll(cnx, e.getKey(), e.getValue()));
+        }
+        return res;
+    }
+
+    /**
+     * Helper for {@link #poll(DbConn, Map)} implementations fetching all the queue heads with a single query. Runs the given query, which
+     * receives the list of queue IDs and the list of their head sizes (in the same order) as parameters, and splits its result by queue.
+     * Order of the result inside each queue is kept.
+     *
+     * @param cnx
+     *                      a session without active TX.
+     * @param headSizes
+     *                      see {@link #poll(DbConn, Map)}.
+     * @param forUpdate
+     *                      true if the query takes row locks.
+     * @param queryKey
+     *                      the query to run.
+     * @return see {@link #poll(DbConn, Map)}.
+     */
+    protected Map<Integer, List<JobInstance>> pollSingleQuery(DbConn cnx, Map<Queue, Integer> headSizes, boolean forUpdate, String queryKey)
+    {
+        Map<Integer, List<JobInstance>> res = new HashMap<Integer, List<JobInstance>>(headSizes.size());
+        if (headSizes.isEmpty())
+        {
+            return res;
+        }
+
+        List<Integer> queueIds = new ArrayList<Integer>(headSizes.size());
+        List<Integer> sizes = new ArrayList<Integer>(headSizes.size());
+        for (Map.Entry<Queue, Integer> e : headSizes.entrySet())
+        {
+            queueIds.add(e.getKey().getId());
+            sizes.add(e.getValue());
+            res.put(e.getKey().getId(), new ArrayList<JobInstance>());
+        }
+
+        for (JobInstance ji : JobInstance.select(cnx, forUpdate, queryKey, queueIds, sizes))
+        {
+            res.get(ji.getQueue()).add(ji);
+        }
+        return res;
+    }
+
+    /**
+     * Notification SPI, sending side. Called inside the transaction which creates a new {@link State#SUBMITTED} job instance. Adapters
+     * able to push notifications to the engines should send one here - ideally only effective on commit.<br>
+     * Default does nothing: engines simply find new job instances on their next poll.
+     *
+     * @param cnx
+     *                    the session creating the job instance.
+     * @param queueId
+     *                    the queue of the new job instance.
+     */
+    public void notifyNewJobInstance(DbConn cnx, int queueId)
+    {
+    }
+
+    /**
+     * Notification SPI, receiving side. If true, engines will call {@link #listenForNewJobInstances(DbConn)} and then
+     * {@link #waitForNewJobInstances(DbConn, int)} to wake up their pollers as soon as a job instance is created. Default is false.
+     */
+    public boolean supportsNotifications()
+    {
+        return false;
+    }
+
+    /**
+     * Subscribes a session to the notifications sent by {@link #notifyNewJobInstance(DbConn, int)}. The session is dedicated to listening
+     * and is not used for anything else until {@link #unlistenForNewJobInstances(DbConn)} is called.
+     *
+     * Default does nothing.
+     *
+     * @param cnx
+     *                a new session.
+     */
+    public void listenForNewJobInstances(DbConn cnx)
+    {
+    }
+
+    /**
+     * Ends the subscription created by {@link #listenForNewJobInstances(DbConn)}. Must not throw exceptions.
+     *
+     * @param cnx
+     *                the listening session.
+     */
+    public void unlistenForNewJobInstances(DbConn cnx)
+    {
+    }
+
+    /**
+     * Waits for notifications on a session subscribed by {@link #listenForNewJobInstances(DbConn)}.
+     *
+     * @param cnx
+     *                      the listening session.
+     * @param timeoutMs
+     *                      maximum time to wait. Implementations may return earlier, even without notification.
+     * @return the IDs of the queues which have received new job instances since the previous call. Empty on timeout. Never null. Default
+     *         simply waits for the timeout and returns an empty set.
+     */
+    public Set<Integer> waitForNewJobInstances(DbConn cnx, int timeoutMs)
+    {
+        try
+        {
+            Thread.sleep(timeoutMs);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return new HashSet<Integer>();
+    }
 }
@@ -17,6 +17,7 @@ import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 
 import org.slf4j.Logger;
@@ -135,6 +136,59 @@ public class DbConn implements Closeable
         }
     }
 
+    /**
+     * Runs the same update once for each parameter set, inside a single JDBC batch (so with a single round trip to the database for most
+     * drivers). Generated keys are not retrieved.
+     *
+     * @return the number of updated rows for each parameter set.
+     */
+    public int[] runUpdateBatch(String query_key, List<Object[]> params)
+    {
+        if (params.isEmpty())
+        {
+            return new int[0];
+        }
+
+        transac_open = true;
+        PreparedStatement ps = null;
+        QueryPreparation first = null;
+        try
+        {
+            for (Object[] prms : params)
+            {
+                QueryPreparation qp = adapterPreparation(query_key, false, prms);
+                if (first == null)
+                {
+                    first = qp;
+                    ps = _cnx.prepareStatement(qp.sqlText);
+                }
+                else if (!first.sqlText.equals(qp.sqlText))
+                {
+                    throw new DatabaseException("query " + query_key + " cannot be batched as its text depends on its parameters");
+                }
+
+                int i = 0;
+                for (Object prm : qp.parameters)
+                {
+                    addParameter(prm, ++i, ps);
+                }
+                ps.addBatch();
+            }
+
+            int[] res = ps.executeBatch();
+            jqmlogger.debug("Batched {} times query {}", res.length, query_key);
+            return res;
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(first == null ? query_key : first.sqlText, e);
+        }
+        finally
+        {
+            DbHelper.closeQuietly(ps);
+        }
+    }
+
     void runRawUpdate(String query_sql)
     {
         transac_open = true;
@@ -608,4 +662,52 @@ public class DbConn implements Closeable
     {
         return this.parent.getAdapter().poll(this, queue, nbSlots);
     }
+
+    /**
+     * See {@link DbAdapter#poll(DbConn, Map)}
+     */
+    public Map<Integer, List<JobInstance>> poll(Map<Queue, Integer> headSizes)
+    {
+        return this.parent.getAdapter().poll(this, headSizes);
+    }
+
+    /**
+     * See {@link DbAdapter#notifyNewJobInstance(DbConn, int)}
+     */
+    public void notifyNewJobInstance(int queueId)
+    {
+        this.parent.getAdapter().notifyNewJobInstance(this, queueId);
+    }
+
+    /**
+     * See {@link DbAdapter#supportsNotifications()}
+     */
+    public boolean supportsNotifications()
+    {
+        return this.parent.getAdapter().supportsNotifications();
+    }
+
+    /**
+     * See {@link DbAdapter#listenForNewJobInstances(DbConn)}
+     */
+    public void listenForNewJobInstances()
+    {
+        this.parent.getAdapter().listenForNewJobInstances(this);
+    }
+
+    /**
+     * See {@link DbAdapter#unlistenForNewJobInstances(DbConn)}
+     */
+    public void unlistenForNewJobInstances()
+    {
+        this.parent.getAdapter().unlistenForNewJobInstances(this);
+    }
+
+    /**
+     * See {@link DbAdapter#waitForNewJobInstances(DbConn, int)}
+     */
+    public Set<Integer> waitForNewJobInstances(int timeoutMs)
+    {
+        return this.parent.getAdapter().waitForNewJobInstances(this, timeoutMs);
+    }
 }
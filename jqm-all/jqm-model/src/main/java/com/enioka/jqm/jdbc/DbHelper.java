@@ -4,6 +4,9 @@ import java.io.Closeable;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,6 +15,34 @@ public class DbHelper
 {
     private static Logger jqmlogger = LoggerFactory.getLogger(DbHelper.class);
 
+    /**
+     * Max number of elements inside a single IN(UNNEST(?)) list parameter. This is a limit accepted by all supported databases.
+     */
+    public static final int IN_CLAUSE_LIMIT = 500;
+
+    /**
+     * Splits a collection of values into lists small enough to be used as IN(UNNEST(?)) parameters.
+     *
+     * @param values
+     *                   the values to split. May be empty.
+     * @return a list of non-empty lists. Empty if values is empty.
+     */
+    public static <T> List<List<T>> splitInClause(Collection<T> values)
+    {
+        List<List<T>> res = new ArrayList<List<T>>(values.size() / IN_CLAUSE_LIMIT + 1);
+        List<T> current = null;
+        for (T value : values)
+        {
+            if (current == null || current.size() == IN_CLAUSE_LIMIT)
+            {
+                current = new ArrayList<T>(Math.min(IN_CLAUSE_LIMIT, values.size()));
+                res.add(current);
+            }
+            current.add(value);
+        }
+        return res;
+    }
+
     /**
      * Close utility method.
      *
@@ -24,23 +24,23 @@ class DbImplBase
         
         // NODE
         queries.put("node_insert", "INSERT INTO __T__NODE(ID, REPO_DELIVERABLE, DNS, ENABLED, JMX_REGISTRY_PORT, JMX_SERVER_PORT, "
-                + "LOAD_API_ADMIN, LOAD_API_CLIENT, LOAD_API_SIMPLE, NAME, PORT, REPO_JOB_DEF, ROOT_LOG_LEVEL, STOP, REPO_TMP) "
-                + "VALUES(JQM_PK.nextval, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                + "LOAD_API_ADMIN, LOAD_API_CLIENT, LOAD_API_SIMPLE, NAME, PORT, REPO_JOB_DEF, ROOT_LOG_LEVEL, STOP, REPO_TMP, LAST_MODIFIED) "
+                + "VALUES(JQM_PK.nextval, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, CURRENT_TIMESTAMP)");
         queries.put("node_delete_all", "DELETE FROM __T__NODE");
         queries.put("node_delete_by_id", "DELETE __T__NODE WHERE ID=?");
-        queries.put("node_update_all_enable_ws", "UPDATE __T__NODE SET LOAD_API_SIMPLE=true, LOAD_API_CLIENT=true, LOAD_API_ADMIN=true, DNS='0.0.0.0'");
-        queries.put("node_update_enable_ws_by_id", "UPDATE __T__NODE SET LOAD_API_SIMPLE=true, LOAD_API_CLIENT=true, LOAD_API_ADMIN=true, DNS='0.0.0.0' WHERE ID=?");
-        queries.put("node_update_all_disable_ws", "UPDATE __T__NODE SET LOAD_API_CLIENT=false, LOAD_API_ADMIN=false");
-        queries.put("node_update_all_disable_all_ws", "UPDATE __T__NODE SET LOAD_API_SIMPLE=false, LOAD_API_CLIENT=false, LOAD_API_ADMIN=false");
-        queries.put("node_update_enabled_by_id", "UPDATE __T__NODE SET ENABLED=? WHERE ID=?");
-        queries.put("node_update_port_by_id", "UPDATE __T__NODE SET PORT=? WHERE ID=?");
-        queries.put("node_update_jmx_by_id", "UPDATE __T__NODE SET JMX_REGISTRY_PORT=?, JMX_SERVER_PORT=? WHERE ID=?");
+        queries.put("node_update_all_enable_ws", "UPDATE __T__NODE SET LOAD_API_SIMPLE=true, LOAD_API_CLIENT=true, LOAD_API_ADMIN=true, DNS='0.0.0.0', LAST_MODIFIED=CURRENT_TIMESTAMP");
+        queries.put("node_update_enable_ws_by_id", "UPDATE __T__NODE SET LOAD_API_SIMPLE=true, LOAD_API_CLIENT=true, LOAD_API_ADMIN=true, DNS='0.0.0.0', LAST_MODIFIED=CURRENT_TIMESTAMP WHERE ID=?");
+        queries.put("node_update_all_disable_ws", "UPDATE __T__NODE SET LOAD_API_CLIENT=false, LOAD_API_ADMIN=false, LAST_MODIFIED=CURRENT_TIMESTAMP");
+        queries.put("node_update_all_disable_all_ws", "UPDATE __T__NODE SET LOAD_API_SIMPLE=false, LOAD_API_CLIENT=false, LOAD_API_ADMIN=false, LAST_MODIFIED=CURRENT_TIMESTAMP");
+        queries.put("node_update_enabled_by_id", "UPDATE __T__NODE SET ENABLED=?, LAST_MODIFIED=CURRENT_TIMESTAMP WHERE ID=?");
+        queries.put("node_update_port_by_id", "UPDATE __T__NODE SET PORT=?, LAST_MODIFIED=CURRENT_TIMESTAMP WHERE ID=?");
+        queries.put("node_update_jmx_by_id", "UPDATE __T__NODE SET JMX_REGISTRY_PORT=?, JMX_SERVER_PORT=?, LAST_MODIFIED=CURRENT_TIMESTAMP WHERE ID=?");
         queries.put("node_update_alive_by_id", "UPDATE __T__NODE SET LAST_SEEN_ALIVE=CURRENT_TIMESTAMP WHERE ID=?");
         queries.put("node_update_has_stopped_by_id", "UPDATE __T__NODE SET LAST_SEEN_ALIVE=NULL, STOP=false WHERE ID=?");
         queries.put("node_update_stop_by_id", "UPDATE __T__NODE SET STOP=true WHERE ID=?");
-        queries.put("node_update_all_log_level", "UPDATE __T__NODE SET ROOT_LOG_LEVEL=?");
+        queries.put("node_update_all_log_level", "UPDATE __T__NODE SET ROOT_LOG_LEVEL=?, LAST_MODIFIED=CURRENT_TIMESTAMP");
         queries.put("node_update_changed_by_id", "UPDATE __T__NODE SET REPO_DELIVERABLE=?, DNS=?, ENABLED=?, JMX_REGISTRY_PORT=?, JMX_SERVER_PORT=?, "
-                + "LOAD_API_ADMIN=?, LOAD_API_CLIENT=?, LOAD_API_SIMPLE=?, NAME=?, PORT=?, REPO_JOB_DEF=?, ROOT_LOG_LEVEL=?, STOP=?, REPO_TMP=? "
+                + "LOAD_API_ADMIN=?, LOAD_API_CLIENT=?, LOAD_API_SIMPLE=?, NAME=?, PORT=?, REPO_JOB_DEF=?, ROOT_LOG_LEVEL=?, STOP=?, REPO_TMP=?, LAST_MODIFIED=CURRENT_TIMESTAMP "
                 + "WHERE ID=? AND NOT (REPO_DELIVERABLE=? AND DNS=? AND ENABLED=? AND JMX_REGISTRY_PORT=? AND JMX_SERVER_PORT=? AND "
                 + "LOAD_API_ADMIN=? AND LOAD_API_CLIENT=? AND LOAD_API_SIMPLE=? AND NAME=? AND PORT=? AND REPO_JOB_DEF=? AND ROOT_LOG_LEVEL=? AND STOP=? AND REPO_TMP=?)");
         queries.put("node_select_all", "SELECT ID, REPO_DELIVERABLE, DNS, ENABLED, JMX_REGISTRY_PORT, JMX_SERVER_PORT, "
@@ -51,13 +51,13 @@ class DbImplBase
         queries.put("node_select_connectdata_by_key", "SELECT DNS, PORT FROM __T__NODE WHERE NAME=?");
         
         // QUEUE
-        queries.put("q_insert", "INSERT INTO __T__QUEUE(ID, DEFAULT_QUEUE, DESCRIPTION, NAME) VALUES(JQM_PK.nextval, ?, ?, ?)");
+        queries.put("q_insert", "INSERT INTO __T__QUEUE(ID, DEFAULT_QUEUE, DESCRIPTION, NAME, LAST_MODIFIED) VALUES(JQM_PK.nextval, ?, ?, ?, CURRENT_TIMESTAMP)");
         queries.put("q_delete_all", "DELETE FROM __T__QUEUE");
         queries.put("q_delete_by_id", "DELETE FROM __T__QUEUE WHERE ID=?");
-        queries.put("q_update_default_none", "UPDATE __T__QUEUE SET DEFAULT_QUEUE=false");
-        queries.put("q_update_default_by_id", "UPDATE __T__QUEUE SET DEFAULT_QUEUE=true WHERE ID=?");
-        queries.put("q_update_all_fields_by_id", "UPDATE __T__QUEUE SET DEFAULT_QUEUE=?, DESCRIPTION=?, NAME=? WHERE ID=?");
-        queries.put("q_update_changed_by_id", "UPDATE __T__QUEUE SET DEFAULT_QUEUE=?, DESCRIPTION=?, NAME=? WHERE ID=? AND NOT (DEFAULT_QUEUE=? AND DESCRIPTION=? AND NAME=?)");
+        queries.put("q_update_default_none", "UPDATE __T__QUEUE SET DEFAULT_QUEUE=false, LAST_MODIFIED=CURRENT_TIMESTAMP WHERE DEFAULT_QUEUE=true");
+        queries.put("q_update_default_by_id", "UPDATE __T__QUEUE SET DEFAULT_QUEUE=true, LAST_MODIFIED=CURRENT_TIMESTAMP WHERE ID=?");
+        queries.put("q_update_all_fields_by_id", "UPDATE __T__QUEUE SET DEFAULT_QUEUE=?, DESCRIPTION=?, NAME=?, LAST_MODIFIED=CURRENT_TIMESTAMP WHERE ID=?");
+        queries.put("q_update_changed_by_id", "UPDATE __T__QUEUE SET DEFAULT_QUEUE=?, DESCRIPTION=?, NAME=?, LAST_MODIFIED=CURRENT_TIMESTAMP WHERE ID=? AND NOT (DEFAULT_QUEUE=? AND DESCRIPTION=? AND NAME=?)");
         queries.put("q_select_count_all", "SELECT COUNT(1) FROM __T__QUEUE");
         queries.put("q_select_all", "SELECT ID, DEFAULT_QUEUE, DESCRIPTION, NAME FROM __T__QUEUE");
         queries.put("q_select_default", "SELECT ID, DEFAULT_QUEUE, DESCRIPTION, NAME FROM __T__QUEUE WHERE DEFAULT_QUEUE=true");
@@ -72,27 +72,35 @@ class DbImplBase
         queries.put("dp_delete_by_id", "DELETE FROM __T__QUEUE_NODE_MAPPING WHERE ID=?");
         queries.put("dp_update_interval_by_id", "UPDATE __T__QUEUE_NODE_MAPPING SET POLLING_INTERVAL=? WHERE ID=?");
         queries.put("dp_update_enable_by_queue_id", "UPDATE __T__QUEUE_NODE_MAPPING SET ENABLED=? WHERE QUEUE=?");
+        queries.put("dp_update_interval_max_by_id", "UPDATE __T__QUEUE_NODE_MAPPING SET POLLING_INTERVAL_MAX=? WHERE ID=?");
         queries.put("dp_update_threads_by_id", "UPDATE __T__QUEUE_NODE_MAPPING SET MAX_THREAD=? WHERE ID=?");
         queries.put("dp_update_changed_by_id", "UPDATE __T__QUEUE_NODE_MAPPING SET ENABLED=?, LAST_MODIFIED=CURRENT_TIMESTAMP, MAX_THREAD=?, POLLING_INTERVAL=?, NODE=?, QUEUE=? WHERE ID=? AND NOT "
                 + "(ENABLED=? AND MAX_THREAD=? AND POLLING_INTERVAL=? AND NODE=? AND QUEUE=?)");
-        queries.put("dp_select_by_id", "SELECT ID, ENABLED, LAST_MODIFIED, MAX_THREAD, POLLING_INTERVAL, NODE, QUEUE FROM __T__QUEUE_NODE_MAPPING WHERE ID=?");
-        queries.put("dp_select_for_node", "SELECT ID, ENABLED, LAST_MODIFIED, MAX_THREAD, POLLING_INTERVAL, NODE, QUEUE FROM __T__QUEUE_NODE_MAPPING WHERE NODE=?");
+        queries.put("dp_select_by_id", "SELECT ID, ENABLED, LAST_MODIFIED, MAX_THREAD, POLLING_INTERVAL, NODE, QUEUE, POLLING_INTERVAL_MAX FROM __T__QUEUE_NODE_MAPPING WHERE ID=?");
+        queries.put("dp_select_for_node", "SELECT ID, ENABLED, LAST_MODIFIED, MAX_THREAD, POLLING_INTERVAL, NODE, QUEUE, POLLING_INTERVAL_MAX FROM __T__QUEUE_NODE_MAPPING WHERE NODE=?");
         queries.put("dp_select_count_for_node", "SELECT COUNT(1) FROM __T__QUEUE_NODE_MAPPING WHERE NODE=?");
         queries.put("dp_select_enabled_for_queue", "SELECT ENABLED, MAX_THREAD FROM __T__QUEUE_NODE_MAPPING WHERE QUEUE=?");
         queries.put("dp_select_sum_queue_capacity", "SELECT SUM(dp.MAX_THREAD) FROM __T__QUEUE_NODE_MAPPING dp LEFT JOIN __T__NODE n ON n.ID = dp.NODE WHERE dp.ENABLED = true AND n.ENABLED = true AND dp.QUEUE = ?");
-        queries.put("dp_select_all_with_names", "SELECT dp.ID, dp.ENABLED, dp.LAST_MODIFIED, dp.MAX_THREAD, dp.POLLING_INTERVAL, dp.NODE, dp.QUEUE, n.NAME, q.NAME FROM __T__QUEUE_NODE_MAPPING dp LEFT JOIN __T__NODE n ON n.ID=dp.NODE LEFT JOIN __T__QUEUE q ON q.ID=dp.QUEUE ");
+        queries.put("dp_select_all_with_names", "SELECT dp.ID, dp.ENABLED, dp.LAST_MODIFIED, dp.MAX_THREAD, dp.POLLING_INTERVAL, dp.NODE, dp.QUEUE, dp.POLLING_INTERVAL_MAX, n.NAME, q.NAME FROM __T__QUEUE_NODE_MAPPING dp LEFT JOIN __T__NODE n ON n.ID=dp.NODE LEFT JOIN __T__QUEUE q ON q.ID=dp.QUEUE ");
         queries.put("dp_select_with_names_by_id", queries.get("dp_select_all_with_names") + " WHERE dp.ID=?");
         queries.put("dp_select_with_names_by_node_id", queries.get("dp_select_all_with_names") + " WHERE dp.NODE=?");
         
         // CL
-        queries.put("cl_insert", "INSERT INTO __T__CL(ID, NAME, CHILD_FIRST, HIDDEN_CLASSES, TRACING, PERSISTENT, ALLOWED_RUNNERS) VALUES(JQM_PK.nextval, ?, ?, ?, ?, ?, ?)");
+        queries.put("cl_insert", "INSERT INTO __T__CL(ID, NAME, CHILD_FIRST, HIDDEN_CLASSES, TRACING, PERSISTENT, ALLOWED_RUNNERS, LAST_MODIFIED) VALUES(JQM_PK.nextval, ?, ?, ?, ?, ?, ?, CURRENT_TIMESTAMP)");
         queries.put("cl_delete_all", "DELETE FROM __T__CL");
         queries.put("cl_delete_by_id", "DELETE FROM __T__CL WHERE ID=?");
-        queries.put("cl_update_all_fields_by_id", "UPDATE __T__CL SET NAME=?, CHILD_FIRST=?, HIDDEN_CLASSES=?, TRACING=?, PERSISTENT=?, ALLOWED_RUNNERS=? WHERE ID=?");
+        queries.put("cl_update_all_fields_by_id", "UPDATE __T__CL SET NAME=?, CHILD_FIRST=?, HIDDEN_CLASSES=?, TRACING=?, PERSISTENT=?, ALLOWED_RUNNERS=?, LAST_MODIFIED=CURRENT_TIMESTAMP WHERE ID=?");
         queries.put("cl_select_all", "SELECT ID, NAME, CHILD_FIRST, HIDDEN_CLASSES, TRACING, PERSISTENT, ALLOWED_RUNNERS FROM __T__CL ");
         queries.put("cl_select_by_id", queries.get("cl_select_all") + " WHERE ID=?");
         queries.put("cl_select_by_key", queries.get("cl_select_all") + " WHERE NAME=?");
         
+        // METADATA (JD, QUEUE, NODE, CL) CHANGE DETECTION. CL handlers and their parameters are never updated, only deleted and re-created.
+        queries.put("metadata_select_stamp", "SELECT (SELECT COUNT(1) FROM __T__JOB_DEFINITION), (SELECT MAX(LAST_MODIFIED) FROM __T__JOB_DEFINITION), "
+                + "(SELECT COUNT(1) FROM __T__QUEUE), (SELECT MAX(LAST_MODIFIED) FROM __T__QUEUE), "
+                + "(SELECT COUNT(1) FROM __T__CL), (SELECT MAX(LAST_MODIFIED) FROM __T__CL), "
+                + "(SELECT COUNT(1) FROM __T__CL_HANDLER), (SELECT MAX(ID) FROM __T__CL_HANDLER), (SELECT COUNT(1) FROM __T__CL_HANDLER_PARAMETER), (SELECT MAX(ID) FROM __T__CL_HANDLER_PARAMETER), "
+                + "(SELECT COUNT(1) FROM __T__NODE), (SELECT MAX(LAST_MODIFIED) FROM __T__NODE) FROM (VALUES(0))");
+
         // CL EVENT HANDLER
         queries.put("cleh_insert", "INSERT INTO __T__CL_HANDLER(ID, EVENT_TYPE, CLASS_NAME, CL) VALUES(JQM_PK.nextval, ?, ?, ?)");
         queries.put("cleh_delete_all", "DELETE FROM __T__CL_HANDLER");
@@ -112,18 +120,18 @@ class DbImplBase
         queries.put("jd_insert", "INSERT INTO __T__JOB_DEFINITION(ID, APPLICATION, JD_KEY, CL, "
                 + "DESCRIPTION, ENABLED, EXTERNAL, HIGHLANDER, "
                 + "PATH, CLASS_NAME, JAVA_OPTS, KEYWORD1, KEYWORD2, KEYWORD3, ALERT_AFTER_SECONDS, "
-                + "MODULE, PATH_TYPE, QUEUE) "
-                + "VALUES(JQM_PK.nextval, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                + "MODULE, PATH_TYPE, QUEUE, LAST_MODIFIED) "
+                + "VALUES(JQM_PK.nextval, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, CURRENT_TIMESTAMP)");
         queries.put("jd_delete_all", "DELETE FROM __T__JOB_DEFINITION");
         queries.put("jd_delete_by_id", "DELETE FROM __T__JOB_DEFINITION WHERE ID=?");
         queries.put("jd_update_all_fields_by_id", "UPDATE __T__JOB_DEFINITION SET APPLICATION=?, JD_KEY=?, "
                 + "DESCRIPTION=?, ENABLED=?, EXTERNAL=?, HIGHLANDER=?, "
                 + "PATH=?, CLASS_NAME=?, JAVA_OPTS=?, KEYWORD1=?, KEYWORD2=?, KEYWORD3=?, ALERT_AFTER_SECONDS=?, "
-                + "MODULE=?, PATH_TYPE=?, CL=?, QUEUE=? "
+                + "MODULE=?, PATH_TYPE=?, CL=?, QUEUE=?, LAST_MODIFIED=CURRENT_TIMESTAMP "
                 + "WHERE ID=?");
-        queries.put("jd_update_set_external_by_id", "UPDATE __T__JOB_DEFINITION SET EXTERNAL=true WHERE ID=?");
-        queries.put("jd_update_set_enabled_by_id", "UPDATE __T__JOB_DEFINITION SET ENABLED=? WHERE ID=?");
-        queries.put("jd_update_set_queue_by_key", "UPDATE __T__JOB_DEFINITION SET QUEUE=? WHERE JD_KEY=?");
+        queries.put("jd_update_set_external_by_id", "UPDATE __T__JOB_DEFINITION SET EXTERNAL=true, LAST_MODIFIED=CURRENT_TIMESTAMP WHERE ID=?");
+        queries.put("jd_update_set_enabled_by_id", "UPDATE __T__JOB_DEFINITION SET ENABLED=?, LAST_MODIFIED=CURRENT_TIMESTAMP WHERE ID=?");
+        queries.put("jd_update_set_queue_by_key", "UPDATE __T__JOB_DEFINITION SET QUEUE=?, LAST_MODIFIED=CURRENT_TIMESTAMP WHERE JD_KEY=?");
         queries.put("jd_select_all", "SELECT ID, APPLICATION, JD_KEY, CL, "
                 + "DESCRIPTION, ENABLED, EXTERNAL, HIGHLANDER, "
                 + "PATH, CLASS_NAME, JAVA_OPTS, KEYWORD1, KEYWORD2, KEYWORD3, ALERT_AFTER_SECONDS, "
@@ -193,6 +201,8 @@ class DbImplBase
         queries.put("ji_select_count_by_jd", "SELECT COUNT(1) FROM __T__JOB_INSTANCE WHERE JOBDEF=?");
         queries.put("ji_select_count_by_node", "SELECT COUNT(1) FROM __T__JOB_INSTANCE WHERE NODE=?");
         queries.put("ji_select_count_by_queue", "SELECT COUNT(1) FROM __T__JOB_INSTANCE WHERE QUEUE=?");
+        queries.put("ji_select_count_by_id", "SELECT COUNT(1) FROM __T__JOB_INSTANCE WHERE ID=?");
+        queries.put("ji_select_count_by_parent", "SELECT COUNT(1) FROM __T__JOB_INSTANCE WHERE PARENT=?");
         queries.put("ji_select_all", "SELECT ji.ID, ji.DATE_ATTRIBUTION, ji.DATE_ENQUEUE, ji.EMAIL, ji.DATE_START, ji.APPLICATION, ji.KEYWORD1, ji.KEYWORD2, "
                 + "ji.KEYWORD3, ji.MODULE, ji.INTERNAL_POSITION, ji.PARENT, ji.PROGRESS, ji.SESSION_KEY, ji.STATUS, ji.USERNAME, ji.JOBDEF, ji.NODE, ji.QUEUE, ji.HIGHLANDER, ji.FROM_SCHEDULE, ji.PRIORITY, ji.INSTRUCTION, ji.DATE_NOT_BEFORE, "
                 + "q.ID AS Q_ID, q.DEFAULT_QUEUE, q.DESCRIPTION AS Q_DESCRIPTION, q.NAME AS Q_NAME, "
@@ -203,21 +213,31 @@ class DbImplBase
                 + "n.ID AS N_ID, n.REPO_DELIVERABLE, n.DNS, n.ENABLED AS N_ENABLED, n.JMX_REGISTRY_PORT, n.JMX_SERVER_PORT, "
                 + "n.LOAD_API_ADMIN, n.LOAD_API_CLIENT, n.LOAD_API_SIMPLE, n.NAME AS N_NAME, n.PORT, n.REPO_JOB_DEF, n.ROOT_LOG_LEVEL, n.STOP, n.REPO_TMP, n.LAST_SEEN_ALIVE "
                 + "FROM __T__JOB_INSTANCE ji LEFT JOIN __T__QUEUE q ON ji.QUEUE=q.ID LEFT JOIN __T__JOB_DEFINITION jd ON ji.JOBDEF=jd.ID LEFT JOIN __T__NODE n ON ji.NODE=n.ID ");
+        queries.put("ji_select_all_nojoin", "SELECT ji.ID, ji.DATE_ATTRIBUTION, ji.DATE_ENQUEUE, ji.EMAIL, ji.DATE_START, ji.APPLICATION, ji.KEYWORD1, ji.KEYWORD2, "
+                + "ji.KEYWORD3, ji.MODULE, ji.INTERNAL_POSITION, ji.PARENT, ji.PROGRESS, ji.SESSION_KEY, ji.STATUS, ji.USERNAME, ji.JOBDEF, ji.NODE, ji.QUEUE, ji.HIGHLANDER, ji.FROM_SCHEDULE, ji.PRIORITY, ji.INSTRUCTION, ji.DATE_NOT_BEFORE "
+                + "FROM __T__JOB_INSTANCE ji ");
         queries.put("ji_select_by_id", queries.get("ji_select_all") + " WHERE ji.ID=?");
         queries.put("ji_select_by_queue", queries.get("ji_select_all") + " WHERE ji.QUEUE=? ORDER BY INTERNAL_POSITION");
         queries.put("ji_select_by_node", queries.get("ji_select_all") + " WHERE ji.NODE=?");
         queries.put("ji_select_existing_highlander", "SELECT ID FROM __T__JOB_INSTANCE WHERE JOBDEF=? AND STATUS='SUBMITTED'");
         queries.put("ji_select_existing_highlander_2", "SELECT COUNT(1) FROM __T__JOB_INSTANCE WHERE JOBDEF=? AND STATUS IN('ATTRIBUTED', 'RUNNING')");
+        queries.put("jd_update_highlander_take", "UPDATE __T__JOB_DEFINITION SET HIGHLANDER_JI=? WHERE ID=? AND (HIGHLANDER_JI IS NULL OR HIGHLANDER_JI=? "
+                + "OR HIGHLANDER_JI NOT IN (SELECT ji.ID FROM __T__JOB_INSTANCE ji WHERE ji.JOBDEF=?)) "
+                + "AND NOT EXISTS (SELECT 1 FROM __T__JOB_INSTANCE ji2 WHERE ji2.JOBDEF=? AND ji2.STATUS IN('ATTRIBUTED', 'RUNNING') AND ji2.ID<>?)");
+        queries.put("jd_update_highlander_release", "UPDATE __T__JOB_DEFINITION SET HIGHLANDER_JI=NULL WHERE ID=? AND HIGHLANDER_JI=?");
         queries.put("ji_select_changequeuepos_by_id", "SELECT QUEUE, INTERNAL_POSITION FROM __T__JOB_INSTANCE WHERE ID=? AND STATUS='SUBMITTED'");
         queries.put("ji_select_instruction_by_id", "SELECT INSTRUCTION FROM __T__JOB_INSTANCE WHERE ID=?");
         queries.put("ji_select_priority_by_id", "SELECT PRIORITY FROM __T__JOB_INSTANCE WHERE ID=?");
         queries.put("ji_select_execution_date_by_id", "SELECT DATE_START FROM __T__JOB_INSTANCE WHERE ID=?");
         queries.put("ji_select_cnx_data_by_id", "SELECT DNS||':'||PORT AS HOST FROM __T__JOB_INSTANCE ji LEFT JOIN __T__NODE n ON ji.NODE = n.ID WHERE ji.ID=?");
-        queries.put("ji_select_instructions_by_node", "SELECT ji.ID, ji.INSTRUCTION FROM __T__JOB_INSTANCE ji WHERE ji.STATUS='RUNNING' AND ji.INSTRUCTION <> 'RUN' AND ji.NODE=?");
+        queries.put("ji_select_instructions_by_node", "SELECT ji.ID, ji.INSTRUCTION, ji.PRIORITY FROM __T__JOB_INSTANCE ji WHERE ji.STATUS='RUNNING' AND (ji.INSTRUCTION <> 'RUN' OR ji.PRIORITY <> 0) AND ji.NODE=?");
         
         queries.put("ji_update_delayed", "UPDATE __T__JOB_INSTANCE SET STATUS='SUBMITTED' WHERE STATUS='SCHEDULED' AND DATE_NOT_BEFORE <= CURRENT_TIMESTAMP");
-        queries.put("ji_select_poll",queries.get("ji_select_all") + " WHERE ji.QUEUE = ? AND ji.STATUS='SUBMITTED' ORDER BY ji.PRIORITY DESC, ji.INTERNAL_POSITION");
+        queries.put("ji_select_poll",queries.get("ji_select_all_nojoin") + " WHERE ji.QUEUE = ? AND ji.STATUS='SUBMITTED' ORDER BY ji.PRIORITY DESC, ji.INTERNAL_POSITION");
         queries.put("ji_update_status_by_id", "UPDATE __T__JOB_INSTANCE SET STATUS='ATTRIBUTED', NODE=? WHERE STATUS='SUBMITTED' AND ID=?");
+        queries.put("ji_update_status_by_id_list", "UPDATE __T__JOB_INSTANCE SET STATUS='ATTRIBUTED', NODE=? WHERE STATUS='SUBMITTED' AND ID IN(UNNEST(?))");
+        queries.put("ji_select_attributed_by_node_id_list", "SELECT ID FROM __T__JOB_INSTANCE WHERE STATUS='ATTRIBUTED' AND NODE=? AND ID IN(UNNEST(?))");
+        queries.put("ji_update_back_to_submitted", "UPDATE __T__JOB_INSTANCE SET STATUS='SUBMITTED', NODE=NULL WHERE STATUS='ATTRIBUTED' AND NODE=? AND ID=?");
         
         // HISTORY
         queries.put("history_insert_with_end_date", "INSERT INTO __T__HISTORY(ID, JD_APPLICATION, JD_KEY, DATE_ATTRIBUTION, EMAIL, "
@@ -338,6 +358,15 @@ class DbImplBase
         // WITNESS
         queries.put("w_insert", "INSERT INTO __T__WITNESS(ID, KEYNAME, NODE, LATEST_CONTACT) VALUES(JQM_PK.nextval, 'SCHEDULER', ?, CURRENT_TIMESTAMP)");
         queries.put("w_update_take", "UPDATE __T__WITNESS SET NODE=?, LATEST_CONTACT=CURRENT_TIMESTAMP WHERE KEYNAME='SCHEDULER' AND (LATEST_CONTACT IS NULL OR NODE IS NULL OR NODE=? OR (NODE<>? AND LATEST_CONTACT < (CURRENT_TIMESTAMP - ? SECOND)))");
+
+        // RM LEASE
+        queries.put("rmlease_insert", "INSERT INTO __T__RM_LEASE(ID, RM_KEY, NODE, UNITS, LAST_MODIFIED) VALUES(JQM_PK.nextval, ?, ?, 0, CURRENT_TIMESTAMP)");
+        queries.put("rmlease_delete_all", "DELETE FROM __T__RM_LEASE");
+        queries.put("rmlease_lock_by_key", "UPDATE __T__RM_LEASE SET LAST_MODIFIED=CURRENT_TIMESTAMP WHERE RM_KEY=?"); // row locks on all leases of the RM until commit.
+        queries.put("rmlease_update_units", "UPDATE __T__RM_LEASE SET UNITS=?, LAST_MODIFIED=CURRENT_TIMESTAMP WHERE RM_KEY=? AND NODE=?");
+        queries.put("rmlease_select_count_for_node", "SELECT COUNT(1) FROM __T__RM_LEASE WHERE RM_KEY=? AND NODE=?");
+        queries.put("rmlease_select_units_others", "SELECT COALESCE(SUM(l.UNITS), 0) FROM __T__RM_LEASE l, __T__NODE n WHERE l.NODE=n.ID AND l.RM_KEY=? AND l.NODE<>? "
+                + "AND n.LAST_SEEN_ALIVE IS NOT NULL AND n.LAST_SEEN_ALIVE > (CURRENT_TIMESTAMP - ? SECOND)");
     }
    
 }
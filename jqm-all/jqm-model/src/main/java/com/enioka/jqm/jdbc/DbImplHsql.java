@@ -5,6 +5,7 @@ import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import com.enioka.jqm.model.JobInstance;
@@ -19,6 +20,12 @@ public class DbImplHsql extends DbAdapter
 
         // We do NOT want to use paginateQuery on each poll query as we want polling to be as painless as possible, so we pre-paginate it.
         queries.put("ji_select_poll", queries.get("ji_select_poll") + " LIMIT ?");
+
+        // All queue heads at once: one LIMITed sub query per (queue, head size) couple.
+        queries.put("ji_select_poll_multi", "SELECT h.* FROM UNNEST(CAST(? AS INTEGER ARRAY), CAST(? AS INTEGER ARRAY)) AS q(QID, LIM), LATERAL ("
+                + queries.get("ji_select_all_nojoin")
+                + " WHERE ji.QUEUE = q.QID AND ji.STATUS='SUBMITTED' ORDER BY ji.PRIORITY DESC, ji.INTERNAL_POSITION LIMIT q.LIM) h "
+                + "ORDER BY h.QUEUE, h.PRIORITY DESC, h.INTERNAL_POSITION");
     }
 
     @Override
@@ -56,4 +63,10 @@ public class DbImplHsql extends DbAdapter
     {
         return JobInstance.select(cnx, "ji_select_poll", queue.getId(), headSize);
     }
+
+    @Override
+    public Map<Integer, List<JobInstance>> poll(DbConn cnx, Map<Queue, Integer> headSizes)
+    {
+        return pollSingleQuery(cnx, headSizes, false, "ji_select_poll_multi");
+    }
 }
@@ -1,17 +1,87 @@
 package com.enioka.jqm.jdbc;
 
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.enioka.jqm.model.JobInstance;
+import com.enioka.jqm.model.Queue;
 
 public class DbImplPg extends DbAdapter
 {
+    private static Logger jqmlogger = LoggerFactory.getLogger(DbImplPg.class);
+
+    /**
+     * True if the database knows about SKIP LOCKED (PostgreSQL 9.5+).
+     */
+    private boolean skipLocked = false;
+
+    /**
+     * Name of the LISTEN/NOTIFY channel used to signal new job instances. Payload is the queue ID.
+     */
+    private static final String NOTIFICATION_CHANNEL = "jqm_new_ji";
+
+    /**
+     * When the driver cannot block while waiting for notifications, they are fetched by a trivial query at this period.
+     */
+    private static final int NOTIFICATION_FALLBACK_PERIOD_MS = 500;
+
+    private volatile boolean fallbackWarned = false;
+
     public DbImplPg()
     {
         this.IDS[0] = "id";
     }
 
+    @Override
+    public void prepare(Properties p, Connection cnx)
+    {
+        super.prepare(p, cnx);
+
+        try
+        {
+            DatabaseMetaData m = cnx.getMetaData();
+            skipLocked = m.getDatabaseMajorVersion() > 9 || (m.getDatabaseMajorVersion() == 9 && m.getDatabaseMinorVersion() >= 5);
+        }
+        catch (SQLException e)
+        {
+            jqmlogger.warn("Could not determine PostgreSQL version - polling will not use SKIP LOCKED", e);
+        }
+
+        // Only fetch the head of the queue. When possible, also lock the head rows so that other nodes polling the same queue simply skip
+        // them instead of fighting over them when updating their status. Locks are released on the poller commit/rollback.
+        if (skipLocked)
+        {
+            queries.put("ji_select_poll", queries.get("ji_select_poll") + " LIMIT ? FOR UPDATE OF ji SKIP LOCKED");
+
+            // All queue heads at once: one LIMITed (and locked) sub query per (queue, head size) couple. Locking clauses are not allowed
+            // inside a UNION, but are inside a LATERAL sub query.
+            queries.put("ji_select_poll_multi", "SELECT h.* FROM UNNEST(CAST(? AS INTEGER ARRAY), CAST(? AS INTEGER ARRAY)) AS q(QID, LIM), LATERAL ("
+                    + queries.get("ji_select_all_nojoin")
+                    + " WHERE ji.QUEUE = q.QID AND ji.STATUS='SUBMITTED' ORDER BY ji.PRIORITY DESC, ji.INTERNAL_POSITION LIMIT q.LIM FOR UPDATE OF ji SKIP LOCKED) h "
+                    + "ORDER BY h.QUEUE, h.PRIORITY DESC, h.INTERNAL_POSITION");
+        }
+        else
+        {
+            queries.put("ji_select_poll", queries.get("ji_select_poll") + " LIMIT ?");
+        }
+
+        queries.put("ji_notify_new", "SELECT pg_notify('" + NOTIFICATION_CHANNEL + "', ?)");
+    }
+
     @Override
     public String adaptSql(String sql)
     {
@@ -43,4 +113,174 @@ public class DbImplPg extends DbAdapter
         prms.add(start);
         return sql;
     }
+
+    @Override
+    public List<JobInstance> poll(DbConn cnx, Queue queue, int headSize)
+    {
+        return JobInstance.select(cnx, skipLocked, "ji_select_poll", queue.getId(), headSize);
+    }
+
+    @Override
+    public Map<Integer, List<JobInstance>> poll(DbConn cnx, Map<Queue, Integer> headSizes)
+    {
+        if (!skipLocked)
+        {
+            // Older versions (multiple argument UNNEST needs 9.4) simply poll each queue.
+            return super.poll(cnx, headSizes);
+        }
+        return pollSingleQuery(cnx, headSizes, true, "ji_select_poll_multi");
+    }
+
+    @Override
+    public void notifyNewJobInstance(DbConn cnx, int queueId)
+    {
+        // NOTIFY is transactional: the notification is only sent on commit.
+        cnx.closeQuietly(cnx.runSelect("ji_notify_new", String.valueOf(queueId)));
+    }
+
+    @Override
+    public boolean supportsNotifications()
+    {
+        return true;
+    }
+
+    @Override
+    public void listenForNewJobInstances(DbConn cnx)
+    {
+        Statement s = null;
+        try
+        {
+            // No transaction should stay open on a listening session, as notifications are only received between transactions.
+            cnx._cnx.setAutoCommit(true);
+            s = cnx._cnx.createStatement();
+            s.execute("LISTEN " + NOTIFICATION_CHANNEL);
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+        finally
+        {
+            DbHelper.closeQuietly(s);
+        }
+    }
+
+    @Override
+    public void unlistenForNewJobInstances(DbConn cnx)
+    {
+        Statement s = null;
+        try
+        {
+            s = cnx._cnx.createStatement();
+            s.execute("UNLISTEN " + NOTIFICATION_CHANNEL);
+            cnx._cnx.setAutoCommit(false);
+        }
+        catch (SQLException e)
+        {
+            jqmlogger.debug("Could not stop listening to notifications", e);
+        }
+        finally
+        {
+            DbHelper.closeQuietly(s);
+        }
+    }
+
+    @Override
+    public Set<Integer> waitForNewJobInstances(DbConn cnx, int timeoutMs)
+    {
+        Set<Integer> res = new HashSet<Integer>();
+        Statement s = null;
+        ResultSet rs = null;
+        try
+        {
+            // The notification API is not part of JDBC. Use it through reflection, as the driver is not a dependency of JQM.
+            Object pgCnx = unwrapPgConnection(cnx._cnx);
+            Object notifications;
+            try
+            {
+                // Recent drivers can block until a notification arrives.
+                Method m = pgCnx.getClass().getMethod("getNotifications", int.class);
+                notifications = m.invoke(pgCnx, timeoutMs);
+            }
+            catch (NoSuchMethodException e)
+            {
+                // Older drivers (before 42.2.0) only read notifications received during a query.
+                if (!fallbackWarned)
+                {
+                    fallbackWarned = true;
+                    jqmlogger.warn("The PostgreSQL JDBC driver cannot wait for notifications (version 42.2.0 or later is needed) - "
+                            + "notifications are read by a query every " + NOTIFICATION_FALLBACK_PERIOD_MS + "ms instead");
+                }
+                s = cnx._cnx.createStatement();
+                rs = s.executeQuery("SELECT 1");
+                Method m = pgCnx.getClass().getMethod("getNotifications");
+                notifications = m.invoke(pgCnx);
+                if (notifications == null || Array.getLength(notifications) == 0)
+                {
+                    Thread.sleep(Math.min(timeoutMs, NOTIFICATION_FALLBACK_PERIOD_MS));
+                }
+            }
+
+            if (notifications != null)
+            {
+                for (int i = 0; i < Array.getLength(notifications); i++)
+                {
+                    Object notification = Array.get(notifications, i);
+                    String payload = (String) notification.getClass().getMethod("getParameter").invoke(notification);
+                    try
+                    {
+                        res.add(Integer.parseInt(payload));
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        jqmlogger.debug("Ignoring unexpected notification payload {}", payload);
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+        catch (Exception e)
+        {
+            throw new DatabaseException("Could not read notifications from the PostgreSQL driver", e);
+        }
+        finally
+        {
+            DbHelper.closeQuietly(rs);
+            DbHelper.closeQuietly(s);
+        }
+        return res;
+    }
+
+    private Object unwrapPgConnection(Connection cnx) throws SQLException
+    {
+        // The connection may be a pool proxy, so try both its class loader and the context one.
+        for (ClassLoader cl : new ClassLoader[] { cnx.getClass().getClassLoader(), Thread.currentThread().getContextClassLoader() })
+        {
+            Class<?> pgConnectionClass;
+            try
+            {
+                pgConnectionClass = Class.forName("org.postgresql.PGConnection", true, cl);
+            }
+            catch (ClassNotFoundException e)
+            {
+                continue;
+            }
+            if (pgConnectionClass.isInstance(cnx))
+            {
+                return cnx;
+            }
+            if (cnx.isWrapperFor(pgConnectionClass))
+            {
+                return cnx.unwrap(pgConnectionClass);
+            }
+        }
+        throw new DatabaseException("Connection does not give access to the PostgreSQL driver notification API");
+    }
 }
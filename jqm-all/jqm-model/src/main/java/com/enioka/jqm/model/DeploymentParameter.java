@@ -40,6 +40,7 @@ public class DeploymentParameter
     private int node;
     private int nbThread;
     private int pollingInterval;
+    private Integer pollingIntervalMax;
     private int queue;
     private boolean enabled = true;
     private Calendar lastModified;
@@ -127,6 +128,24 @@ public class DeploymentParameter
         this.pollingInterval = pollingInterval;
     }
 
+    /**
+     * If not null, the polling interval is adaptive: it is doubled after each poll finding nothing to run, up to this value in
+     * milliseconds, and halved (down to {@link #getPollingInterval()}) after each poll finding more job instances than free slots. If null,
+     * the polling interval is fixed.
+     */
+    public Integer getPollingIntervalMax()
+    {
+        return pollingIntervalMax;
+    }
+
+    /**
+     * See {@link #getPollingIntervalMax()}
+     */
+    public void setPollingIntervalMax(final Integer pollingIntervalMax)
+    {
+        this.pollingIntervalMax = pollingIntervalMax;
+    }
+
     /**
      * The {@link Queue} that will have to be polled by the {@link Node} designated by {@link #getNode()} for new {@link JobInstance}s to
      * run.
@@ -226,6 +245,11 @@ public class DeploymentParameter
                 tmp.pollingInterval = rs.getInt(5);
                 tmp.node = rs.getInt(6);
                 tmp.queue = rs.getInt(7);
+                tmp.pollingIntervalMax = rs.getInt(8);
+                if (rs.wasNull())
+                {
+                    tmp.pollingIntervalMax = null;
+                }
 
                 res.add(tmp);
             }
@@ -0,0 +1,74 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.model;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.enioka.jqm.jdbc.DbConn;
+
+/**
+ * <strong>Not part of any API - this an internal JQM class and may change without notice.</strong> <br>
+ * An immutable in-memory copy of all the {@link GlobalParameter}s, read with a single query. Used by engines which would otherwise read
+ * the same parameters again and again - they simply replace their snapshot with a new one on a regular basis.
+ */
+public class GlobalParameterSnapshot
+{
+    private final Map<String, String> values;
+    private final Calendar loadTime;
+
+    private GlobalParameterSnapshot(Map<String, String> values)
+    {
+        this.values = Collections.unmodifiableMap(values);
+        this.loadTime = Calendar.getInstance();
+    }
+
+    /**
+     * Reads all the parameters from the database.
+     */
+    public static GlobalParameterSnapshot load(DbConn cnx)
+    {
+        Map<String, String> values = new HashMap<String, String>();
+        for (GlobalParameter gp : GlobalParameter.select(cnx, "globalprm_select_all"))
+        {
+            // Multi-valued parameters are not meant to be read through this class - keep a single value like a simple select would.
+            if (!values.containsKey(gp.getKey()))
+            {
+                values.put(gp.getKey(), gp.getValue());
+            }
+        }
+        return new GlobalParameterSnapshot(values);
+    }
+
+    /**
+     * Same as {@link GlobalParameter#getParameter(DbConn, String, String)}, without any database access.
+     */
+    public String getParameter(String key, String defaultValue)
+    {
+        String res = this.values.get(key);
+        return res == null ? defaultValue : res;
+    }
+
+    /**
+     * When the parameters were read from the database.
+     */
+    public Calendar getLoadTime()
+    {
+        return (Calendar) this.loadTime.clone();
+    }
+}
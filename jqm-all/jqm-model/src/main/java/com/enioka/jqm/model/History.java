@@ -19,7 +19,9 @@
 package com.enioka.jqm.model;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 
 import com.enioka.jqm.jdbc.DbConn;
 
@@ -586,15 +588,37 @@ public class History implements Serializable
         }
         else
         {
-            cnx.runUpdate("history_insert_with_end_date", ji.getId(), jd.getApplication(), jd.getApplicationName(), ji.getAttributionDate(),
-                    ji.getEmail(), endDate, ji.getCreationDate(), ji.getExecutionDate(), jd.isHighlander(), ji.getApplication(),
-                    ji.getKeyword1(), ji.getKeyword2(), ji.getKeyword3(), ji.getModule(), jd.getKeyword1(), jd.getKeyword2(),
-                    jd.getKeyword3(), jd.getModule(), n.getName(), ji.getParentId(), ji.getProgress(), q.getName(), 0, ji.getSessionID(),
-                    finalState.toString(), ji.getUserName(), ji.getJdId(), ji.getNode().getId(), ji.getQueue(), ji.isFromSchedule(),
-                    ji.getPriority(), ji.getNotBefore());
+            cnx.runUpdate("history_insert_with_end_date", getInsertWithEndDateParameters(ji, finalState, endDate));
         }
     }
 
+    /**
+     * Same as {@link #create(DbConn, JobInstance, State, Calendar)} for many job instances at once, inside a single JDBC batch. All three
+     * lists must have the same size, and end dates are mandatory.
+     */
+    public static void create(DbConn cnx, List<JobInstance> jis, List<State> finalStates, List<Calendar> endDates)
+    {
+        List<Object[]> prms = new ArrayList<Object[]>(jis.size());
+        for (int i = 0; i < jis.size(); i++)
+        {
+            prms.add(getInsertWithEndDateParameters(jis.get(i), finalStates.get(i), endDates.get(i)));
+        }
+        cnx.runUpdateBatch("history_insert_with_end_date", prms);
+    }
+
+    private static Object[] getInsertWithEndDateParameters(JobInstance ji, State finalState, Calendar endDate)
+    {
+        JobDef jd = ji.getJD();
+        Node n = ji.getNode();
+        Queue q = ji.getQ();
+
+        return new Object[] { ji.getId(), jd.getApplication(), jd.getApplicationName(), ji.getAttributionDate(), ji.getEmail(), endDate,
+                ji.getCreationDate(), ji.getExecutionDate(), jd.isHighlander(), ji.getApplication(), ji.getKeyword1(), ji.getKeyword2(),
+                ji.getKeyword3(), ji.getModule(), jd.getKeyword1(), jd.getKeyword2(), jd.getKeyword3(), jd.getModule(), n.getName(),
+                ji.getParentId(), ji.getProgress(), q.getName(), 0, ji.getSessionID(), finalState.toString(), ji.getUserName(),
+                ji.getJdId(), ji.getNode().getId(), ji.getQueue(), ji.isFromSchedule(), ji.getPriority(), ji.getNotBefore() };
+    }
+
     /**
      * Create an History object from a {@link JobInstance}. (if it does not exist, exception).
      *
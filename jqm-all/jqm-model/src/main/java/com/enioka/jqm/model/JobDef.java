@@ -384,6 +384,11 @@ public class JobDef implements Serializable
 
     public Cl getClassLoader(DbConn cnx)
     {
+        if (this.classLoader == null)
+        {
+            clCache = null;
+            return null;
+        }
         List<Cl> cls = Cl.select(cnx, "cl_select_by_id", this.classLoader);
         clCache = cls.size() > 0 ? cls.get(0) : null;
         return clCache;
@@ -394,6 +399,16 @@ public class JobDef implements Serializable
         this.classLoader = id;
     }
 
+    Integer getClassLoaderId()
+    {
+        return this.classLoader;
+    }
+
+    void setClassLoaderCache(Cl cl)
+    {
+        this.clCache = cl;
+    }
+
     /**
      * If true, the instances created from this JobDef will be run inside a dedicated JVM instead of simply being a thread inside an engine.
      * Default is <code>false</code>.<br>
@@ -22,13 +22,17 @@ import java.io.Serializable;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.enioka.jqm.jdbc.DatabaseException;
 import com.enioka.jqm.jdbc.DbConn;
+import com.enioka.jqm.jdbc.DbHelper;
 import com.enioka.jqm.jdbc.QueryResult;
 
 /**
@@ -75,6 +79,7 @@ public class JobInstance implements Serializable
     private transient Node n;
 
     private HashMap<String, String> prmCache;
+    private transient PrmCacheBulkLoader prmLoader;
     private HashMap<String, String> envVarCache;
 
     /**
@@ -454,6 +459,10 @@ public class JobInstance implements Serializable
 
     public Map<String, String> getPrms()
     {
+        if (this.prmCache == null && this.prmLoader != null)
+        {
+            this.prmLoader.load();
+        }
         if (this.prmCache == null)
         {
             throw new IllegalStateException("cache was not loaded");
@@ -470,6 +479,88 @@ public class JobInstance implements Serializable
         }
     }
 
+    /**
+     * Prepares the lazy loading of the parameter cache of many job instances at once. Nothing is read at once - the first call to
+     * {@link #getPrms()} on any of the given instances loads the parameters of all of them with a few IN queries (instead of one query per
+     * instance). The connection must therefore stay open until either {@link #getPrms()} has been called or the instances are dropped.
+     *
+     * @param cnx
+     *                 the connection to use for the deferred load.
+     * @param jis
+     *                 the instances. Those with an already loaded cache are ignored.
+     */
+    public static void loadPrmCacheLazily(DbConn cnx, List<JobInstance> jis)
+    {
+        PrmCacheBulkLoader loader = new PrmCacheBulkLoader(cnx);
+        for (JobInstance ji : jis)
+        {
+            if (ji.prmCache == null)
+            {
+                ji.prmLoader = loader;
+                loader.jis.put(ji.id, ji);
+            }
+        }
+    }
+
+    /**
+     * Loads the parameters of a set of JI with as few queries as possible. Used through {@link JobInstance#getPrms()}.
+     */
+    private static class PrmCacheBulkLoader
+    {
+        private DbConn cnx;
+        private Map<Integer, JobInstance> jis = new HashMap<Integer, JobInstance>();
+
+        private PrmCacheBulkLoader(DbConn cnx)
+        {
+            this.cnx = cnx;
+        }
+
+        private void load()
+        {
+            Map<Integer, HashMap<String, String>> caches = new HashMap<Integer, HashMap<String, String>>(jis.size());
+            for (JobInstance ji : jis.values())
+            {
+                if (ji.prmCache == null)
+                {
+                    caches.put(ji.id, new HashMap<String, String>());
+                }
+            }
+
+            for (List<Integer> chunk : DbHelper.splitInClause(caches.keySet()))
+            {
+                ResultSet rs = null;
+                try
+                {
+                    rs = cnx.runSelect("jiprm_select_by_ji_list", chunk);
+                    while (rs.next())
+                    {
+                        caches.get(rs.getInt(2)).put(rs.getString(3), rs.getString(4));
+                    }
+                }
+                catch (SQLException e)
+                {
+                    throw new DatabaseException(e);
+                }
+                finally
+                {
+                    cnx.closeQuietly(rs);
+                }
+            }
+
+            // Only set the caches once everything was read, so that a failure leaves the instances as they were.
+            for (JobInstance ji : jis.values())
+            {
+                ji.prmLoader = null;
+                if (ji.prmCache == null)
+                {
+                    ji.prmCache = caches.get(ji.id);
+                }
+            }
+            jis.clear();
+            cnx = null;
+        }
+    }
+
     public void addEnvVar(String key, String value)
     {
         if (envVarCache == null)
@@ -484,13 +575,29 @@ public class JobInstance implements Serializable
         return envVarCache == null ? new HashMap<String, String>() : envVarCache;
     }
 
+    /**
+     * The keys of the queries which only return the job instance columns (no queue, job definition and node columns).
+     */
+    private static final Set<String> NOJOIN_QUERIES = new HashSet<String>(
+            Arrays.asList("ji_select_all_nojoin", "ji_select_poll", "ji_select_poll_multi"));
+
     public static List<JobInstance> select(DbConn cnx, String query_key, Object... args)
+    {
+        return select(cnx, false, query_key, args);
+    }
+
+    /**
+     * Same as {@link #select(DbConn, String, Object...)}, but the query may take row locks. In that case a transaction is opened on the
+     * connection and it is the caller's duty to commit or rollback it.
+     */
+    public static List<JobInstance> select(DbConn cnx, boolean forUpdate, String query_key, Object... args)
     {
         List<JobInstance> res = new ArrayList<JobInstance>();
         ResultSet rs = null;
         try
         {
-            rs = cnx.runSelect(query_key, args);
+            rs = cnx.runSelect(forUpdate, query_key, args);
+            boolean joined = !NOJOIN_QUERIES.contains(query_key);
             while (rs.next())
             {
                 JobInstance tmp = new JobInstance();
@@ -521,9 +628,13 @@ public class JobInstance implements Serializable
                 tmp.instruction = Instruction.valueOf(rs.getString(23));
                 tmp.notBefore = cnx.getCal(rs, 24);
 
-                tmp.q = Queue.map(rs, 24);
-                tmp.jd = JobDef.map(rs, 28);
-                tmp.n = Node.map(cnx, rs, 46);
+                // Queries without joins leave metadata to be resolved through a MetadataCache.
+                if (joined)
+                {
+                    tmp.q = Queue.map(rs, 24);
+                    tmp.jd = JobDef.map(rs, 28);
+                    tmp.n = Node.map(cnx, rs, 46);
+                }
 
                 res.add(tmp);
             }
@@ -539,6 +650,16 @@ public class JobInstance implements Serializable
         return res;
     }
 
+    /**
+     * Sets the {@link JobDef}, {@link Queue} and {@link Node} of a JI retrieved without them (i.e. by a query without joins).
+     */
+    void resolveMetadata(MetadataCache cache, DbConn cnx)
+    {
+        this.jd = cache.getJobDef(cnx, this.jd_id);
+        this.q = cache.getQueue(cnx, this.queue_id);
+        this.n = this.node_id > 0 ? cache.getNode(cnx, this.node_id) : null;
+    }
+
     public static JobInstance select_id(DbConn cnx, int id)
     {
         List<JobInstance> res = select(cnx, "ji_select_by_id", id);
@@ -580,6 +701,12 @@ public class JobInstance implements Serializable
             }
         }
 
+        if (status == State.SUBMITTED)
+        {
+            // Wake up pollers on commit if the database can do it.
+            cnx.notifyNewJobInstance(queue_id);
+        }
+
         return newId;
     }
 }
@@ -19,6 +19,8 @@
 package com.enioka.jqm.model;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.enioka.jqm.jdbc.DbConn;
 import com.enioka.jqm.jdbc.QueryResult;
@@ -97,4 +99,17 @@ public class Message implements Serializable
 
         return r.getGeneratedId();
     }
+
+    /**
+     * Create many new entries in the database, inside a single JDBC batch. Both lists must have the same size. No commit performed.
+     */
+    public static void create(DbConn cnx, List<String> textMessages, List<Integer> jobIds)
+    {
+        List<Object[]> prms = new ArrayList<Object[]>(textMessages.size());
+        for (int i = 0; i < textMessages.size(); i++)
+        {
+            prms.add(new Object[] { jobIds.get(i), textMessages.get(i) });
+        }
+        cnx.runUpdateBatch("message_insert", prms);
+    }
 }
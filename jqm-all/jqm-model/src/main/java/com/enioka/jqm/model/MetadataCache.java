@@ -0,0 +1,272 @@
+/**
+ * Copyright © 2013 enioka. All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.enioka.jqm.model;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.enioka.jqm.jdbc.DatabaseException;
+import com.enioka.jqm.jdbc.DbConn;
+
+/**
+ * <strong>Not part of any API - this an internal JQM class and may change without notice.</strong> <br>
+ * An in-memory copy of the metadata needed to run job instances ({@link JobDef}, {@link Queue}, {@link Node}, {@link Cl}), so that polling
+ * does not need to join them to every job instance. The copy is replaced as a whole when {@link #refreshIfChanged(DbConn)} detects a
+ * change (inserted or deleted rows, or a newer LAST_MODIFIED stamp), and in all cases after a configurable period, as writers using
+ * older libraries do not stamp their changes. Items missing from the copy are read from the database on demand and kept aside until the
+ * next reload.
+ */
+public class MetadataCache
+{
+    private volatile Snapshot snapshot;
+    private volatile Misses misses = new Misses();
+    private final long fullReloadPeriodMs;
+
+    /**
+     * Creates the cache and loads all the metadata at once.
+     *
+     * @param fullReloadPeriodMs
+     *                               the metadata is reloaded after this many ms even if no change was detected. 0 or less means never.
+     */
+    public MetadataCache(DbConn cnx, long fullReloadPeriodMs)
+    {
+        this.fullReloadPeriodMs = fullReloadPeriodMs;
+        this.snapshot = load(cnx, 1, readStamp(cnx));
+    }
+
+    /**
+     * Reloads all the metadata if it has changed in the database since the last load, or if the last load is older than the full reload
+     * period.
+     *
+     * @return true if the metadata was reloaded.
+     */
+    public boolean refreshIfChanged(DbConn cnx)
+    {
+        // The stamp is read before the data: a change happening during the load will be seen on next call.
+        String stamp = readStamp(cnx);
+        Snapshot current = this.snapshot;
+        boolean expired = fullReloadPeriodMs > 0 && System.currentTimeMillis() - current.loadTime >= fullReloadPeriodMs;
+        if (stamp.equals(current.stamp) && !expired)
+        {
+            return false;
+        }
+        this.snapshot = load(cnx, current.version + 1, stamp);
+        this.misses = new Misses();
+        return true;
+    }
+
+    /**
+     * Increased on each reload.
+     */
+    public long getVersion()
+    {
+        return this.snapshot.version;
+    }
+
+    /**
+     * @return the IDs of the job definitions known to the cache: all those existing at the last reload, plus those loaded since.
+     */
+    public Set<Integer> getJobDefIds()
+    {
+        Set<Integer> res = new HashSet<Integer>(this.snapshot.jobDefs.keySet());
+        res.addAll(this.misses.jobDefs.keySet());
+        return res;
+    }
+
+    public JobDef getJobDef(DbConn cnx, int id)
+    {
+        JobDef res = this.snapshot.jobDefs.get(id);
+        if (res == null)
+        {
+            Misses m = this.misses;
+            res = m.jobDefs.get(id);
+            if (res == null)
+            {
+                res = JobDef.select(cnx, "jd_select_by_id", id).get(0);
+                attachCl(cnx, res);
+                m.jobDefs.put(id, res);
+            }
+        }
+        return res;
+    }
+
+    public Queue getQueue(DbConn cnx, int id)
+    {
+        Queue res = this.snapshot.queues.get(id);
+        if (res == null)
+        {
+            Misses m = this.misses;
+            res = m.queues.get(id);
+            if (res == null)
+            {
+                res = Queue.select(cnx, "q_select_by_id", id).get(0);
+                m.queues.put(id, res);
+            }
+        }
+        return res;
+    }
+
+    public Node getNode(DbConn cnx, int id)
+    {
+        Node res = this.snapshot.nodes.get(id);
+        if (res == null)
+        {
+            Misses m = this.misses;
+            res = m.nodes.get(id);
+            if (res == null)
+            {
+                res = Node.select_single(cnx, "node_select_by_id", id);
+                m.nodes.put(id, res);
+            }
+        }
+        return res;
+    }
+
+    public Cl getCl(DbConn cnx, int id)
+    {
+        Cl res = this.snapshot.cls.get(id);
+        if (res == null)
+        {
+            Misses m = this.misses;
+            res = m.cls.get(id);
+            if (res == null)
+            {
+                res = Cl.select(cnx, "cl_select_by_id", id).get(0);
+                m.cls.put(id, res);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Sets the metadata of job instances retrieved by a query without joins.
+     */
+    public void resolve(DbConn cnx, List<JobInstance> jis)
+    {
+        for (JobInstance ji : jis)
+        {
+            ji.resolveMetadata(this, cnx);
+        }
+    }
+
+    private void attachCl(DbConn cnx, JobDef jd)
+    {
+        if (jd.getClassLoaderId() != null)
+        {
+            jd.setClassLoaderCache(getCl(cnx, jd.getClassLoaderId()));
+        }
+    }
+
+    private static Snapshot load(DbConn cnx, long version, String stamp)
+    {
+        Map<Integer, Cl> cls = new HashMap<Integer, Cl>();
+        for (Cl cl : Cl.select(cnx, "cl_select_all"))
+        {
+            cls.put(cl.getId(), cl);
+        }
+        Map<Integer, Queue> queues = new HashMap<Integer, Queue>();
+        for (Queue q : Queue.select(cnx, "q_select_all"))
+        {
+            queues.put(q.getId(), q);
+        }
+        Map<Integer, Node> nodes = new HashMap<Integer, Node>();
+        for (Node n : Node.select(cnx, "node_select_all"))
+        {
+            nodes.put(n.getId(), n);
+        }
+        Map<Integer, JobDef> jobDefs = new HashMap<Integer, JobDef>();
+        for (JobDef jd : JobDef.select(cnx, "jd_select_all"))
+        {
+            if (jd.getClassLoaderId() != null)
+            {
+                Cl cl = cls.get(jd.getClassLoaderId());
+                jd.setClassLoaderCache(cl != null ? cl : Cl.select(cnx, "cl_select_by_id", jd.getClassLoaderId()).get(0));
+            }
+            jobDefs.put(jd.getId(), jd);
+        }
+        return new Snapshot(version, stamp, jobDefs, queues, nodes, cls);
+    }
+
+    private static String readStamp(DbConn cnx)
+    {
+        ResultSet rs = null;
+        try
+        {
+            rs = cnx.runSelect("metadata_select_stamp");
+            if (!rs.next())
+            {
+                return "";
+            }
+            StringBuilder sb = new StringBuilder();
+            for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++)
+            {
+                sb.append(rs.getObject(i)).append(';');
+            }
+            return sb.toString();
+        }
+        catch (SQLException e)
+        {
+            throw new DatabaseException(e);
+        }
+        finally
+        {
+            cnx.closeQuietly(rs);
+        }
+    }
+
+    /**
+     * An immutable view of the metadata, as loaded at a given time. Never modified once created.
+     */
+    private static class Snapshot
+    {
+        private final long version;
+        private final String stamp;
+        private final long loadTime = System.currentTimeMillis();
+        private final Map<Integer, JobDef> jobDefs;
+        private final Map<Integer, Queue> queues;
+        private final Map<Integer, Node> nodes;
+        private final Map<Integer, Cl> cls;
+
+        private Snapshot(long version, String stamp, Map<Integer, JobDef> jobDefs, Map<Integer, Queue> queues, Map<Integer, Node> nodes,
+                Map<Integer, Cl> cls)
+        {
+            this.version = version;
+            this.stamp = stamp;
+            this.jobDefs = Collections.unmodifiableMap(jobDefs);
+            this.queues = Collections.unmodifiableMap(queues);
+            this.nodes = Collections.unmodifiableMap(nodes);
+            this.cls = Collections.unmodifiableMap(cls);
+        }
+    }
+
+    /**
+     * Items read on demand because they were missing from the snapshot. Replaced by an empty instance on each reload.
+     */
+    private static class Misses
+    {
+        private final Map<Integer, JobDef> jobDefs = new ConcurrentHashMap<Integer, JobDef>();
+        private final Map<Integer, Queue> queues = new ConcurrentHashMap<Integer, Queue>();
+        private final Map<Integer, Node> nodes = new ConcurrentHashMap<Integer, Node>();
+        private final Map<Integer, Cl> cls = new ConcurrentHashMap<Integer, Cl>();
+    }
+}
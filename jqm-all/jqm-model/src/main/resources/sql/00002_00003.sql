@@ -0,0 +1 @@
+ALTER TABLE __T__QUEUE_NODE_MAPPING ADD POLLING_INTERVAL_MAX INTEGER NULL;
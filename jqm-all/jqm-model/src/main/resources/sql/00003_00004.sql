@@ -0,0 +1,4 @@
+ALTER TABLE __T__JOB_DEFINITION ADD LAST_MODIFIED TIMESTAMP NULL;
+ALTER TABLE __T__QUEUE ADD LAST_MODIFIED TIMESTAMP NULL;
+ALTER TABLE __T__CL ADD LAST_MODIFIED TIMESTAMP NULL;
+ALTER TABLE __T__NODE ADD LAST_MODIFIED TIMESTAMP NULL;
@@ -0,0 +1,14 @@
+/* Cluster-wide resource managers: units currently leased by each node. Leases of nodes not seen alive recently are ignored. */
+CREATE MEMORY TABLE __T__RM_LEASE
+(
+	ID INTEGER NOT NULL,
+	RM_KEY VARCHAR(50) NOT NULL,
+	NODE INTEGER NOT NULL,
+	UNITS INTEGER NOT NULL,
+	LAST_MODIFIED TIMESTAMP NOT NULL,
+
+	CONSTRAINT PK_RM_LEASE PRIMARY KEY(ID),
+	CONSTRAINT UK_RM_LEASE_1 UNIQUE(RM_KEY, NODE),
+	CONSTRAINT FK_RM_LEASE_1 FOREIGN KEY(NODE) REFERENCES __T__NODE(ID) ON DELETE CASCADE
+);
+CREATE INDEX IDX_FK_RM_LEASE_1 ON __T__RM_LEASE(NODE);
@@ -0,0 +1,2 @@
+/* The job instance currently holding the highlander slot of the job definition (booked, attributed or running). */
+ALTER TABLE __T__JOB_DEFINITION ADD HIGHLANDER_JI INTEGER NULL;
@@ -0,0 +1,2 @@
+/* Live children of a job instance are counted by parents waiting for them. */
+CREATE INDEX IDX_JOB_INSTANCE_6 ON __T__JOB_INSTANCE(PARENT);
@@ -34,4 +34,11 @@ public interface JobRunner
      * @return
      */
     public JobInstanceTracker getTracker(JobInstance toRun, JobManager engineApi, JobRunnerCallback cb);
+
+    /**
+     * Called once when the engine stops, after the last job instance has ended. The runner should release the resources it holds (threads,
+     * class loaders...). No tracker is requested after this call.<br>
+     * This method was added after version 2.2.8: runners implemented outside of JQM must now implement it (doing nothing is fine).
+     */
+    public void stop();
 }
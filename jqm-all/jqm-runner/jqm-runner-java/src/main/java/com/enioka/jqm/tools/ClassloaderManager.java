@@ -1,21 +1,36 @@
 package com.enioka.jqm.tools;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 
 import com.enioka.jqm.api.JobRunnerCallback;
 import com.enioka.jqm.jdbc.DbConn;
 import com.enioka.jqm.model.Cl;
 import com.enioka.jqm.model.GlobalParameter;
 import com.enioka.jqm.model.JobDef;
+import com.enioka.jqm.model.JobDef.PathType;
 import com.enioka.jqm.model.JobInstance;
 
 import org.apache.commons.io.FilenameUtils;
@@ -52,28 +67,65 @@ class ClassloaderManager
      */
     private Map<Integer, PayloadClassLoader> persistentClassLoaders = new HashMap<Integer, PayloadClassLoader>();
 
+    /**
+     * The CLs corresponding to "pooled isolation" mode: transient CLs which have never run anything, created in advance. Key is JobDef ID.
+     * Access ordered, so that the first pools are the ones of the least recently launched job definitions.
+     */
+    private LinkedHashMap<Integer, LinkedList<PooledClassLoader>> pooledClassLoaders =
+            new LinkedHashMap<Integer, LinkedList<PooledClassLoader>>(16, 0.75f, true);
+
+    /**
+     * Number of CLs inside {@link #pooledClassLoaders}, all job definitions included.
+     */
+    private int pooledCount = 0;
+
+    /**
+     * Creates the CLs of the pooled isolation mode. Null if this mode is not used.
+     */
+    private ExecutorService poolFiller = null;
+
+    /**
+     * How many CLs are kept ready per job definition in pooled isolation mode.
+     */
+    private int poolSize = 1;
+
+    /**
+     * How many CLs are kept ready, all job definitions included, in pooled isolation mode.
+     */
+    private int poolTotal = 50;
+
+    /**
+     * Set once the runner is stopped - no more pooled CLs are created after that.
+     */
+    private boolean stopped = false;
+
+    /**
+     * How many job instances were given a CL prepared in advance (and not created on demand) in pooled isolation mode.
+     */
+    private final AtomicInteger pooledClassLoadersUsed = new AtomicInteger(0);
+
     /**
      * The different runners which may be involved inside the class loaders. Simple class names.
      */
     private List<String> runnerClasses = new ArrayList<String>();
 
     /**
-     * The default CL mode. Values can be: null, Shared, SharedJar.
+     * The default CL mode. Values can be: null, Shared, SharedJar, Pooled (same as default but with CLs created in advance).
      */
     private String launchIsolationDefault = null;
 
     private final LibraryResolverFS fsResolver;
     private final LibraryResolverMaven mavenResolver;
 
-    ClassloaderManager(DbConn cnx)
+    ClassloaderManager(DbConn cnx, boolean allowPooling)
     {
         this.mavenResolver = new LibraryResolverMaven(cnx);
         this.fsResolver = new LibraryResolverFS(this.mavenResolver);
 
-        setIsolationDefault(cnx);
+        setIsolationDefault(cnx, allowPooling);
     }
 
-    private void setIsolationDefault(DbConn cnx)
+    private void setIsolationDefault(DbConn cnx, boolean allowPooling)
     {
         this.launchIsolationDefault = GlobalParameter.getParameter(cnx, "launch_isolation_default", "Isolated");
         String rns = GlobalParameter.getParameter(cnx, "job_runners",
@@ -83,6 +135,90 @@ class ClassloaderManager
             runnerClasses.add(s);
             jqmlogger.info("Detected a job instance runner named " + s);
         }
+
+        if ("Pooled".equals(this.launchIsolationDefault) && allowPooling)
+        {
+            this.poolSize = Integer.parseInt(GlobalParameter.getParameter(cnx, "launch_isolation_pool", "1"));
+            this.poolTotal = Integer.parseInt(GlobalParameter.getParameter(cnx, "launch_isolation_total", "50"));
+            this.poolFiller = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "JQM class loader pool");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            jqmlogger.info("Isolated class loaders will be prepared in advance - " + this.poolSize + " per job definition, "
+                    + this.poolTotal + " in total");
+        }
+    }
+
+    /**
+     * Stops the preparation of pooled CLs and closes the pooled CLs which were not used. CLs given to job instances are not affected.
+     */
+    void stop()
+    {
+        if (poolFiller == null)
+        {
+            return;
+        }
+        poolFiller.shutdownNow();
+        synchronized (pooledClassLoaders)
+        {
+            stopped = true;
+            for (LinkedList<PooledClassLoader> pool : pooledClassLoaders.values())
+            {
+                for (PooledClassLoader pcl : pool)
+                {
+                    pcl.cl.tryClose();
+                }
+            }
+            pooledClassLoaders.clear();
+            pooledCount = 0;
+        }
+    }
+
+    /**
+     * @return how many job instances were given a CL prepared in advance since startup.
+     */
+    int getPooledClassLoadersUsed()
+    {
+        return pooledClassLoadersUsed.get();
+    }
+
+    /**
+     * Closes the pooled CLs of the job definitions which do not exist anymore.
+     * 
+     * @param jobDefIds
+     *                      the IDs of all the existing job definitions.
+     */
+    void retainJobDefinitions(Collection<Integer> jobDefIds)
+    {
+        if (poolFiller == null)
+        {
+            return;
+        }
+        synchronized (pooledClassLoaders)
+        {
+            Iterator<Map.Entry<Integer, LinkedList<PooledClassLoader>>> it = pooledClassLoaders.entrySet().iterator();
+            while (it.hasNext())
+            {
+                Map.Entry<Integer, LinkedList<PooledClassLoader>> e = it.next();
+                if (jobDefIds.contains(e.getKey()))
+                {
+                    continue;
+                }
+                jqmlogger.debug("Job definition " + e.getKey() + " does not exist anymore - its pooled CLs are closed");
+                for (PooledClassLoader pcl : e.getValue())
+                {
+                    pcl.cl.tryClose();
+                }
+                pooledCount -= e.getValue().size();
+                it.remove();
+            }
+        }
     }
 
     PayloadClassLoader getClassloader(JobInstance ji, JobRunnerCallback cb)
@@ -91,6 +227,11 @@ class ClassloaderManager
         final PayloadClassLoader jobClassLoader;
         JobDef jd = ji.getJD();
 
+        if (poolFiller != null && jd.getClassLoader() == null && jd.getPathType() != PathType.MEMORY)
+        {
+            return getPooledClassloader(ji, cb);
+        }
+
         // Extract the jar actual path
         File jarFile = new File(FilenameUtils.concat(new File(ji.getNode().getRepo()).getAbsolutePath(), jd.getJarPath()));
 
@@ -214,6 +355,235 @@ class ClassloaderManager
         return jobClassLoader;
     }
 
+    /**
+     * A CL with all its URLs set, for a given version of a job definition and of its jar and libraries.
+     */
+    private static class PooledClassLoader
+    {
+        private final String jarPath;
+        private final long jarLastModified;
+        private final long jarLength;
+        private final List<URL> classpath;
+        private final PayloadClassLoader cl;
+
+        private PooledClassLoader(String jarPath, File jarFile, URL[] classpath, PayloadClassLoader cl)
+        {
+            this.jarPath = jarPath;
+            this.jarLastModified = jarFile.lastModified();
+            this.jarLength = jarFile.length();
+            this.classpath = Arrays.asList(classpath);
+            this.cl = cl;
+        }
+
+        /**
+         * @return true if the job definition, its jar or its resolved libraries have changed since the CL was created.
+         */
+        private boolean isStale(JobDef jd, File jarFile, URL[] classpath)
+        {
+            return !jarPath.equals(jd.getJarPath()) || jarLastModified != jarFile.lastModified() || jarLength != jarFile.length()
+                    || !this.classpath.equals(Arrays.asList(classpath));
+        }
+    }
+
+    /**
+     * Pooled isolation mode: gives a CL prepared in advance (or a new one if none is ready) and asks for its replacement. A pooled CL has
+     * classes loaded (not initialized) but has never run anything, so isolation is the same as in the default mode.
+     */
+    private PayloadClassLoader getPooledClassloader(JobInstance ji, JobRunnerCallback cb) throws MalformedURLException, JqmPayloadException
+    {
+        JobDef jd = ji.getJD();
+        File jarFile = getJarFile(ji);
+        URL[] classpath = getClasspath(ji, cb); // Resolvers have their own cache, so this is cheap.
+        PooledClassLoader res = null;
+        int missing;
+        synchronized (pooledClassLoaders)
+        {
+            LinkedList<PooledClassLoader> pool = getPool(jd.getId());
+            while (res == null && !pool.isEmpty())
+            {
+                res = pool.poll();
+                pooledCount--;
+                if (res.isStale(jd, jarFile, classpath))
+                {
+                    jqmlogger.debug("Pooled CL is stale (job definition, jar or libraries have changed) and is discarded");
+                    res.cl.tryClose();
+                    res = null;
+                }
+            }
+            missing = poolSize - pool.size();
+        }
+
+        for (int i = 0; i < missing; i++)
+        {
+            fillPool(ji, cb);
+        }
+
+        if (res != null)
+        {
+            jqmlogger.debug("Using a pooled isolated CL");
+            pooledClassLoadersUsed.incrementAndGet();
+            return res.cl;
+        }
+        jqmlogger.debug("No pooled isolated CL ready - creating one");
+        return createPooledClassloader(ji, cb).cl;
+    }
+
+    /**
+     * Must be called while holding the {@link #pooledClassLoaders} lock.
+     */
+    private LinkedList<PooledClassLoader> getPool(int jdId)
+    {
+        LinkedList<PooledClassLoader> pool = pooledClassLoaders.get(jdId);
+        if (pool == null)
+        {
+            pool = new LinkedList<PooledClassLoader>();
+            pooledClassLoaders.put(jdId, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Adds a CL to the pool of its job definition. If all pools together are full, a CL of the least recently launched job definition is
+     * closed to make room. Must be called while holding the {@link #pooledClassLoaders} lock.
+     * 
+     * @return false if the CL was not added (stopped, or pool of the job definition already full).
+     */
+    private boolean addToPool(int jdId, PooledClassLoader cl)
+    {
+        LinkedList<PooledClassLoader> pool = getPool(jdId);
+        if (stopped || pool.size() >= poolSize)
+        {
+            return false;
+        }
+
+        if (pooledCount >= poolTotal)
+        {
+            PooledClassLoader evicted = null;
+            for (Map.Entry<Integer, LinkedList<PooledClassLoader>> e : pooledClassLoaders.entrySet())
+            {
+                if (e.getKey() != jdId && !e.getValue().isEmpty())
+                {
+                    evicted = e.getValue().poll();
+                    break;
+                }
+            }
+            if (evicted == null)
+            {
+                return false;
+            }
+            evicted.cl.tryClose();
+            pooledCount--;
+        }
+
+        pool.add(cl);
+        pooledCount++;
+        return true;
+    }
+
+    private void fillPool(final JobInstance ji, final JobRunnerCallback cb)
+    {
+        try
+        {
+            poolFiller.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        PooledClassLoader cl = createPooledClassloader(ji, cb);
+                        warm(cl.cl, ji);
+                        synchronized (pooledClassLoaders)
+                        {
+                            if (addToPool(ji.getJD().getId(), cl))
+                            {
+                                return;
+                            }
+                        }
+                        cl.cl.tryClose();
+                    }
+                    catch (Exception e)
+                    {
+                        // The job instance itself will report the issue if there is one.
+                        jqmlogger.warn("Could not prepare a class loader for job definition " + ji.getJD().getApplicationName(), e);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // Runner is stopping.
+        }
+    }
+
+    private PooledClassLoader createPooledClassloader(JobInstance ji, JobRunnerCallback cb)
+            throws MalformedURLException, JqmPayloadException
+    {
+        File jarFile = getJarFile(ji);
+        URL[] classpath = getClasspath(ji, cb);
+
+        PayloadClassLoader res = new PayloadClassLoader(getParentClassLoader(ji, cb));
+        res.mayBeShared(false);
+        res.extendUrls(jarFile.toURI().toURL(), classpath);
+        return new PooledClassLoader(ji.getJD().getJarPath(), jarFile, classpath, res);
+    }
+
+    private File getJarFile(JobInstance ji)
+    {
+        return new File(FilenameUtils.concat(new File(ji.getNode().getRepo()).getAbsolutePath(), ji.getJD().getJarPath()));
+    }
+
+    /**
+     * Loads (without initializing them) all the classes of the job jar, so that this cost is not paid by the job instance.
+     */
+    private void warm(PayloadClassLoader cl, JobInstance ji)
+    {
+        URL jarUrl = cl.getURLs()[0];
+        JarFile jar = null;
+        int count = 0;
+        try
+        {
+            jar = new JarFile(new File(jarUrl.toURI()));
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements())
+            {
+                String name = entries.nextElement().getName();
+                if (!name.endsWith(".class") || name.contains("-"))
+                {
+                    continue; // Not a class, or module-info/package-info.
+                }
+                try
+                {
+                    Class.forName(name.substring(0, name.length() - 6).replace('/', '.'), false, cl);
+                    count++;
+                }
+                catch (Throwable e)
+                {
+                    // Missing optional dependency or the like. The class will fail later if actually used.
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            jqmlogger.debug("Could not read job jar for CL preparation", e);
+        }
+        finally
+        {
+            if (jar != null)
+            {
+                try
+                {
+                    jar.close();
+                }
+                catch (IOException e)
+                {
+                    // Nothing to do.
+                }
+            }
+        }
+        jqmlogger.debug("Pooled CL for job definition " + ji.getJD().getApplicationName() + " has loaded " + count + " classes");
+    }
+
     /**
      * Returns all the URL that should be inside the classpath. This includes the jar itself if any.
      * 
@@ -86,8 +86,11 @@ class JavaJobInstanceTracker implements JobInstanceTracker, JavaJobInstanceTrack
     {
         mainThread = Thread.currentThread();
 
-        // Set CL cache inside JD
-        this.job.getJD().getClassLoader(cnx);
+        // Set CL cache inside JD (usually already set by the engine metadata cache)
+        if (this.job.getJD().getClassLoader() == null)
+        {
+            this.job.getJD().getClassLoader(cnx);
+        }
 
         // Create a proxy able to cross CL boundaries for the Engine API.
         handler = new EngineApiProxy(engineApi);
@@ -143,6 +146,12 @@ class JavaJobInstanceTracker implements JobInstanceTracker, JavaJobInstanceTrack
     @Override
     public void wrap()
     {
+        // The thread may be reused by another job instance - it must not receive the interruptions meant for this one.
+        synchronized (this)
+        {
+            mainThread = null;
+        }
+
         // Restore and clean class loaders (if needed, as CLs may be persistent)
         if (this.classLoaderToRestoreAtEnd != null)
         {
@@ -246,9 +255,12 @@ class JavaJobInstanceTracker implements JobInstanceTracker, JavaJobInstanceTrack
         {
         case KILL:
             // All we can do safely is to interrupt the thread.
-            if (mainThread != null)
+            synchronized (this)
             {
-                mainThread.interrupt();
+                if (mainThread != null)
+                {
+                    mainThread.interrupt();
+                }
             }
             jqmlogger.warn("Job instance has received a kill instruction - the engine has sent an interrupt to "
                     + "the job instance thread but this requires cooperation from the job instance itself");
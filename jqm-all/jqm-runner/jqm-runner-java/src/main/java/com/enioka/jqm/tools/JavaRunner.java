@@ -1,5 +1,7 @@
 package com.enioka.jqm.tools;
 
+import java.util.Collection;
+
 import com.enioka.jqm.api.JobInstanceTracker;
 import com.enioka.jqm.api.JobManager;
 import com.enioka.jqm.api.JobRunner;
@@ -18,7 +20,17 @@ class JavaRunner implements JobRunner
 
     JavaRunner(DbConn cnx)
     {
-        classloaderManager = new ClassloaderManager(cnx);
+        this(cnx, true);
+    }
+
+    /**
+     * @param allowPooling
+     *                         if false, the Pooled isolation mode behaves like the default Isolated mode. Used by runners only running a
+     *                         single job instance, which have no use for class loaders prepared in advance.
+     */
+    JavaRunner(DbConn cnx, boolean allowPooling)
+    {
+        classloaderManager = new ClassloaderManager(cnx, allowPooling);
     }
 
     @Override
@@ -33,4 +45,29 @@ class JavaRunner implements JobRunner
     {
         return new JavaJobInstanceTracker(toRun, cb, classloaderManager, engineApi);
     }
+
+    @Override
+    public void stop()
+    {
+        classloaderManager.stop();
+    }
+
+    /**
+     * @return how many job instances were given a class loader prepared in advance (pooled isolation mode) since startup.
+     */
+    int getPooledClassLoadersUsed()
+    {
+        return classloaderManager.getPooledClassLoadersUsed();
+    }
+
+    /**
+     * Releases the resources kept for job definitions which do not exist anymore.
+     * 
+     * @param jobDefIds
+     *                      the IDs of all the existing job definitions.
+     */
+    void retainJobDefinitions(Collection<Integer> jobDefIds)
+    {
+        classloaderManager.retainJobDefinitions(jobDefIds);
+    }
 }
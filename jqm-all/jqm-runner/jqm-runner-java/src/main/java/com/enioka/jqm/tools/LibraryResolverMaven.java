@@ -1,16 +1,27 @@
 package com.enioka.jqm.tools;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
 import com.enioka.jqm.jdbc.DbConn;
 import com.enioka.jqm.model.GlobalParameter;
 import com.enioka.jqm.model.JobInstance;
+import com.enioka.jqm.model.Node;
 
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.jboss.shrinkwrap.resolver.api.maven.ConfigurableMavenResolverSystem;
 import org.jboss.shrinkwrap.resolver.api.maven.Maven;
 import org.jboss.shrinkwrap.resolver.api.maven.repository.MavenRemoteRepositories;
@@ -18,6 +29,13 @@ import org.jboss.shrinkwrap.resolver.api.maven.repository.MavenUpdatePolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Resolves the dependencies of job definitions given as Maven coordinates.<br>
+ * Results are cached by coordinates and resolver configuration. The cache is also written to a file inside the node temporary directory,
+ * so that a restart does not need any resolution. Results only made of releases are kept as long as their files exist, results containing
+ * snapshots (or using version ranges) are kept mavenSnapshotCacheTtlS seconds.<br>
+ * This object is thread-safe.
+ */
 class LibraryResolverMaven
 {
     private static Logger jqmlogger = LoggerFactory.getLogger(LibraryResolverMaven.class);
@@ -29,25 +47,86 @@ class LibraryResolverMaven
     private String[] mavenRepos;
     private String mavenSettingsClPath;
     private String mavenSettingsFilePath;
+    private boolean offlineFirst;
+    private long snapshotTtlMs;
+
+    private static class CachedResolution
+    {
+        private final long resolvedAt;
+        private final String[] files;
+
+        private CachedResolution(long resolvedAt, String[] files)
+        {
+            this.resolvedAt = resolvedAt;
+            this.files = files;
+        }
+    }
+
+    private final Map<String, CachedResolution> cache = new HashMap<String, CachedResolution>();
+    private File cacheFile = null;
+    private String configurationKey;
 
     LibraryResolverMaven(DbConn cnx)
     {
         mavenRepos = GlobalParameter.getParameter(cnx, "mavenRepo", "http://repo1.maven.org/maven2/").split(",");
         mavenSettingsClPath = GlobalParameter.getParameter(cnx, "mavenSettingsCL", null);
         mavenSettingsFilePath = GlobalParameter.getParameter(cnx, "mavenSettingsFile", null);
+        offlineFirst = Boolean.parseBoolean(GlobalParameter.getParameter(cnx, "mavenOfflineFirst", "false"));
+        snapshotTtlMs = Long.parseLong(GlobalParameter.getParameter(cnx, "mavenSnapshotCacheTtlS", "60")) * 1000;
+
+        configurationKey = StringUtils.join(mavenRepos, ",") + "|" + mavenSettingsClPath + "|" + mavenSettingsFilePath;
     }
 
     URL[] resolve(JobInstance ji) throws JqmPayloadException
     {
-        ConfigurableMavenResolverSystem resolver = getMavenResolver();
+        String coordinates = ji.getJD().getJarPath();
+        String key = coordinates + "|" + configurationKey;
 
-        try
+        synchronized (cache)
+        {
+            loadCacheFile(ji.getNode());
+            CachedResolution res = cache.get(key);
+            if (res != null && isValid(coordinates, res))
+            {
+                return extractMavenResults(toFiles(res.files));
+            }
+        }
+
+        // Resolution is done outside the lock, as it may take a long time.
+        File[] files = resolveFiles(coordinates);
+        String[] paths = new String[files.length];
+        for (int i = 0; i < files.length; i++)
+        {
+            paths[i] = files[i].getAbsolutePath();
+        }
+        synchronized (cache)
+        {
+            cache.put(key, new CachedResolution(System.currentTimeMillis(), paths));
+            saveCacheFile();
+        }
+
+        return extractMavenResults(files);
+    }
+
+    private File[] resolveFiles(String coordinates) throws JqmPayloadException
+    {
+        if (offlineFirst)
         {
-            return extractMavenResults(resolver.resolve(ji.getJD().getJarPath()).withTransitivity().asFile());
+            try
+            {
+                return getMavenResolver().workOffline().resolve(coordinates).withTransitivity().asFile();
+            }
+            catch (Exception e)
+            {
+                jqmlogger.debug(
+                        "Could not resolve " + coordinates + " from the local repository only - remote repositories will be used", e);
+            }
         }
-        catch (JqmPayloadException e)
+
+        jqmlogger.debug("Resolving Maven coordinates " + coordinates);
+        try
         {
-            throw e;
+            return getMavenResolver().resolve(coordinates).withTransitivity().asFile();
         }
         catch (Exception e)
         {
@@ -55,6 +134,118 @@ class LibraryResolverMaven
         }
     }
 
+    /**
+     * A cached result is valid if all its files are still there and, for snapshots and version ranges, if it is recent enough.
+     */
+    private boolean isValid(String coordinates, CachedResolution res)
+    {
+        boolean isVolatile = coordinates.contains("SNAPSHOT") || coordinates.contains("[") || coordinates.contains("(")
+                || coordinates.contains("LATEST") || coordinates.contains("RELEASE");
+        for (String path : res.files)
+        {
+            if (!new File(path).isFile())
+            {
+                return false;
+            }
+            isVolatile = isVolatile || path.contains("SNAPSHOT");
+        }
+        return !isVolatile || System.currentTimeMillis() - res.resolvedAt < snapshotTtlMs;
+    }
+
+    private static File[] toFiles(String[] paths)
+    {
+        File[] res = new File[paths.length];
+        for (int i = 0; i < paths.length; i++)
+        {
+            res[i] = new File(paths[i]);
+        }
+        return res;
+    }
+
+    /**
+     * Reads the cache file the first time only. Must be called with the cache lock.
+     */
+    private void loadCacheFile(Node node)
+    {
+        if (cacheFile != null)
+        {
+            return;
+        }
+        cacheFile = new File(FilenameUtils.concat(node.getTmpDirectory(), "maven_resolution_cache.properties"));
+        if (!cacheFile.isFile())
+        {
+            return;
+        }
+
+        Properties p = new Properties();
+        InputStream is = null;
+        try
+        {
+            is = new FileInputStream(cacheFile);
+            p.load(is);
+        }
+        catch (IOException e)
+        {
+            jqmlogger.warn("Could not read the Maven resolution cache file " + cacheFile.getAbsolutePath() + " - it is ignored", e);
+            return;
+        }
+        finally
+        {
+            IOUtils.closeQuietly(is);
+        }
+
+        for (String key : p.stringPropertyNames())
+        {
+            String[] value = p.getProperty(key).split("\\|", 2);
+            try
+            {
+                cache.put(key, new CachedResolution(Long.parseLong(value[0]),
+                        value.length > 1 && !value[1].isEmpty() ? value[1].split(File.pathSeparator) : new String[0]));
+            }
+            catch (NumberFormatException e)
+            {
+                // Ignore corrupted entry - it will be resolved again.
+            }
+        }
+        jqmlogger.info("Maven resolution cache loaded with " + cache.size() + " entries");
+    }
+
+    /**
+     * Writes the whole cache. Must be called with the cache lock.
+     */
+    private void saveCacheFile()
+    {
+        Properties p = new Properties();
+        for (Map.Entry<String, CachedResolution> e : cache.entrySet())
+        {
+            p.setProperty(e.getKey(), e.getValue().resolvedAt + "|" + StringUtils.join(e.getValue().files, File.pathSeparator));
+        }
+
+        // Write then rename, so that a crash never leaves a half-written file.
+        File tmp = new File(cacheFile.getAbsolutePath() + ".tmp");
+        OutputStream os = null;
+        try
+        {
+            cacheFile.getParentFile().mkdirs();
+            os = new FileOutputStream(tmp);
+            p.store(os, "JQM Maven resolution cache - may be deleted at any time");
+            os.close();
+            os = null;
+            if (!tmp.renameTo(cacheFile) && !(cacheFile.delete() && tmp.renameTo(cacheFile)))
+            {
+                jqmlogger.warn("Could not write the Maven resolution cache file " + cacheFile.getAbsolutePath());
+            }
+        }
+        catch (IOException e)
+        {
+            jqmlogger.warn("Could not write the Maven resolution cache file " + cacheFile.getAbsolutePath(), e);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(os);
+        }
+    }
+
     ConfigurableMavenResolverSystem getMavenResolver()
     {
         // Retrieve resolver configuration
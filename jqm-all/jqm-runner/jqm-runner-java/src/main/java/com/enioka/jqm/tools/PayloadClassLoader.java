@@ -28,6 +28,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -59,6 +60,42 @@ class PayloadClassLoader extends URLClassLoader
 
     private boolean mayBeShared = false;
 
+    /**
+     * Runner selected for each payload class (and list of allowed runners) already launched by this CL. Only useful for reused CLs.
+     */
+    private Map<String, ResolvedRunner> resolvedRunners = new ConcurrentHashMap<String, ResolvedRunner>();
+
+    /**
+     * The class and run method of each event handler class already used by this CL.
+     */
+    private Map<String, ResolvedHandler> resolvedHandlers = new ConcurrentHashMap<String, ResolvedHandler>();
+
+    private static class ResolvedRunner
+    {
+        private final String runnerClassName;
+        private final Object runner;
+        private final Method run;
+
+        private ResolvedRunner(String runnerClassName, Object runner, Method run)
+        {
+            this.runnerClassName = runnerClassName;
+            this.runner = runner;
+            this.run = run;
+        }
+    }
+
+    private static class ResolvedHandler
+    {
+        private final Class<?> handlerClass;
+        private final Method run;
+
+        private ResolvedHandler(Class<?> handlerClass, Method run)
+        {
+            this.handlerClass = handlerClass;
+            this.run = run;
+        }
+    }
+
     PayloadClassLoader(ClassLoader parent)
     {
         super(new URL[0], parent);
@@ -125,18 +162,87 @@ class PayloadClassLoader extends URLClassLoader
         }
         jqmlogger.trace("Class " + classQualifiedName + " was correctly loaded");
 
-        // 4 - Determine which job runner should take the job and launch!
+        // 4 - Determine which job runner should take the job (only once per payload class for this CL).
         List<String> allowedRunners = clm.getJobRunnerClasses();
         if (job.getJD().getClassLoader() != null && job.getJD().getClassLoader().getAllowedRunners() != null
                 && !job.getJD().getClassLoader().getAllowedRunners().isEmpty())
         {
             allowedRunners = Arrays.asList(job.getJD().getClassLoader().getAllowedRunners().split(","));
         }
+        String cacheKey = classQualifiedName + allowedRunners;
+        ResolvedRunner resolved = resolvedRunners.get(cacheKey);
+        if (resolved == null)
+        {
+            resolved = resolveRunner(c, allowedRunners, clm);
+            resolvedRunners.put(cacheKey, resolved);
+        }
+        jqmlogger.trace("Payload is of type: " + resolved.runnerClassName);
+
+        // 5 - We are ready to actually run the job instance. Time for all event handlers.
+        if (job.getJD().getClassLoader() != null)
+        {
+            for (ClHandler handler : job.getJD().getClassLoader().getHandlers())
+            {
+                String handlerClass = handler.getClassName();
+                Map<String, String> handlerPrms = new HashMap<String, String>();
+                for (Map.Entry<String, String> hprm : handler.getParameters().entrySet())
+                {
+                    handlerPrms.put(hprm.getKey(), hprm.getValue());
+                }
+
+                try
+                {
+                    ResolvedHandler resolvedHandler = resolvedHandlers.get(handlerClass);
+                    if (resolvedHandler == null)
+                    {
+                        // The run method may be inherited: the configured class is the one to instantiate, not the declaring one.
+                        Class<?> clazz = loadClass(handlerClass);
+                        resolvedHandler = new ResolvedHandler(clazz, clazz.getMethod("run", Class.class, injInt, Map.class));
+                        resolvedHandlers.put(handlerClass, resolvedHandler);
+                    }
+                    Object handlerInstance = resolvedHandler.handlerClass.newInstance();
+                    resolvedHandler.run.invoke(handlerInstance, c, proxy, handlerPrms);
+                }
+                catch (Exception e)
+                {
+                    throw new JobRunnerException("event handler could not be loaded or run: " + handlerClass, e);
+                }
+            }
+        }
+
+        // 6 - Go for real.
+        try
+        {
+            resolved.run.invoke(resolved.runner, c, metaprms, parameters, proxy);
+        }
+        catch (InvocationTargetException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+            {
+                // it may be a Kill order, or whatever exception...
+                throw (RuntimeException) e.getCause();
+            }
+            else
+            {
+                throw new JobRunnerException("Payload has failed", e);
+            }
+        }
+        catch (Exception e)
+        {
+            throw new JobRunnerException("Could not launch a job instance (engine issue, not a payload issue", e);
+        }
+    }
+
+    /**
+     * Finds the first allowed runner accepting the payload class. Runners hold no state (see JavaJobRunner), so the instance is kept for
+     * further launches.
+     */
+    private ResolvedRunner resolveRunner(Class c, List<String> allowedRunners, ClassloaderManager clm) throws JobRunnerException
+    {
         for (String runnerClassName : allowedRunners)
         {
             Boolean canRun = false;
             Class runnerClass = null;
-            Method run;
             Object runner;
             try
             {
@@ -173,64 +279,15 @@ class PayloadClassLoader extends URLClassLoader
 
             if (canRun)
             {
-                jqmlogger.trace("Payload is of type: " + runnerClassName);
-
                 try
                 {
-                    run = runnerClass.getMethod("run", Class.class, Map.class, Map.class, Object.class);
+                    return new ResolvedRunner(runnerClassName, runner,
+                            runnerClass.getMethod("run", Class.class, Map.class, Map.class, Object.class));
                 }
                 catch (Exception e)
                 {
                     throw new JobRunnerException("could not find run method for runner plugin " + runnerClassName, e);
                 }
-
-                // We are ready to actually run the job instance. Time for all event handlers.
-                if (job.getJD().getClassLoader() != null)
-                {
-                    for (ClHandler handler : job.getJD().getClassLoader().getHandlers())
-                    {
-                        String handlerClass = handler.getClassName();
-                        Map<String, String> handlerPrms = new HashMap<String, String>();
-                        for (Map.Entry<String, String> hprm : handler.getParameters().entrySet())
-                        {
-                            handlerPrms.put(hprm.getKey(), hprm.getValue());
-                        }
-
-                        try
-                        {
-                            Method handlerRun = loadClass(handlerClass).getMethod("run", Class.class, injInt, Map.class);
-                            Object handlerInstance = loadClass(handlerClass).newInstance();
-                            handlerRun.invoke(handlerInstance, c, proxy, handlerPrms);
-                        }
-                        catch (Exception e)
-                        {
-                            throw new JobRunnerException("event handler could not be loaded or run: " + handlerClass, e);
-                        }
-                    }
-                }
-
-                // Go for real.
-                try
-                {
-                    run.invoke(runner, c, metaprms, parameters, proxy);
-                    return;
-                }
-                catch (InvocationTargetException e)
-                {
-                    if (e.getCause() instanceof RuntimeException)
-                    {
-                        // it may be a Kill order, or whatever exception...
-                        throw (RuntimeException) e.getCause();
-                    }
-                    else
-                    {
-                        throw new JobRunnerException("Payload has failed", e);
-                    }
-                }
-                catch (Exception e)
-                {
-                    throw new JobRunnerException("Could not launch a job instance (engine issue, not a payload issue", e);
-                }
             }
         }
 
@@ -0,0 +1,213 @@
+package com.enioka.jqm.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single thread eating the output (stdout, stderr) of all the running processes, so as to avoid buffers being filled and subsequent
+ * locks, without using threads for each process. Output is copied line by line to System.out and System.err under the name of the thread
+ * running the job instance, so that the engine can put it inside the log files of the job instance.<br>
+ * <br>
+ * Process streams cannot be selected upon, so the pump only reads what is available without blocking, and sleeps a little when there was
+ * nothing to read. The end of the process is not detected here - the job instance thread waits for it, then calls {@link #finish(Plumbing)}
+ * which reads what remains. The thread stops when there is no process left to follow.
+ */
+class ProcessOutputPump implements Runnable
+{
+    private static Logger jqmlogger = LoggerFactory.getLogger(ProcessOutputPump.class);
+
+    private static final int MIN_SLEEP_MS = 1;
+    private static final int MAX_SLEEP_MS = 50;
+
+    private static final ProcessOutputPump instance = new ProcessOutputPump();
+
+    private final List<Plumbing> plumbings = new ArrayList<Plumbing>();
+    private final byte[] buffer = new byte[8192];
+    private Thread thread = null;
+
+    private ProcessOutputPump()
+    {
+        // Singleton.
+    }
+
+    /**
+     * The output streams of a process, and where to copy them.
+     */
+    static class Plumbing
+    {
+        private final String threadName;
+        private final Flow stdout, stderr;
+
+        private Plumbing(Process p)
+        {
+            this.threadName = Thread.currentThread().getName(); // Share the name with job instance thread, so as to share stdout.
+            this.stdout = new Flow(p.getInputStream(), System.out);
+            this.stderr = new Flow(p.getErrorStream(), System.err);
+        }
+    }
+
+    private static class Flow
+    {
+        private final InputStream is;
+        private final PrintStream os;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+
+        private Flow(InputStream is, PrintStream os)
+        {
+            this.is = is;
+            this.os = os;
+        }
+
+        /**
+         * Writes all complete lines inside the buffer.
+         */
+        private void copy(byte[] buffer, int len)
+        {
+            int start = 0;
+            for (int i = 0; i < len; i++)
+            {
+                if (buffer[i] == '\n')
+                {
+                    line.write(buffer, start, i - start);
+                    flushLine();
+                    start = i + 1;
+                }
+            }
+            line.write(buffer, start, len - start);
+        }
+
+        private void flushLine()
+        {
+            byte[] l = line.toByteArray();
+            int len = l.length;
+            if (len > 0 && l[len - 1] == '\r')
+            {
+                len--;
+            }
+            os.println(new String(l, 0, len));
+            line.reset();
+        }
+    }
+
+    /**
+     * Starts following the outputs of a process. Must be called by the thread running the job instance.
+     */
+    static Plumbing plumbProcess(Process p)
+    {
+        Plumbing res = new Plumbing(p);
+        synchronized (instance)
+        {
+            instance.plumbings.add(res);
+            if (instance.thread == null)
+            {
+                instance.thread = new Thread(instance, "JQM shell output pump");
+                instance.thread.setDaemon(true);
+                instance.thread.start();
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Stops following the outputs of a process, and reads them until their end inside the calling thread. To be called once the process
+     * has exited.
+     */
+    static void finish(Plumbing plumbing)
+    {
+        synchronized (instance)
+        {
+            instance.plumbings.remove(plumbing);
+        }
+
+        byte[] buffer = new byte[8192];
+        drain(plumbing.stdout, buffer);
+        drain(plumbing.stderr, buffer);
+    }
+
+    private static void drain(Flow flow, byte[] buffer)
+    {
+        try
+        {
+            int read;
+            while ((read = flow.is.read(buffer)) != -1)
+            {
+                flow.copy(buffer, read);
+            }
+            if (flow.line.size() > 0)
+            {
+                flow.flushLine();
+            }
+            flow.is.close();
+        }
+        catch (IOException e)
+        {
+            jqmlogger.error("Standard flow reading failure", e);
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        int sleepMs = MIN_SLEEP_MS;
+        while (true)
+        {
+            boolean hasRead = false;
+            synchronized (this)
+            {
+                if (plumbings.isEmpty())
+                {
+                    thread = null;
+                    return;
+                }
+
+                for (Plumbing p : plumbings)
+                {
+                    Thread.currentThread().setName(p.threadName);
+                    hasRead |= pump(p.stdout);
+                    hasRead |= pump(p.stderr);
+                }
+                Thread.currentThread().setName("JQM shell output pump");
+            }
+
+            sleepMs = hasRead ? MIN_SLEEP_MS : Math.min(sleepMs * 2, MAX_SLEEP_MS);
+            try
+            {
+                Thread.sleep(sleepMs);
+            }
+            catch (InterruptedException e)
+            {
+                // Nothing to do - a running process must always be followed.
+            }
+        }
+    }
+
+    private boolean pump(Flow flow)
+    {
+        try
+        {
+            int available = flow.is.available();
+            if (available <= 0)
+            {
+                return false;
+            }
+            int read = flow.is.read(buffer, 0, Math.min(available, buffer.length));
+            if (read > 0)
+            {
+                flow.copy(buffer, read);
+            }
+            return read > 0;
+        }
+        catch (IOException e)
+        {
+            // Stream closed - the end of the flow will be handled by finish().
+            return false;
+        }
+    }
+}
@@ -133,14 +133,12 @@ class ShellJobInstanceTracker implements JobInstanceTracker, ShellJobInstanceTra
             return State.CRASHED;
         }
 
-        // Wait for end, flushing logs.
+        // Wait for end. Logs are flushed by the shared pump in the meantime.
+        ProcessOutputPump.Plumbing plumbing = ProcessOutputPump.plumbProcess(process);
         try
         {
-            Waiter w = StreamGobbler.plumbProcess(process);
             int res = process.waitFor();
             jqmlogger.debug("Shell payload " + this.ji.getId() + " - the external process has exited with RC " + res);
-            w.waitForEnd();
-            jqmlogger.debug("External process outputs are closed");
             return res == 0 ? State.ENDED : State.CRASHED;
         }
         catch (InterruptedException e)
@@ -154,6 +152,11 @@ class ShellJobInstanceTracker implements JobInstanceTracker, ShellJobInstanceTra
             jqmlogger.warn("Shell job plumbing has failed", e);
             return State.CRASHED;
         }
+        finally
+        {
+            ProcessOutputPump.finish(plumbing);
+            jqmlogger.debug("External process outputs are closed");
+        }
     }
 
     @Override
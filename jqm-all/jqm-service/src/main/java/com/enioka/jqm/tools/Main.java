@@ -141,6 +141,7 @@ public class Main
                 "Copy all queue polling parameters from one node to the another node. Syntax is templatenode,targetnode[,targetnode_host]")
                 .withLongOpt("apply-node-template").create("t");
         Option o171 = OptionBuilder.withDescription("Returns node count").create("nodecount");
+        Option o181 = OptionBuilder.withDescription("external job instance worker mode. JQM internal use only.").create("worker");
 
         Options options = new Options();
         OptionGroup og1 = new OptionGroup();
@@ -163,6 +164,7 @@ public class Main
         og1.addOption(o151);
         og1.addOption(o161);
         og1.addOption(o171);
+        og1.addOption(o181);
         options.addOptionGroup(og1);
         OptionGroup og2 = new OptionGroup();
         og2.addOption(o131);
@@ -296,6 +298,11 @@ public class Main
             {
                 count();
             }
+            // External worker
+            else if (line.hasOption(o181.getOpt()))
+            {
+                JqmSingleRunner.runWorker();
+            }
         }
         catch (ParseException exp)
         {
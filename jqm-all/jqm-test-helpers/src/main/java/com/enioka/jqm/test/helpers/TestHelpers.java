@@ -125,6 +125,7 @@ public class TestHelpers
         cnx.runUpdate("jdprm_delete_all");
         cnx.runUpdate("jiprm_delete_all");
         cnx.runUpdate("ji_delete_all");
+        cnx.runUpdate("rmlease_delete_all");
         cnx.runUpdate("node_delete_all");
         cnx.runUpdate("jd_delete_all");
         cnx.runUpdate("q_delete_all");
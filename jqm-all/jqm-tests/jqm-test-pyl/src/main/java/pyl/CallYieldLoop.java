@@ -0,0 +1,26 @@
+package pyl;
+
+import com.enioka.jqm.api.JobManager;
+
+public class CallYieldLoop implements Runnable
+{
+    JobManager jm;
+
+    @Override
+    public void run()
+    {
+        for (int i = 0; i < 30; i++)
+        {
+            try
+            {
+                Thread.sleep(100);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            jm.yield();
+        }
+    }
+
+}
@@ -224,6 +224,12 @@ class XmlConfigurationParser
                     int maxThreads = Integer.parseInt(mElement.getElementsByTagName("maxThreads").item(0).getTextContent().trim());
                     int pollingIntervalMs = Integer
                             .parseInt(mElement.getElementsByTagName("pollingIntervalMs").item(0).getTextContent().trim());
+                    Integer pollingIntervalMaxMs = null;
+                    if (mElement.getElementsByTagName("pollingIntervalMaxMs").getLength() > 0)
+                    {
+                        pollingIntervalMaxMs = Integer
+                                .parseInt(mElement.getElementsByTagName("pollingIntervalMaxMs").item(0).getTextContent().trim());
+                    }
                     boolean enabled = Boolean.parseBoolean(mElement.getElementsByTagName("enabled").item(0).getTextContent().trim());
 
                     // existing mapping?
@@ -246,8 +252,9 @@ class XmlConfigurationParser
                     }
                     else
                     {
-                        DeploymentParameter.create(cnx, enabled, nodeId, maxThreads, pollingIntervalMs, queueId);
+                        dp = DeploymentParameter.create(cnx, enabled, nodeId, maxThreads, pollingIntervalMs, queueId);
                     }
+                    cnx.runUpdate("dp_update_interval_max_by_id", pollingIntervalMaxMs, dp.getId());
                 }
 
                 // Done